@@ -0,0 +1,840 @@
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.tinkerpop.gremlin.process.traversal.Compare;
+import org.apache.tinkerpop.gremlin.process.traversal.Contains;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.Direction;
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.T;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.javatuples.Pair;
+import org.mastik.Backend;
+import org.mastik.ElementCreator;
+import org.mastik.ElementUtils;
+import org.mastik.cache.NegativeCache;
+import org.mastik.query.PredicatesTree;
+import org.mastik.query.Query;
+import org.mastik.query.VertexQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Query planning shared by {@link ElasticsearchBackend} and {@link ElasticsearchRestBackend}:
+ * splitting queries over many ids to chunks, choosing between multi-get and search, routing,
+ * and orchestrating counts. Sending the planned requests and reading their responses is left to each client
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 3/1/17
+ */
+public abstract class BaseElasticsearchBackend implements Backend, AutoCloseable {
+
+    /**
+     * Largest limit that is fetched in a single request, rather than by scrolling
+     * (equals to the default 'index.max_result_window' of Elasticsearch)
+     */
+    static final int MAX_RESULT_WINDOW = 10000;
+    static final String EDGES_INDICES = "graph-edges";
+    static final String VERTICES_INDICES = "graph-vertices";
+    static final String EDGE_IN_VERTEX_PROPERTY = "inid";
+    static final String EDGE_OUT_VERTEX_PROPERTY = "outid";
+    static final String EDGE_LABEL_PROPERTY = "label";
+    static final String GROUP_COUNT_AGGREGATION = "group_count";
+
+    /**
+     * Keys of predicates over ids, which are split when they have too many values
+     */
+    static final Set<String> ID_KEYS = ImmutableSet.of(T.id.getAccessor(), EDGE_IN_VERTEX_PROPERTY, EDGE_OUT_VERTEX_PROPERTY);
+
+    private static final Logger logger = LoggerFactory.getLogger(BaseElasticsearchBackend.class);
+
+    /**
+     * A single document of a multi-get response
+     */
+    static class MultiGetDocument {
+        private final String id;
+        private final Map<String, Object> source;
+        private final boolean exists;
+        private final String failure;
+
+        /**
+         * @param id Id of the document
+         * @param source Source of the document, or null if it does not exist
+         * @param exists Whether the document was found
+         * @param failure Failure message of its lookup, or null if it did not fail
+         */
+        MultiGetDocument(String id, Map<String, Object> source, boolean exists, String failure) {
+            this.id = id;
+            this.source = source;
+            this.exists = exists;
+            this.failure = failure;
+        }
+    }
+
+    protected final ElementCreator elementCreator;
+    protected final ElasticsearchQueryCreator queryCreator;
+    protected final ElasticsearchBackendConfiguration configuration;
+    protected final ExecutorService requestExecutor;
+
+    protected BaseElasticsearchBackend(ElementCreator elementCreator, ElasticsearchBackendConfiguration configuration) {
+        this.elementCreator = elementCreator;
+        this.queryCreator = new ElasticsearchQueryCreator(EDGE_LABEL_PROPERTY, Sets.union(
+                ImmutableSet.of(EDGE_IN_VERTEX_PROPERTY, EDGE_OUT_VERTEX_PROPERTY, EDGE_LABEL_PROPERTY), configuration.getKeywordPropertyKeys()));
+        this.configuration = configuration;
+        this.requestExecutor = Executors.newFixedThreadPool(configuration.getRequestThreads(),
+                new ThreadFactoryBuilder().setNameFormat("mastik-request-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Sends the search of a query which is not split, and returns a {@link Stream} of its elements
+     * which pass the residual predicates of the query, up to the query limit.
+     * If the query is scrolled, the following pages are fetched lazily, as the stream is consumed
+     */
+    abstract <E extends Element> Stream<E> search(Query<E> query);
+
+    /**
+     * Asynchronous version of {@link #search(Query)}
+     */
+    abstract <E extends Element> CompletableFuture<Stream<E>> searchAsync(Query<E> query);
+
+    /**
+     * Sends the search of the given edges query, fetching only the in-id and out-id doc values of each edge
+     */
+    abstract CompletableFuture<Stream<Pair<String, String>>> searchNeighborsAsync(Query<Edge> query);
+
+    /**
+     * Sends a search of no hits, and returns a future of the number of documents matching the query
+     */
+    abstract <E extends Element> CompletableFuture<Long> countAsync(Query<E> query);
+
+    /**
+     * Sends a search of no hits, and returns a future of the number of documents matching the query
+     * per each value of the field of the given key
+     */
+    abstract <E extends Element> CompletableFuture<Map<Object, Long>> groupCountAsync(Query<E> query, String key);
+
+    /**
+     * Sends the searches of the given queries, none of which is split or scrolled, and returns a future of the elements of each.
+     * Each search is sent on its own, unless the client sends them all in a single multi-search request
+     *
+     * @return Future of the result elements per each query, in the order of the queries
+     */
+    List<CompletableFuture<Stream<? extends Element>>> multiSearchAsync(List<Query<?>> queries) {
+        return queries.stream()
+                .map(query -> this.searchAsync(query).<Stream<? extends Element>>thenApply(elements -> elements))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Looks the given ids up by a multi-get request, from the index of the given query,
+     * fetching the source fields the query needs
+     *
+     * @return Future of a document per each id
+     */
+    abstract <E extends Element> CompletableFuture<List<MultiGetDocument>> multiGetAsync(Query<E> query, Collection<?> ids);
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Stream<Edge> queryVertex(VertexQuery vertexQuery) {
+        if (vertexQuery.getVertexIds().size() > this.configuration.getMaxIdsPerRequest()) {
+            return this.queryVertexAsync(vertexQuery).join();
+        }
+
+        return this.query(createVertexEdgesQuery(vertexQuery));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Stream<Edge>> queryVertexAsync(VertexQuery vertexQuery) {
+        int maxIds = this.configuration.getMaxIdsPerRequest();
+
+        if (vertexQuery.getVertexIds().size() <= maxIds) {
+            return this.queryAsync(createVertexEdgesQuery(vertexQuery));
+        }
+
+        List<Query<Edge>> chunks = createVertexEdgesQueries(vertexQuery, maxIds);
+
+        // an edge between vertices of different chunks is matched by both chunks
+        return this.queryChunksAsync(vertexQuery, chunks, vertexQuery.getDirection() == Direction.BOTH);
+    }
+
+    /**
+     * Searches the edges of the queried vertices without their source,
+     * reading only their in-id and out-id fields from the doc values, so no edge is created.
+     * Queries which need the edges themselves, to test predicates the search does not enforce exactly
+     * or to merge the results of chunks, are answered from the edges instead
+     */
+    @Override
+    public CompletableFuture<Stream<Pair<String, String>>> queryVertexNeighborsAsync(VertexQuery vertexQuery) {
+        if (vertexQuery.getVertexIds().isEmpty() || vertexQuery.getPredicates().isUnsatisfiable()) {
+            return CompletableFuture.completedFuture(Stream.empty());
+        }
+
+        List<Query<Edge>> chunks = createVertexEdgesQueries(vertexQuery, this.configuration.getMaxIdsPerRequest());
+        boolean isMerged = chunks.size() > 1 &&
+                (vertexQuery.getDirection() == Direction.BOTH || !vertexQuery.getOrders().isEmpty());
+
+        if (isMerged || !getResidualPredicates(chunks.get(0)).isEmpty()) {
+            return Backend.super.queryVertexNeighborsAsync(vertexQuery);
+        }
+
+        return ChunkedQueries.runChunks(chunks, this::searchNeighborsAsync, this.configuration.getMaxChunksInFlight())
+                .thenApply(results -> {
+                    Stream<Pair<String, String>> neighbors = results.stream()
+                            .flatMap(chunkNeighbors -> chunkNeighbors)
+                            .onClose(() -> results.forEach(Stream::close));
+
+                    return vertexQuery.getLimit() >= 0 ? neighbors.limit(vertexQuery.getLimit()) : neighbors;
+                });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Stream<Vertex> getVerticesDeferred(Set<Object> vertexIds, Set<String> propertyKeys) {
+        DeferredVerticesContainer container = new DeferredVerticesContainer(vertexIds, propertyKeys, this,
+                this.configuration.getVertexPropertiesCache(), this.configuration.getNegativeCache());
+
+        return vertexIds.stream()
+                .map(vertexId -> this.elementCreator.createDeferredVertex(
+                        vertexId.toString(), container.makeVertexPropertiesMap(vertexId), this));
+    }
+
+    /**
+     * Loads the given vertices of deferred vertices by multi-get requests, which tell apart the vertices which do not exist
+     * from those whose lookup failed. The ids are sent in chunks of up to the multi-get max ids,
+     * or of up to the max ids per request if multi-get lookups are disabled
+     *
+     * @param vertexIds Ids of the vertices to load
+     * @param propertyKeys Keys of the properties to load, or {@link Query#allLabels()} to load all of them
+     * @param found Called with each vertex which was found
+     * @param missing Called with the id of each vertex which was confirmed not to exist.
+     *                Vertices whose lookup failed are passed to neither callback
+     */
+    void loadVertices(Set<Object> vertexIds, Set<String> propertyKeys, Consumer<Vertex> found, Consumer<String> missing) {
+        Query<Vertex> query = new Query<>(Vertex.class, ElementUtils.createIdsPredicate(vertexIds),
+                Query.noLimit(), propertyKeys, Query.noOrders());
+
+        List<String> ids = vertexIds.stream()
+                .map(Object::toString)
+                .distinct()
+                .collect(Collectors.toList());
+
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        int chunkSize = this.configuration.getMultiGetMaxIds() > 0 ?
+                this.configuration.getMultiGetMaxIds() : this.configuration.getMaxIdsPerRequest();
+
+        ChunkedQueries.runChunks(Lists.partition(ids, chunkSize), chunk -> this.multiGetAsync(query, chunk),
+                this.configuration.getMaxChunksInFlight())
+                .join()
+                .forEach(documents -> documents.forEach(document -> {
+                    if (document.failure != null) {
+                        logger.warn("Failed to get vertex '{}' due to inner exception: {}", document.id, document.failure);
+                    } else if (document.exists) {
+                        found.accept(this.createElement(Vertex.class, document.id, document.source));
+                    } else {
+                        missing.accept(document.id);
+                    }
+                }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public NegativeCache getNegativeCache() {
+        return this.configuration.getNegativeCache();
+    }
+
+    /**
+     * Given a {@link Query}, looks its ids up or searches it in Elasticsearch,
+     * then tests the results against the residual predicates of the query
+     *
+     * @return Collection of result elements ({@link Vertex}s or {@link Edge}s)
+     */
+    @Override
+    public <E extends Element> Stream<E> query(Query<E> query) {
+        logger.debug("Running query: {}", query);
+
+        if (query.getPredicates().isUnsatisfiable()) {
+            return Stream.empty();
+        }
+
+        Collection<?> multiGetIds = getMultiGetIds(query);
+
+        if (multiGetIds != null) {
+            // Elasticsearch rejects a multi-get of no documents
+            return multiGetIds.isEmpty() ? Stream.empty() :
+                    this.createMultiGetElements(query, this.multiGetAsync(query, multiGetIds).join());
+        }
+
+        List<Query<E>> chunks = ChunkedQueries.split(query, ID_KEYS, this.configuration.getMaxIdsPerRequest());
+
+        if (chunks != null) {
+            return this.queryChunksAsync(query, chunks, false).join();
+        }
+
+        return this.search(query);
+    }
+
+    /**
+     * Same as {@link #query(Query)}, but the calling thread is not blocked until the first page arrives
+     *
+     * @return Future of the result elements ({@link Vertex}s or {@link Edge}s)
+     */
+    @Override
+    public <E extends Element> CompletableFuture<Stream<E>> queryAsync(Query<E> query) {
+        logger.debug("Running async query: {}", query);
+
+        if (query.getPredicates().isUnsatisfiable()) {
+            return CompletableFuture.completedFuture(Stream.empty());
+        }
+
+        Collection<?> multiGetIds = getMultiGetIds(query);
+
+        if (multiGetIds != null) {
+            // Elasticsearch rejects a multi-get of no documents
+            return multiGetIds.isEmpty() ? CompletableFuture.completedFuture(Stream.empty()) : this.multiGetAsync(query, multiGetIds)
+                    .thenApply(documents -> this.createMultiGetElements(query, documents));
+        }
+
+        List<Query<E>> chunks = ChunkedQueries.split(query, ID_KEYS, this.configuration.getMaxIdsPerRequest());
+
+        if (chunks != null) {
+            return this.queryChunksAsync(query, chunks, false);
+        }
+
+        return this.searchAsync(query);
+    }
+
+    /**
+     * Runs the given queries together: the searches of those which are neither looked up by ids, split nor scrolled
+     * are sent in a single multi-search, and the rest are run as in {@link #queryAsync(Query)}
+     *
+     * @return Future of the result elements per each query, in the order of the queries
+     */
+    @Override
+    public List<CompletableFuture<Stream<? extends Element>>> queryBatch(List<Query<?>> queries) {
+        List<CompletableFuture<Stream<? extends Element>>> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+        List<Integer> searchIndices = new ArrayList<>();
+        List<Query<?>> searches = new ArrayList<>();
+
+        for (int i = 0; i < queries.size(); i++) {
+            Query<?> query = queries.get(i);
+
+            if (isMultiSearchable(query)) {
+                searchIndices.add(i);
+                searches.add(query);
+            } else {
+                results.set(i, this.queryAsync(query).thenApply(elements -> elements));
+            }
+        }
+
+        if (searches.size() == 1) {
+            results.set(searchIndices.get(0), this.queryAsync(searches.get(0)).thenApply(elements -> elements));
+        } else if (!searches.isEmpty()) {
+            logger.debug("Running multi-search of {} queries: {}", searches.size(), searches);
+
+            List<CompletableFuture<Stream<? extends Element>>> searchResults = this.multiSearchAsync(searches);
+
+            for (int i = 0; i < searches.size(); i++) {
+                results.set(searchIndices.get(i), searchResults.get(i));
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * Whether the given query is run by a single search request, which is not scrolled,
+     * so it may be sent in a multi-search together with other queries
+     */
+    private <E extends Element> boolean isMultiSearchable(Query<E> query) {
+        return !query.getPredicates().isUnsatisfiable() &&
+                getMultiGetIds(query) == null &&
+                ChunkedQueries.split(query, ID_KEYS, this.configuration.getMaxIdsPerRequest()) == null &&
+                !isScrolled(query);
+    }
+
+    /**
+     * Counts the documents matching the query with a search of no hits.
+     * Queries over many ids are counted in chunks, which are summed up.
+     * Queries with predicates Elasticsearch does not enforce exactly are counted by retrieving their results,
+     * as the number of documents would include those which fail the predicates
+     *
+     * @return Number of documents matching the query, up to its limit
+     */
+    @Override
+    public <E extends Element> long count(Query<E> query) {
+        logger.debug("Counting query: {}", query);
+
+        if (query.getPredicates().isUnsatisfiable()) {
+            return 0L;
+        }
+
+        if (!this.canCount(query)) {
+            try (Stream<E> elements = this.query(query)) {
+                return elements.count();
+            }
+        }
+
+        long count = ChunkedQueries.runChunks(this.splitOrSingle(query), this::countAsync, this.configuration.getMaxChunksInFlight())
+                .join().stream()
+                .mapToLong(Long::longValue)
+                .sum();
+
+        return query.getLimit() >= 0 ? Math.min(count, query.getLimit()) : count;
+    }
+
+    /**
+     * Groups the documents matching the query with a terms aggregation over the field of the given key.
+     * Queries over many ids are aggregated in chunks, which are summed up.
+     * Queries which cannot be grouped by Elasticsearch, as in {@link #canGroupCount(Query, String)},
+     * are grouped by retrieving their results
+     *
+     * @return Number of documents matching the query per each field value
+     */
+    @Override
+    public <E extends Element> Map<Object, Long> groupCount(Query<E> query, String key) {
+        logger.debug("Grouping query by '{}': {}", key, query);
+
+        Map<Object, Long> groups = new HashMap<>();
+
+        if (query.getPredicates().isUnsatisfiable()) {
+            return groups;
+        }
+
+        // vertices are all of the default label, which is not stored in their documents
+        if (ElementUtils.isVertex(query.getReturnType()) && key.equals(T.label.getAccessor())) {
+            long count = this.count(query);
+
+            if (count > 0) {
+                groups.put(Vertex.DEFAULT_LABEL, count);
+            }
+
+            return groups;
+        }
+
+        if (!this.canGroupCount(query, key)) {
+            try (Stream<E> elements = this.query(query)) {
+                elements.forEach(element -> {
+                    Object group = key.equals(T.label.getAccessor()) ? element.label() :
+                            element.property(key).isPresent() ? element.value(key) : null;
+
+                    // as in a terms aggregation, elements without the property are not grouped
+                    if (group != null) {
+                        groups.merge(group, 1L, Long::sum);
+                    }
+                });
+            }
+
+            return groups;
+        }
+
+        ChunkedQueries.runChunks(this.splitOrSingle(query), chunk -> this.groupCountAsync(chunk, key), this.configuration.getMaxChunksInFlight())
+                .join()
+                .forEach(chunkGroups -> chunkGroups.forEach((group, count) -> groups.merge(group, count, Long::sum)));
+
+        return groups;
+    }
+
+    /**
+     * Runs the chunks of a split query concurrently, up to the configured number of chunks at once,
+     * and merges their results
+     *
+     * @param query Original query, which was split
+     * @param chunks Queries over parts of the original query ids
+     * @param distinct Whether elements may be matched by more than one chunk
+     * @return Future of the merged result elements
+     */
+    <E extends Element> CompletableFuture<Stream<E>> queryChunksAsync(Query<E> query, List<Query<E>> chunks, boolean distinct) {
+        logger.debug("Running query in {} chunks: {}", chunks.size(), query);
+
+        return ChunkedQueries.runChunks(chunks, this::queryAsync, this.configuration.getMaxChunksInFlight())
+                .thenApply(results -> ChunkedQueries.merge(query, results, distinct));
+    }
+
+    /**
+     * Whether all of the predicates of the query are enforced exactly by Elasticsearch,
+     * so its documents are counted without retrieving them
+     */
+    @Override
+    public <E extends Element> boolean canCount(Query<E> query) {
+        return getResidualPredicates(query).isEmpty();
+    }
+
+    /**
+     * Whether the query is counted by Elasticsearch, as in {@link #canCount(Query)}, and is grouped by the label
+     * or by a keyword property, whose terms are its values. Other fields are aggregated by their indexed terms,
+     * such as the tokens of analyzed strings. Keyword properties are expected to hold single values,
+     * as the values of a list are aggregated one by one
+     */
+    @Override
+    public <E extends Element> boolean canGroupCount(Query<E> query, String key) {
+        return this.canCount(query) &&
+                (key.equals(T.label.getAccessor()) || this.configuration.getKeywordPropertyKeys().contains(key));
+    }
+
+    /**
+     * Converts the key of a terms aggregation bucket back to the property value it was aggregated from,
+     * of the type the value is read from the source with: booleans are keyed by 1 and 0 and are read from their string keys,
+     * whole numbers are read as Integer when they fit and as Long otherwise, and decimals as Double
+     *
+     * @param key Key of the bucket
+     * @param keyAsString String key of the bucket, or null if it has none
+     */
+    static Object getGroup(Object key, String keyAsString) {
+        if (key instanceof Number && ("true".equals(keyAsString) || "false".equals(keyAsString))) {
+            return Boolean.valueOf(keyAsString);
+        }
+
+        if (key instanceof Long || key instanceof Integer) {
+            long value = ((Number) key).longValue();
+
+            if (value == (int) value) {
+                return (int) value;
+            }
+
+            return value;
+        }
+
+        if (key instanceof Number) {
+            return ((Number) key).doubleValue();
+        }
+
+        return keyAsString != null ? keyAsString : key;
+    }
+
+    /**
+     * Splits a query over many ids to chunks, or returns the query itself if it should not be split
+     */
+    private <E extends Element> List<Query<E>> splitOrSingle(Query<E> query) {
+        List<Query<E>> chunks = ChunkedQueries.split(query, ID_KEYS, this.configuration.getMaxIdsPerRequest());
+
+        return chunks != null ? chunks : Collections.singletonList(query);
+    }
+
+    /**
+     * Returns the predicates of the given query which are not enforced exactly by its search request,
+     * and should be tested against the results
+     */
+    <E extends Element> PredicatesTree getResidualPredicates(Query<E> query) {
+        return query.getPredicates().residual(this.queryCreator::isExact);
+    }
+
+    /**
+     * Returns the predicates of the given query which are not enforced by looking its ids up,
+     * and should be tested against the results
+     */
+    <E extends Element> PredicatesTree getMultiGetResidualPredicates(Query<E> query) {
+        return query.getPredicates().residual(predicate ->
+                predicate.getKey().equals(T.id.getAccessor()) && this.queryCreator.isExact(predicate));
+    }
+
+    /**
+     * Given a query, returns the ids to look up by multi-get instead of searching,
+     * or null if the query should be searched.
+     * Multi-get is used for unordered queries whose top-level 'and' is an ids predicate,
+     * optionally with simple predicates which are then tested client-side.
+     * The ids are returned once each, in their string form
+     */
+    <E extends Element> Collection<?> getMultiGetIds(Query<E> query) {
+        PredicatesTree predicates = query.getPredicates();
+
+        if ((query.getOrders() != null && !query.getOrders().isEmpty()) || !predicates.isAnd()
+                || !predicates.hasPredicates() || predicates.hasChildren()) {
+            return null;
+        }
+
+        // with a routing policy, edges are routed by the ids of their vertices, so they can not be got by their own ids
+        if (ElementUtils.isEdge(query.getReturnType()) && this.configuration.getRoutingPolicy() != RoutingPolicy.NONE) {
+            return null;
+        }
+
+        Collection<?> ids = null;
+
+        for (HasContainer predicate : predicates.predicates()) {
+            if (ids == null && predicate.getKey().equals(T.id.getAccessor())) {
+                ids = getEqualityValues(predicate);
+
+                if (ids == null) {
+                    return null;
+                }
+            } else if (!(predicate.getBiPredicate() instanceof Compare || predicate.getBiPredicate() instanceof Contains)) {
+                return null;
+            }
+        }
+
+        if (ids == null) {
+            return null;
+        }
+
+        int maxIds = predicates.predicates().size() == 1 ?
+                this.configuration.getMultiGetMaxIds() : this.configuration.getMultiGetFilterMaxIds();
+
+        if (ids.size() > maxIds) {
+            return null;
+        }
+
+        // ids are looked up by their string form, so ids of different types may get the same document
+        return ids.stream()
+                .map(Object::toString)
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Given the documents of a multi-get response, returns a {@link Stream} of the found elements
+     * which pass the query predicates, up to the query limit
+     */
+    private <E extends Element> Stream<E> createMultiGetElements(Query<E> query, List<MultiGetDocument> documents) {
+        Class<E> returnType = query.getReturnType();
+        PredicatesTree residual = getMultiGetResidualPredicates(query);
+
+        Stream<E> elements = documents.stream()
+                .filter(document -> {
+                    if (document.failure != null) {
+                        logger.warn("Failed to get '{}' due to inner exception: {}", document.id, document.failure);
+                    }
+
+                    return document.failure == null && document.exists;
+                })
+                .map(document -> createElement(returnType, document.id, document.source))
+                .filter(element -> query.test(element, residual));
+
+        return query.getLimit() >= 0 ? elements.limit(query.getLimit()) : elements;
+    }
+
+    /**
+     * Given element type, id and properties,
+     * creates an instance of {@link Vertex} or {@link Edge} accordingly
+     *
+     * @return New instance of a Vertex of Edge, according to the given element type
+     */
+    @SuppressWarnings("unchecked")
+    <E extends Element> E createElement(Class<E> elementType, String elementId, Map<String, Object> properties) {
+        if (ElementUtils.isEdge(elementType)) {
+            String outVertexId = properties.get(EDGE_OUT_VERTEX_PROPERTY).toString();
+            String inVertexId = properties.get(EDGE_IN_VERTEX_PROPERTY).toString();
+            String label = properties.getOrDefault(EDGE_LABEL_PROPERTY, Edge.DEFAULT_LABEL).toString();
+
+            Vertex outVertex = this.elementCreator.createVertexFromId(outVertexId, this);
+            Vertex inVertex = this.elementCreator.createVertexFromId(inVertexId, this);
+
+            return (E) this.elementCreator.createEdge(elementId, label, properties, outVertex, inVertex, this);
+        } else if (ElementUtils.isVertex(elementType)) {
+            return (E) this.elementCreator.createVertex(elementId, properties, this);
+        }
+
+        throw new IllegalStateException(String.format("Cannot create an element of type '%s'", elementType));
+    }
+
+    /**
+     * Converts a {@link VertexQuery} to an edges {@link Query},
+     * matching the edge documents of the queried vertices
+     */
+    static Query<Edge> createVertexEdgesQuery(VertexQuery vertexQuery) {
+        PredicatesTree vertexPredicates = createVertexEdgesPredicates(vertexQuery.getVertexIds(), vertexQuery.getDirection());
+        PredicatesTree mergedPredicates = PredicatesTree.and(vertexPredicates, vertexQuery.getPredicates()); // order is critical
+
+        return new Query<>(Edge.class, mergedPredicates, vertexQuery.getLimit(), vertexQuery.getLabels(), vertexQuery.getOrders());
+    }
+
+    /**
+     * Converts a {@link VertexQuery} to edges queries, each over up to the given number of the queried vertices
+     */
+    static List<Query<Edge>> createVertexEdgesQueries(VertexQuery vertexQuery, int maxIds) {
+        List<Query<Edge>> chunks = Lists.newArrayList();
+
+        for (List<Object> vertexIds : Iterables.partition(vertexQuery.getVertexIds(), maxIds)) {
+            VertexQuery chunk = new VertexQuery(Sets.newHashSet(vertexIds), vertexQuery.getDirection(), vertexQuery.getPredicates(),
+                    vertexQuery.getLimit(), vertexQuery.getLabels(), vertexQuery.getOrders());
+
+            chunks.add(createVertexEdgesQuery(chunk));
+        }
+
+        return chunks;
+    }
+
+    /**
+     * Given vertex-ids and any direction,
+     * creates predicates matching the edge documents in-id/out-id
+     */
+    private static PredicatesTree createVertexEdgesPredicates(Set<Object> vertexIds, Direction direction) {
+        if (direction == Direction.BOTH) {
+            return PredicatesTree.or(
+                    createVertexInOutPredicates(vertexIds, Direction.IN),
+                    createVertexInOutPredicates(vertexIds, Direction.OUT));
+        }
+
+        return createVertexInOutPredicates(vertexIds, direction);
+    }
+
+    /**
+     * Given vertex-ids and a direction which is in/out,
+     * creates predicates matching the edge documents in-id/out-id
+     */
+    private static PredicatesTree createVertexInOutPredicates(Set<Object> vertexIds, Direction direction) {
+        String propertyName = direction == Direction.IN ? EDGE_IN_VERTEX_PROPERTY : EDGE_OUT_VERTEX_PROPERTY;
+        HasContainer idsPredicate = new HasContainer(propertyName, P.within(vertexIds));
+
+        return PredicatesTree.createFromPredicates(idsPredicate);
+    }
+
+    /**
+     * Given a query, returns the routing of the documents it may match, according to the routing policy.
+     * Routing is determined from a top-level 'and' predicate over the ids the documents are routed by
+     *
+     * @return Routing values, or null if the query should be sent to all shards
+     */
+    static <E extends Element> String[] determineRouting(Query<E> query, RoutingPolicy routingPolicy) {
+        PredicatesTree predicates = query.getPredicates();
+
+        if (!predicates.isAnd() || !predicates.hasPredicates()) {
+            return null;
+        }
+
+        for (HasContainer predicate : predicates.predicates()) {
+            Function<Object, String> routingFunction = getRoutingFunction(routingPolicy, query.getReturnType(), predicate.getKey());
+            Collection<?> ids = getEqualityValues(predicate);
+
+            if (routingFunction == null || ids == null || ids.isEmpty()) {
+                continue;
+            }
+
+            Set<String> routing = new HashSet<>();
+
+            for (Object id : ids) {
+                String idRouting = routingFunction.apply(id);
+
+                if (idRouting == null) {
+                    routing = null;
+                    break;
+                }
+
+                routing.add(idRouting);
+            }
+
+            if (routing != null) {
+                return routing.toArray(new String[routing.size()]);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Given an element type and a predicate key, returns a function from the key values to their routing,
+     * or null if documents are not routed by that key
+     */
+    private static <E extends Element> Function<Object, String> getRoutingFunction(RoutingPolicy routingPolicy, Class<E> elementType, String key) {
+        if (ElementUtils.isVertex(elementType) && key.equals(T.id.getAccessor())) {
+            return routingPolicy::vertexRouting;
+        }
+
+        if (ElementUtils.isEdge(elementType) && key.equals(EDGE_OUT_VERTEX_PROPERTY)) {
+            return vertexId -> routingPolicy.edgeRouting(vertexId, Direction.OUT);
+        }
+
+        if (ElementUtils.isEdge(elementType) && key.equals(EDGE_IN_VERTEX_PROPERTY)) {
+            return vertexId -> routingPolicy.edgeRouting(vertexId, Direction.IN);
+        }
+
+        return null;
+    }
+
+    /**
+     * Given an 'eq' or 'within' predicate, returns the values it accepts,
+     * or null if it is any other predicate
+     */
+    private static Collection<?> getEqualityValues(HasContainer predicate) {
+        BiPredicate<?, ?> biPredicate = predicate.getBiPredicate();
+        Object value = predicate.getValue();
+
+        if (biPredicate == Compare.eq && value != null) {
+            return Collections.singleton(value);
+        }
+
+        if (biPredicate == Contains.within && value instanceof Collection) {
+            return (Collection<?>) value;
+        }
+
+        return null;
+    }
+
+    /**
+     * Whether only some of the properties were requested by the given query
+     */
+    static <E extends Element> boolean isProjected(Query<E> query) {
+        return query.getLabels() != null && !query.getLabels().isEmpty();
+    }
+
+    /**
+     * Given a projected query, returns the source fields to fetch:
+     * the requested properties, the properties its residual predicates are tested against,
+     * and for edges, the fields needed to create the edge
+     */
+    static <E extends Element> String[] getSourceFields(Query<E> query, PredicatesTree residual) {
+        Set<String> fields = new HashSet<>(query.getLabels());
+
+        residual.keys().forEach(key ->
+                fields.add(key.equals(T.label.getAccessor()) ? EDGE_LABEL_PROPERTY : key));
+        fields.remove(T.id.getAccessor());
+
+        if (ElementUtils.isEdge(query.getReturnType())) {
+            fields.add(EDGE_IN_VERTEX_PROPERTY);
+            fields.add(EDGE_OUT_VERTEX_PROPERTY);
+            fields.add(EDGE_LABEL_PROPERTY);
+        }
+
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    /**
+     * Whether the results of the given query should be fetched by scrolling.
+     * A query with residual predicates is scrolled regardless of its limit,
+     * since a page of its limit size may hold less results than the limit after they are tested
+     */
+    <E extends Element> boolean isScrolled(Query<E> query) {
+        return query.getLimit() < 0 || query.getLimit() > MAX_RESULT_WINDOW || !getResidualPredicates(query).isEmpty();
+    }
+
+    /**
+     * Given a query, returns the index it should be queried from
+     */
+    static <E extends Element> String determineIndex(Query<E> query) {
+        if (ElementUtils.isEdge(query.getReturnType())) {
+            return EDGES_INDICES;
+        } else if (ElementUtils.isVertex(query.getReturnType())) {
+            return VERTICES_INDICES;
+        }
+
+        throw new IllegalStateException(String.format("Cannot execute query with '%s' return type", query.getReturnType()));
+    }
+
+    @Override
+    public void close() {
+        this.requestExecutor.shutdown();
+    }
+}
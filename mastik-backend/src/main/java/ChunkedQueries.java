@@ -0,0 +1,215 @@
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import org.apache.tinkerpop.gremlin.process.traversal.Contains;
+import org.apache.tinkerpop.gremlin.process.traversal.Order;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.Property;
+import org.apache.tinkerpop.gremlin.structure.T;
+import org.javatuples.Pair;
+import org.mastik.StreamUtils;
+import org.mastik.query.PredicatesTree;
+import org.mastik.query.Query;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Splits queries over large id sets into smaller queries,
+ * and merges the results of the smaller queries back together
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/9/17
+ */
+class ChunkedQueries {
+    /**
+     * Given a query whose top-level 'and' has a 'within' predicate over one of the given keys,
+     * with more than 'maxIds' values, splits it to queries of up to 'maxIds' values each
+     *
+     * @param query Query to split
+     * @param idKeys Keys of id predicates which may be split
+     * @param maxIds Largest number of ids in a single query
+     * @return Split queries, or null if the query should not be split
+     */
+    static <E extends Element> List<Query<E>> split(Query<E> query, Set<String> idKeys, int maxIds) {
+        PredicatesTree predicates = query.getPredicates();
+
+        if (!predicates.isAnd() || !predicates.hasPredicates()) {
+            return null;
+        }
+
+        List<HasContainer> hasContainers = predicates.predicates();
+
+        for (int i = 0; i < hasContainers.size(); i++) {
+            HasContainer predicate = hasContainers.get(i);
+
+            if (!idKeys.contains(predicate.getKey()) || predicate.getBiPredicate() != Contains.within
+                    || !(predicate.getValue() instanceof Collection) || ((Collection) predicate.getValue()).size() <= maxIds) {
+                continue;
+            }
+
+            List<Query<E>> queries = Lists.newArrayList();
+            int predicateIndex = i;
+
+            for (List<?> ids : Iterables.partition((Collection<?>) predicate.getValue(), maxIds)) {
+                List<HasContainer> chunkPredicates = Lists.newArrayList(hasContainers);
+                chunkPredicates.set(predicateIndex, new HasContainer(predicate.getKey(), P.within(Lists.newArrayList(ids))));
+
+                PredicatesTree chunkTree = PredicatesTree.createAnd(chunkPredicates, predicates.hasChildren() ? predicates.children() : null);
+                queries.add(new Query<>(query.getReturnType(), chunkTree, query.getLimit(), query.getLabels(), query.getOrders()));
+            }
+
+            return queries;
+        }
+
+        return null;
+    }
+
+    /**
+     * Runs the given request per each of the split queries, with up to 'maxInFlight' requests running at once.
+     * Each completed request starts the request of the next split query
+     *
+     * @param chunks Split queries
+     * @param request Sends the request of a single split query
+     * @param maxInFlight Largest number of requests running at once
+     * @return Future of the result of each of the split queries, in their order
+     */
+    static <Q, R> CompletableFuture<List<R>> runChunks(List<Q> chunks, Function<Q, CompletableFuture<R>> request, int maxInFlight) {
+        List<CompletableFuture<R>> results = chunks.stream()
+                .map(chunk -> new CompletableFuture<R>())
+                .collect(Collectors.toList());
+        AtomicInteger nextChunk = new AtomicInteger();
+
+        for (int i = 0; i < Math.min(Math.max(maxInFlight, 1), chunks.size()); i++) {
+            runNextChunk(chunks, request, results, nextChunk);
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[results.size()]))
+                .thenApply(ignored -> results.stream()
+                        .map(CompletableFuture::join)
+                        .collect(Collectors.toList()));
+    }
+
+    private static <Q, R> void runNextChunk(List<Q> chunks, Function<Q, CompletableFuture<R>> request,
+                                            List<CompletableFuture<R>> results, AtomicInteger nextChunk) {
+        int index = nextChunk.getAndIncrement();
+
+        if (index >= chunks.size()) {
+            return;
+        }
+
+        CompletableFuture<R> future;
+
+        try {
+            future = request.apply(chunks.get(index));
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        future.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                results.get(index).completeExceptionally(throwable);
+            } else {
+                results.get(index).complete(result);
+            }
+
+            runNextChunk(chunks, request, results, nextChunk);
+        });
+    }
+
+    /**
+     * Merges the results of split queries to a single stream, which closes all of them once it is closed.
+     * If the original query is ordered, the results are merged by its orders
+     *
+     * @param query Original query, which was split
+     * @param results Results of each of the split queries
+     * @param distinct Whether an element may be returned by more than one split query, and should be returned once
+     * @return Merged results, up to the limit of the original query
+     */
+    static <E extends Element> Stream<E> merge(Query<E> query, List<Stream<E>> results, boolean distinct) {
+        Stream<E> merged;
+
+        if (query.getOrders() != null && !query.getOrders().isEmpty()) {
+            List<Iterator<E>> iterators = results.stream()
+                    .map(Stream::iterator)
+                    .collect(Collectors.toList());
+
+            merged = StreamUtils.toStream(Iterators.mergeSorted(iterators, createComparator(query.getOrders())));
+        } else {
+            merged = results.stream().flatMap(chunkResults -> chunkResults);
+        }
+
+        if (distinct) {
+            Set<Object> returnedIds = new HashSet<>();
+            merged = merged.filter(element -> returnedIds.add(element.id()));
+        }
+
+        merged = merged.onClose(() -> results.forEach(Stream::close));
+
+        return query.getLimit() >= 0 ? merged.limit(query.getLimit()) : merged;
+    }
+
+    /**
+     * Creates a comparator matching the Elasticsearch sort of the given orders,
+     * where elements missing a sort property are last, and numbers of different types are compared by value
+     */
+    private static <E extends Element> Comparator<E> createComparator(List<Pair<String, Order>> orders) {
+        Comparator<E> comparator = (first, second) -> 0;
+
+        for (Pair<String, Order> order : orders) {
+            if (order.getValue1() != Order.incr && order.getValue1() != Order.decr) {
+                continue;
+            }
+
+            String key = order.getValue0();
+            Comparator<Object> valuesComparator = order.getValue1() == Order.incr ?
+                    ChunkedQueries::compareValues : Collections.reverseOrder(ChunkedQueries::compareValues);
+
+            comparator = comparator.thenComparing(element -> getSortValue(element, key), Comparator.nullsLast(valuesComparator));
+        }
+
+        return comparator;
+    }
+
+    /**
+     * Returns the value an element is sorted by, or null if it is missing
+     */
+    private static Object getSortValue(Element element, String key) {
+        if (key.equals(T.id.getAccessor())) {
+            return element.id();
+        }
+
+        Property<Object> property = element.property(key);
+
+        return property.isPresent() ? property.value() : null;
+    }
+
+    /**
+     * Compares two sort values. Integral numbers are compared as longs and other numbers as doubles,
+     * as Elasticsearch sorts them, so values of different number types never fail to compare
+     */
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object first, Object second) {
+        if (first instanceof Number && second instanceof Number) {
+            Number firstNumber = (Number) first;
+            Number secondNumber = (Number) second;
+
+            return isIntegral(firstNumber) && isIntegral(secondNumber) ?
+                    Long.compare(firstNumber.longValue(), secondNumber.longValue()) :
+                    Double.compare(firstNumber.doubleValue(), secondNumber.doubleValue());
+        }
+
+        return ((Comparable<Object>) first).compareTo(second);
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+}
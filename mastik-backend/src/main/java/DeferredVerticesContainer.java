@@ -1,13 +1,14 @@
 import com.google.common.collect.Maps;
 import org.apache.tinkerpop.gremlin.structure.Property;
-import org.apache.tinkerpop.gremlin.structure.Vertex;
 import org.apache.tinkerpop.gremlin.structure.VertexProperty;
-import org.mastik.Backend;
 import org.mastik.StreamUtils;
+import org.mastik.cache.NegativeCache;
+import org.mastik.cache.VertexPropertiesCache;
 import org.mastik.query.Query;
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -19,14 +20,30 @@ import java.util.stream.Collectors;
  * @since 1/7/17
  */
 class DeferredVerticesContainer {
-    private Query<Vertex> verticesQuery;
-    private Backend backend;
-    private Map<Object, Map<String, VertexProperty>> verticesProperties;
-
-    DeferredVerticesContainer(Query<Vertex> verticesQuery, Backend backend) {
+    private Set<Object> vertexIds;
+    private Set<String> propertyKeys;
+    private BaseElasticsearchBackend backend;
+    private VertexPropertiesCache cache;
+    private NegativeCache negativeCache;
+    /**
+     * Properties of the loaded vertices, keyed by the string form of their ids, as the ids of loaded vertices are
+     */
+    private Map<String, Map<String, VertexProperty>> verticesProperties;
 
-        this.verticesQuery = verticesQuery;
+    /**
+     * @param vertexIds Ids of the deferred vertices
+     * @param propertyKeys Keys of the properties to load, or {@link Query#allLabels()} to load all of them
+     * @param backend Backend to load the properties from
+     * @param cache Cache of vertex properties shared by all containers, or null if properties are not cached
+     * @param negativeCache Cache the vertices which were not found are recorded by, or null if they are not recorded
+     */
+    DeferredVerticesContainer(Set<Object> vertexIds, Set<String> propertyKeys, BaseElasticsearchBackend backend, VertexPropertiesCache cache,
+                              NegativeCache negativeCache) {
+        this.vertexIds = vertexIds;
+        this.propertyKeys = propertyKeys;
         this.backend = backend;
+        this.cache = cache;
+        this.negativeCache = negativeCache;
         this.verticesProperties = null;
     }
 
@@ -42,7 +59,7 @@ class DeferredVerticesContainer {
             query();
         }
 
-        Map<String, VertexProperty> vertexProperties = this.verticesProperties.remove(vertexId);
+        Map<String, VertexProperty> vertexProperties = this.verticesProperties.get(vertexId.toString());
 
         if (vertexProperties == null) {
             return Collections.emptyMap();
@@ -52,14 +69,49 @@ class DeferredVerticesContainer {
     }
 
     /**
-     * Runs the stored query and populates 'verticesProperties'
+     * Populates 'verticesProperties' from the cache, and loads the properties of the vertices which were not cached.
+     * Vertices confirmed not to exist are cached as having no properties, and are recorded by the negative cache.
+     * Vertices whose lookup failed are neither, so they are loaded again next time
      */
+    @SuppressWarnings("rawtypes")
     private void query() {
         this.verticesProperties = Maps.newHashMap();
 
-        this.backend.query(this.verticesQuery)
-            .forEach(vertex -> this.verticesProperties.put(vertex.id(), StreamUtils.toStream(vertex.properties())
-                    .collect(Collectors.toMap(Property::key, property -> property))));
+        Set<Object> uncachedIds = new HashSet<>();
+
+        for (Object vertexId : this.vertexIds) {
+            Map<String, VertexProperty> cachedProperties = this.cache != null ? this.cache.get(vertexId, this.propertyKeys) : null;
+
+            if (cachedProperties != null) {
+                this.verticesProperties.put(vertexId.toString(), cachedProperties);
+            } else {
+                uncachedIds.add(vertexId);
+            }
+        }
+
+        if (uncachedIds.isEmpty()) {
+            return;
+        }
+
+        this.backend.loadVertices(uncachedIds, this.propertyKeys,
+                vertex -> {
+                    Map<String, VertexProperty> properties = StreamUtils.toStream(vertex.properties())
+                            .collect(Collectors.toMap(Property::key, property -> property));
+                    this.verticesProperties.put(vertex.id().toString(), properties);
+
+                    if (this.cache != null) {
+                        this.cache.put(vertex.id(), this.propertyKeys, properties);
+                    }
+                },
+                vertexId -> {
+                    if (this.negativeCache != null) {
+                        this.negativeCache.markMissing(vertexId);
+                    }
+
+                    if (this.cache != null) {
+                        this.cache.put(vertexId, this.propertyKeys, Collections.emptyMap());
+                    }
+                });
     }
 
     /**
@@ -1,32 +1,44 @@
 import org.apache.tinkerpop.gremlin.process.traversal.Order;
-import org.apache.tinkerpop.gremlin.process.traversal.P;
-import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
-import org.apache.tinkerpop.gremlin.structure.Direction;
 import org.apache.tinkerpop.gremlin.structure.Edge;
 import org.apache.tinkerpop.gremlin.structure.Element;
-import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
 import org.elasticsearch.search.sort.SortOrder;
-import org.mastik.Backend;
+import org.javatuples.Pair;
 import org.mastik.ElementCreator;
 import org.mastik.ElementUtils;
 import org.mastik.StreamUtils;
 import org.mastik.query.PredicatesTree;
 import org.mastik.query.Query;
-import org.mastik.query.VertexQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
 import java.net.InetAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -35,107 +47,147 @@ import java.util.stream.Stream;
  * @author imriqwe (imriqwe@gmail.com)
  * @since 12/30/16
  */
-public class ElasticsearchBackend implements Backend, AutoCloseable {
-
-    private static final int DEFAULT_QUERY_LIMIT = 10000;
-    private static final String EDGES_INDICES = "graph-edges";
-    private static final String VERTICES_INDICES = "graph-vertices";
-    private static final String EDGE_IN_VERTEX_PROPERTY = "inid";
-    private static final String EDGE_OUT_VERTEX_PROPERTY = "outid";
-    private static final String EDGE_LABEL_PROPERTY = "label";
-
+public class ElasticsearchBackend extends BaseElasticsearchBackend {
     private static final Logger logger = LoggerFactory.getLogger(ElasticsearchBackend.class);
 
     private final Client client;
-    private final ElementCreator elementCreator;
-    private final ElasticsearchQueryCreator queryCreator;
+    private final ForkJoinPool decodingPool;
 
     public ElasticsearchBackend(Collection<String> clusterHosts, ElementCreator elementCreator) {
+        this(clusterHosts, elementCreator, new ElasticsearchBackendConfiguration());
+    }
+
+    public ElasticsearchBackend(Collection<String> clusterHosts, ElementCreator elementCreator, ElasticsearchBackendConfiguration configuration) {
+        super(elementCreator, configuration);
         this.client = createClient(clusterHosts);
-        this.elementCreator = elementCreator;
-        this.queryCreator = new ElasticsearchQueryCreator(EDGE_LABEL_PROPERTY);
+        this.decodingPool = configuration.getDecodingThreads() > 0 ? new ForkJoinPool(configuration.getDecodingThreads()) : null;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public Stream<Edge> queryVertex(VertexQuery vertexQuery) {
-        PredicatesTree vertexPredicates = createVertexEdgesPredicates(vertexQuery.getVertexIds(), vertexQuery.getDirection());
-        PredicatesTree mergedPredicates = PredicatesTree.and(vertexPredicates, vertexQuery.getPredicates()); // order is critical
+    CompletableFuture<Stream<Pair<String, String>>> searchNeighborsAsync(Query<Edge> query) {
+        SearchRequestBuilder search = this.createSearchRequest(query)
+                .setFetchSource(false)
+                .addFieldDataField(EDGE_OUT_VERTEX_PROPERTY)
+                .addFieldDataField(EDGE_IN_VERTEX_PROPERTY);
 
-        Query<Edge> query = new Query<>(Edge.class, mergedPredicates, vertexQuery.getLimit(), vertexQuery.getLabels(), vertexQuery.getOrders());
-        return this.query(query);
+        return executeAsync(search).thenApply(response -> this.createNeighbors(query, search, response));
     }
 
     /**
-     * {@inheritDoc}
+     * Given the response of a neighbors search, returns a {@link Stream} of the (out-vertex id, in-vertex id) of its hits.
+     * If the query is scrolled, the following pages are fetched lazily, as the stream is consumed
      */
-    @Override
-    public Stream<Vertex> getVerticesDeferred(Set<Object> vertexIds) {
-        PredicatesTree idsPredicate = ElementUtils.createIdsPredicate(vertexIds);
-        Query<Vertex> query = new Query<>(Vertex.class, idsPredicate, Query.noLimit(), Query.allLabels(), Query.noOrders());
+    private Stream<Pair<String, String>> createNeighbors(Query<Edge> query, SearchRequestBuilder search, SearchResponse searchResponse) {
+        if (searchResponse.status().getStatus() != 200) {
+            logger.warn("Request {} got {} response status, returned empty stream", search, searchResponse.status());
 
-        DeferredVerticesContainer container = new DeferredVerticesContainer(query, this);
+            return Stream.empty();
+        }
+
+        if (!isScrolled(query)) {
+            return Arrays.stream(searchResponse.getHits().getHits()).map(ElasticsearchBackend::getNeighbors);
+        }
 
-        return vertexIds.stream()
-                .map(vertexId -> elementCreator.createDeferredVertex(
-                        vertexId.toString(), container.makeVertexPropertiesMap(vertexId), this));
+        ScrollPagesIterator pages = new ScrollPagesIterator(this.client, searchResponse, this.configuration.getScrollKeepAlive());
+
+        Stream<Pair<String, String>> neighbors = StreamUtils.toStream(pages)
+                .flatMap(Arrays::stream)
+                .map(ElasticsearchBackend::getNeighbors)
+                .onClose(pages::close);
+
+        return query.getLimit() >= 0 ? neighbors.limit(query.getLimit()) : neighbors;
     }
 
     /**
-     * Given a {@link Query}, converts it to a {@link SearchRequestBuilder},
-     * sends it to Elasticsearch, then tests the results against the query
-     *
-     * @return Collection of result elements ({@link Vertex}s or {@link Edge}s)
+     * Given a hit of an edge, returns its (out-vertex id, in-vertex id) from its doc value fields
      */
-    @Override
-    public <E extends Element> Stream<E> query(Query<E> query) {
-        logger.debug("Running query: {}", query);
+    private static Pair<String, String> getNeighbors(SearchHit hit) {
+        SearchHitField outVertexId = hit.field(EDGE_OUT_VERTEX_PROPERTY);
+        SearchHitField inVertexId = hit.field(EDGE_IN_VERTEX_PROPERTY);
 
-        try {
-            return this.search(query.getReturnType(), this.createSearchRequest(query))
-                    .filter(element -> query.test(element, query.getPredicates()));
-        } catch (IOException e) {
-            throw new RuntimeException("Query failed due to an inner exception", e);
+        if (outVertexId == null || inVertexId == null) {
+            throw new IllegalStateException(String.format("Edge '%s' has no '%s' or '%s' field", hit.getId(),
+                    EDGE_OUT_VERTEX_PROPERTY, EDGE_IN_VERTEX_PROPERTY));
         }
+
+        return Pair.with(outVertexId.getValue().toString(), inVertexId.getValue().toString());
     }
 
     /**
-     * Given vertex-ids and any direction,
-     * creates predicates matching the edge documents in-id/out-id
+     * {@inheritDoc}
      */
-    private PredicatesTree createVertexEdgesPredicates(Set<Object> vertexIds, Direction direction) {
-        if (direction == Direction.BOTH) {
-            return PredicatesTree.or(
-                    createVertexInOutPredicates(vertexIds, Direction.IN),
-                    createVertexInOutPredicates(vertexIds, Direction.OUT));
-        }
+    @Override
+    <E extends Element> CompletableFuture<Long> countAsync(Query<E> query) {
+        return executeAsync(this.createCountRequest(query)).thenApply(response -> response.getHits().getTotalHits());
+    }
 
-        return createVertexInOutPredicates(vertexIds, direction);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    <E extends Element> CompletableFuture<Map<Object, Long>> groupCountAsync(Query<E> query, String key) {
+        return executeAsync(this.createGroupCountRequest(query, key)).thenApply(response -> {
+            Map<Object, Long> groups = new HashMap<>();
+            Terms terms = response.getAggregations().get(GROUP_COUNT_AGGREGATION);
+            terms.getBuckets().forEach(bucket -> groups.merge(getGroup(bucket.getKey(), bucket.getKeyAsString()), bucket.getDocCount(), Long::sum));
+
+            return groups;
+        });
     }
 
     /**
-     * Given vertex-ids and a direction which is in/out,
-     * creates predicates matching the edge documents in-id/out-id
+     * Creates a search request which returns no hits, only the number of documents per each value of the given key
      */
-    private PredicatesTree createVertexInOutPredicates(Set<Object> vertexIds, Direction direction) {
-        String propertyName = direction == Direction.IN ? EDGE_IN_VERTEX_PROPERTY : EDGE_OUT_VERTEX_PROPERTY;
-        HasContainer idsPredicate = new HasContainer(propertyName, P.within(vertexIds));
+    private <E extends Element> SearchRequestBuilder createGroupCountRequest(Query<E> query, String key) {
+        return this.createCountRequest(query)
+                .addAggregation(AggregationBuilders.terms(GROUP_COUNT_AGGREGATION)
+                        .field(this.queryCreator.getFieldName(key))
+                        .size(0)); // all terms
+    }
+
+    /**
+     * Creates a search request which returns no hits, only the number of documents matching the query.
+     * As it returns no hits, its response is cached by the shards until their data changes
+     */
+    private <E extends Element> SearchRequestBuilder createCountRequest(Query<E> query) {
+        SearchRequestBuilder searchRequestBuilder = this.client.prepareSearch(determineIndex(query))
+                .setQuery(this.queryCreator.createJsonFromPredicates(query.getPredicates()))
+                .setSize(0)
+                .setRequestCache(true);
+
+        String[] routing = determineRouting(query, this.configuration.getRoutingPolicy());
+
+        if (routing != null) {
+            searchRequestBuilder.setRouting(routing);
+        }
 
-        return PredicatesTree.createFromPredicates(idsPredicate);
+        return searchRequestBuilder;
     }
 
     /**
-     * Creates a {@link SearchRequestBuilder} from a given {@link Query}
+     * Creates a {@link SearchRequestBuilder} from a given {@link Query}.
+     * Queries which may return more than {@link #MAX_RESULT_WINDOW} results are scrolled
      */
     private <E extends Element> SearchRequestBuilder createSearchRequest(Query<E> query) {
-        int limit = query.getLimit() >= 0 ? query.getLimit() : DEFAULT_QUERY_LIMIT;
-
         SearchRequestBuilder searchRequestBuilder = client.prepareSearch(determineIndex(query))
-                .setQuery(this.queryCreator.createFromPredicates(query.getPredicates()))
-                .setSize(limit)
-                .setFetchSource(true);// @todo: define specifically properties to fetch from source
+                .setQuery(this.queryCreator.createJsonFromPredicates(query.getPredicates()));
+
+        if (isProjected(query)) {
+            searchRequestBuilder.setFetchSource(getSourceFields(query, getResidualPredicates(query)), null);
+        } else {
+            searchRequestBuilder.setFetchSource(true);
+        }
+
+        if (isScrolled(query)) {
+            searchRequestBuilder
+                    .setScroll(this.configuration.getScrollKeepAlive())
+                    .setSize(this.configuration.getScrollSize());
+        } else {
+            searchRequestBuilder.setSize(query.getLimit());
+        }
 
         if (query.hasOrders()) {
             query.getOrders().forEach(order -> {
@@ -153,61 +205,244 @@ public class ElasticsearchBackend implements Backend, AutoCloseable {
             });
         }
 
-        // @todo: add routing
+        String[] routing = determineRouting(query, this.configuration.getRoutingPolicy());
+
+        if (routing != null) {
+            searchRequestBuilder.setRouting(routing);
+        }
 
         return searchRequestBuilder;
     }
 
     /**
-     * Given a search-request, performs the search and returns {@link Stream} of elements
+     * Converts the query to a {@link SearchRequestBuilder}, performs the search and returns {@link Stream} of elements.
+     * If the query is scrolled, the following pages are fetched lazily, as the stream is consumed
+     */
+    @Override
+    <E extends Element> Stream<E> search(Query<E> query) {
+        SearchRequestBuilder search = this.createSearchRequest(query);
+
+        return this.createElements(query, search, search.execute().actionGet());
+    }
+
+    /**
+     * Converts the query to a {@link SearchRequestBuilder}, sends it with an {@link ActionListener}
+     * and returns a future {@link Stream} of elements
      */
-    private <E extends Element> Stream<E> search(Class<E> returnType, SearchRequestBuilder search) throws IOException {
-        SearchResponse searchResponse = search.execute().actionGet();
+    @Override
+    <E extends Element> CompletableFuture<Stream<E>> searchAsync(Query<E> query) {
+        SearchRequestBuilder search = this.createSearchRequest(query);
+
+        return this.createElementsAsync(query, search, executeAsync(search));
+    }
+
+    /**
+     * Sends the searches of all of the given queries in a single multi-search request,
+     * and decodes the response of each query as in {@link #searchAsync(Query)}.
+     * A failed search fails the future of its own query only
+     */
+    @Override
+    List<CompletableFuture<Stream<? extends Element>>> multiSearchAsync(List<Query<?>> queries) {
+        List<SearchRequestBuilder> searches = new ArrayList<>(queries.size());
+        MultiSearchRequestBuilder multiSearch = this.client.prepareMultiSearch();
+
+        queries.forEach(query -> {
+            SearchRequestBuilder search = this.createSearchRequest(query);
+
+            searches.add(search);
+            multiSearch.add(search);
+        });
+
+        CompletableFuture<MultiSearchResponse> response = executeAsync(multiSearch);
+
+        return IntStream.range(0, queries.size())
+                .mapToObj(i -> this.createElementsAsync(queries.get(i), searches.get(i),
+                        response.thenApply(multiSearchResponse -> getSearchResponse(queries.get(i), multiSearchResponse.getResponses()[i])))
+                        .<Stream<? extends Element>>thenApply(elements -> elements))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Returns the search response of a single query out of a multi-search response, or throws its failure
+     */
+    private static SearchResponse getSearchResponse(Query<?> query, MultiSearchResponse.Item item) {
+        if (item.isFailure()) {
+            throw new RuntimeException(String.format("Query %s failed: %s", query, item.getFailureMessage()), item.getFailure());
+        }
 
+        return item.getResponse();
+    }
+
+    /**
+     * Given a future search response, returns a future {@link Stream} of its elements.
+     * When parallel decoding is enabled, the first page is decoded by a task of the decoding pool,
+     * which joins the parallel decoding of the page without blocking a request thread
+     */
+    private <E extends Element> CompletableFuture<Stream<E>> createElementsAsync(Query<E> query, SearchRequestBuilder search,
+                                                                              CompletableFuture<SearchResponse> response) {
+        if (this.decodingPool == null) {
+            return response.thenApply(searchResponse -> this.createElements(query, search, searchResponse));
+        }
+
+        return response.thenApplyAsync(searchResponse -> this.createElements(query, search, searchResponse), this.decodingPool);
+    }
+
+    /**
+     * Sends the given request with an {@link ActionListener}, and returns a future of its response.
+     * The future is completed on the request executor, so its stages do not run on transport threads
+     */
+    private <Response extends ActionResponse> CompletableFuture<Response> executeAsync(ActionRequestBuilder<?, Response, ?> request) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+
+        request.execute(new ActionListener<Response>() {
+            @Override
+            public void onResponse(Response response) {
+                complete(() -> future.complete(response));
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                complete(() -> future.completeExceptionally(new RuntimeException("Query failed due to an inner exception", e)));
+            }
+
+            private void complete(Runnable completion) {
+                try {
+                    requestExecutor.execute(completion);
+                } catch (RejectedExecutionException e) {
+                    future.completeExceptionally(new IllegalStateException("Backend was closed", e));
+                }
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    <E extends Element> CompletableFuture<List<MultiGetDocument>> multiGetAsync(Query<E> query, Collection<?> ids) {
+        return executeAsync(this.createMultiGetRequest(query, ids)).thenApply(response -> Arrays.stream(response.getResponses())
+                .map(item -> item.isFailed() ?
+                        new MultiGetDocument(item.getId(), null, false, item.getFailure().getMessage()) :
+                        new MultiGetDocument(item.getId(), item.getResponse().getSource(), item.getResponse().isExists(), null))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Creates a {@link MultiGetRequestBuilder} of the given ids, from the index of the given query
+     */
+    private <E extends Element> MultiGetRequestBuilder createMultiGetRequest(Query<E> query, Collection<?> ids) {
+        String index = determineIndex(query);
+        FetchSourceContext fetchSource = isProjected(query) ? new FetchSourceContext(getSourceFields(query, getMultiGetResidualPredicates(query))) : new FetchSourceContext(true);
+        boolean isVertex = ElementUtils.isVertex(query.getReturnType());
+
+        MultiGetRequestBuilder multiGet = this.client.prepareMultiGet();
+
+        ids.forEach(id -> {
+            MultiGetRequest.Item item = new MultiGetRequest.Item(index, null, id.toString())
+                    .fetchSourceContext(fetchSource);
+
+            String routing = isVertex ? this.configuration.getRoutingPolicy().vertexRouting(id) : null;
+
+            if (routing != null) {
+                item.routing(routing);
+            }
+
+            multiGet.add(item);
+        });
+
+        return multiGet;
+    }
+
+    /**
+     * Given the response of a search-request, returns a {@link Stream} of its elements
+     * which pass the residual predicates of the query, up to the query limit
+     */
+    private <E extends Element> Stream<E> createElements(Query<E> query, SearchRequestBuilder search, SearchResponse searchResponse) {
         if (searchResponse.status().getStatus() != 200) {
             logger.warn("Request {} got {} response status, returned empty stream", search, searchResponse.status());
 
             return Stream.empty();
         }
 
-        return StreamUtils.toStream(searchResponse.getHits().iterator())
-                .map(item -> createElement(returnType, item.getId(), item.getSource()));
+        PredicatesTree residual = getResidualPredicates(query);
+
+        if (!isScrolled(query)) {
+            return createPageElements(query, residual, searchResponse.getHits().getHits());
+        }
+
+        ScrollPagesIterator pages = new ScrollPagesIterator(this.client, searchResponse, this.configuration.getScrollKeepAlive());
+
+        Stream<E> elements = StreamUtils.toStream(pages)
+                .flatMap(page -> createPageElements(query, residual, page))
+                .onClose(pages::close);
+
+        return query.getLimit() >= 0 ? elements.limit(query.getLimit()) : elements;
     }
 
     /**
-     * Given element type, id and properties,
-     * creates an instance of {@link Vertex} or {@link Edge} accordingly
-     *
-     * @return New instance of a Vertex of Edge, according to the given element type
+     * Given a page of hits, returns a {@link Stream} of its elements which pass the residual predicates.
+     * Large pages are decoded in parallel when enabled by the configuration, and are then kept in the order of the hits
+     * only if the query is ordered
      */
-    private <E extends Element> E createElement(Class<E> elementType, String elementId, Map<String, Object> properties) {
-        if (ElementUtils.isEdge(elementType)) {
-            String outVertexId = properties.get(EDGE_OUT_VERTEX_PROPERTY).toString();
-            String inVertexId = properties.get(EDGE_IN_VERTEX_PROPERTY).toString();
-            String label = properties.getOrDefault(EDGE_LABEL_PROPERTY, Edge.DEFAULT_LABEL).toString();
-
-            Vertex outVertex = this.elementCreator.createVertexFromId(outVertexId, this);
-            Vertex inVertex = this.elementCreator.createVertexFromId(inVertexId, this);
+    private <E extends Element> Stream<E> createPageElements(Query<E> query, PredicatesTree residual, SearchHit[] page) {
+        if (this.decodingPool == null || page.length < this.configuration.getParallelDecodingMinHits()) {
+            return createPageElements(query, residual, page, false);
+        }
 
-            return (E) this.elementCreator.createEdge(elementId, label, properties, outVertex, inVertex, this);
-        } else if (ElementUtils.isVertex(elementType)) {
-            return (E) this.elementCreator.createVertex(elementId, properties, this);
+        if (query.hasOrders()) {
+            return this.decodingPool.submit(() -> createPageElements(query, residual, page, true)
+                    .collect(Collectors.toList()))
+                    .join().stream();
         }
 
-        throw new IllegalStateException(String.format("Cannot create an element of type '%s'", elementType));
+        Queue<E> elements = new ConcurrentLinkedQueue<>();
+        this.decodingPool.submit(() -> createPageElements(query, residual, page, true)
+                .unordered()
+                .forEach(elements::add))
+                .join();
+
+        return elements.stream();
     }
 
     /**
-     * Given a query, returns the index it should be queried from
+     * Given a page of hits, returns a {@link Stream} of its elements which pass the residual predicates.
+     * When possible, the predicates are tested against the columns of the whole page,
+     * and elements are created only for the hits which passed them
+     *
+     * @param parallel Whether to return a parallel stream, whose hits are also parsed in parallel
      */
-    private <E extends Element> String determineIndex(Query<E> query) {
-        if (ElementUtils.isEdge(query.getReturnType())) {
-            return EDGES_INDICES;
-        } else if (ElementUtils.isVertex(query.getReturnType())) {
-            return VERTICES_INDICES;
+    private <E extends Element> Stream<E> createPageElements(Query<E> query, PredicatesTree residual, SearchHit[] page, boolean parallel) {
+        Class<E> returnType = query.getReturnType();
+
+        if (residual.isEmpty()) {
+            Stream<SearchHit> hits = Arrays.stream(page);
+
+            return (parallel ? hits.parallel() : hits)
+                    .map(hit -> createElement(returnType, hit.getId(), hit.getSource()));
+        }
+
+        if (parallel) {
+            // each hit parses its source once, so the batch below gets the already parsed sources
+            Arrays.stream(page).parallel().forEach(SearchHit::getSource);
         }
 
-        throw new IllegalStateException(String.format("Cannot execute query with '%s' return type", query.getReturnType()));
+        HitsBatch batch = new HitsBatch(page, ElementUtils.isEdge(returnType) ?
+                source -> source.getOrDefault(EDGE_LABEL_PROPERTY, Edge.DEFAULT_LABEL).toString() : null);
+
+        if (!batch.canSelect(residual)) {
+            IntStream rows = IntStream.range(0, batch.size());
+
+            return (parallel ? rows.parallel() : rows)
+                    .mapToObj(row -> createElement(returnType, batch.getHit(row).getId(), batch.getSource(row)))
+                    .filter(element -> query.test(element, residual));
+        }
+
+        IntStream rows = batch.select(residual).stream();
+
+        return (parallel ? rows.parallel() : rows)
+                .mapToObj(row -> createElement(returnType, batch.getHit(row).getId(), batch.getSource(row)));
     }
 
 
@@ -232,7 +467,12 @@ public class ElasticsearchBackend implements Backend, AutoCloseable {
     }
 
     @Override
-    public void close() throws Exception {
+    public void close() {
+        if (this.decodingPool != null) {
+            this.decodingPool.shutdown();
+        }
+
         this.client.close();
+        super.close();
     }
 }
@@ -0,0 +1,256 @@
+import org.elasticsearch.common.unit.TimeValue;
+import org.mastik.cache.NegativeCache;
+import org.mastik.cache.VertexPropertiesCache;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Tunable settings of {@link ElasticsearchBackend} and {@link ElasticsearchRestBackend}
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/3/17
+ */
+public class ElasticsearchBackendConfiguration {
+    private int scrollSize = 1000;
+    private TimeValue scrollKeepAlive = TimeValue.timeValueMinutes(1);
+    private RoutingPolicy routingPolicy = RoutingPolicy.NONE;
+    private int multiGetMaxIds = 10000;
+    private int multiGetFilterMaxIds = 100;
+    private int maxIdsPerRequest = 1000;
+    private int maxChunksInFlight = 4;
+    private Set<String> keywordPropertyKeys = Collections.emptySet();
+    private int decodingThreads = 0;
+    private int parallelDecodingMinHits = 1000;
+    private TimeValue connectTimeout = TimeValue.timeValueSeconds(5);
+    private TimeValue readTimeout = TimeValue.timeValueMinutes(1);
+    private int requestThreads = 8;
+    private VertexPropertiesCache vertexPropertiesCache = null;
+    private NegativeCache negativeCache = null;
+
+    /**
+     * Returns the number of hits fetched per scroll page
+     */
+    public int getScrollSize() {
+        return this.scrollSize;
+    }
+
+    /**
+     * Sets the number of hits fetched per scroll page
+     */
+    public void setScrollSize(int scrollSize) {
+        this.scrollSize = scrollSize;
+    }
+
+    /**
+     * Returns how long a scroll context is kept alive between two page fetches
+     */
+    public TimeValue getScrollKeepAlive() {
+        return this.scrollKeepAlive;
+    }
+
+    /**
+     * Sets how long a scroll context is kept alive between two page fetches
+     */
+    public void setScrollKeepAlive(TimeValue scrollKeepAlive) {
+        this.scrollKeepAlive = scrollKeepAlive;
+    }
+
+    /**
+     * Returns the policy the graph documents were routed by
+     */
+    public RoutingPolicy getRoutingPolicy() {
+        return this.routingPolicy;
+    }
+
+    /**
+     * Sets the policy the graph documents were routed by
+     */
+    public void setRoutingPolicy(RoutingPolicy routingPolicy) {
+        this.routingPolicy = routingPolicy;
+    }
+
+    /**
+     * Returns the largest number of ids looked up by multi-get instead of a search,
+     * when a query has no predicates other than the ids
+     */
+    public int getMultiGetMaxIds() {
+        return this.multiGetMaxIds;
+    }
+
+    /**
+     * Sets the largest number of ids looked up by multi-get instead of a search,
+     * when a query has no predicates other than the ids. 0 disables multi-get lookups
+     */
+    public void setMultiGetMaxIds(int multiGetMaxIds) {
+        this.multiGetMaxIds = multiGetMaxIds;
+    }
+
+    /**
+     * Returns the largest number of ids looked up by multi-get instead of a search,
+     * when a query has simple predicates other than the ids, which are then tested client-side
+     */
+    public int getMultiGetFilterMaxIds() {
+        return this.multiGetFilterMaxIds;
+    }
+
+    /**
+     * Sets the largest number of ids looked up by multi-get instead of a search,
+     * when a query has simple predicates other than the ids, which are then tested client-side.
+     * 0 disables multi-get lookups of such queries
+     */
+    public void setMultiGetFilterMaxIds(int multiGetFilterMaxIds) {
+        this.multiGetFilterMaxIds = multiGetFilterMaxIds;
+    }
+
+    /**
+     * Returns the largest number of ids sent in a single search request.
+     * Queries over more ids are split to concurrent requests
+     */
+    public int getMaxIdsPerRequest() {
+        return this.maxIdsPerRequest;
+    }
+
+    /**
+     * Sets the largest number of ids sent in a single search request.
+     * Queries over more ids are split to concurrent requests
+     */
+    public void setMaxIdsPerRequest(int maxIdsPerRequest) {
+        this.maxIdsPerRequest = maxIdsPerRequest;
+    }
+
+    /**
+     * Returns the largest number of requests of a split query which are sent at once
+     */
+    public int getMaxChunksInFlight() {
+        return this.maxChunksInFlight;
+    }
+
+    /**
+     * Sets the largest number of requests of a split query which are sent at once.
+     * The requests of the other chunks are sent as the previous ones complete
+     */
+    public void setMaxChunksInFlight(int maxChunksInFlight) {
+        this.maxChunksInFlight = maxChunksInFlight;
+    }
+
+    /**
+     * Returns the keys of properties mapped as not analyzed strings,
+     * whose string predicates are enforced exactly by Elasticsearch and are not tested again
+     */
+    public Set<String> getKeywordPropertyKeys() {
+        return this.keywordPropertyKeys;
+    }
+
+    /**
+     * Sets the keys of properties mapped as not analyzed strings,
+     * whose string predicates are enforced exactly by Elasticsearch and are not tested again
+     */
+    public void setKeywordPropertyKeys(Set<String> keywordPropertyKeys) {
+        this.keywordPropertyKeys = keywordPropertyKeys;
+    }
+
+    /**
+     * Returns the number of threads pages of hits are decoded to elements with, in parallel.
+     * 0 means pages are decoded on the thread consuming them
+     */
+    public int getDecodingThreads() {
+        return this.decodingThreads;
+    }
+
+    /**
+     * Sets the number of threads pages of hits are decoded to elements with, in parallel.
+     * 0 (the default) disables parallel decoding
+     */
+    public void setDecodingThreads(int decodingThreads) {
+        this.decodingThreads = decodingThreads;
+    }
+
+    /**
+     * Returns the smallest page of hits which is decoded in parallel, when parallel decoding is enabled
+     */
+    public int getParallelDecodingMinHits() {
+        return this.parallelDecodingMinHits;
+    }
+
+    /**
+     * Sets the smallest page of hits which is decoded in parallel, when parallel decoding is enabled
+     */
+    public void setParallelDecodingMinHits(int parallelDecodingMinHits) {
+        this.parallelDecodingMinHits = parallelDecodingMinHits;
+    }
+
+    /**
+     * Returns how long {@link ElasticsearchRestBackend} waits for a connection to a node to open
+     */
+    public TimeValue getConnectTimeout() {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Sets how long {@link ElasticsearchRestBackend} waits for a connection to a node to open
+     */
+    public void setConnectTimeout(TimeValue connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Returns how long {@link ElasticsearchRestBackend} waits for a response to be read
+     */
+    public TimeValue getReadTimeout() {
+        return this.readTimeout;
+    }
+
+    /**
+     * Sets how long {@link ElasticsearchRestBackend} waits for a response to be read
+     */
+    public void setReadTimeout(TimeValue readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Returns the number of threads {@link ElasticsearchRestBackend} sends asynchronous requests with,
+     * and {@link ElasticsearchBackend} completes the futures of asynchronous requests on
+     */
+    public int getRequestThreads() {
+        return this.requestThreads;
+    }
+
+    /**
+     * Sets the number of threads {@link ElasticsearchRestBackend} sends asynchronous requests with,
+     * and {@link ElasticsearchBackend} completes the futures of asynchronous requests on
+     */
+    public void setRequestThreads(int requestThreads) {
+        this.requestThreads = requestThreads;
+    }
+
+    /**
+     * Returns the cache of the properties of deferred vertices, or null if they are not cached
+     */
+    public VertexPropertiesCache getVertexPropertiesCache() {
+        return this.vertexPropertiesCache;
+    }
+
+    /**
+     * Sets the cache of the properties of deferred vertices.
+     * The same cache may be shared by several backends of the same graph
+     */
+    public void setVertexPropertiesCache(VertexPropertiesCache vertexPropertiesCache) {
+        this.vertexPropertiesCache = vertexPropertiesCache;
+    }
+
+    /**
+     * Returns the cache of vertices which were not found or have no edges, or null if they are not cached
+     */
+    public NegativeCache getNegativeCache() {
+        return this.negativeCache;
+    }
+
+    /**
+     * Sets the cache of vertices which were not found or have no edges, which traversal steps drop from their frontiers.
+     * The same cache may be shared by several backends of the same graph
+     */
+    public void setNegativeCache(NegativeCache negativeCache) {
+        this.negativeCache = negativeCache;
+    }
+}
@@ -0,0 +1,559 @@
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.tinkerpop.gremlin.process.traversal.Order;
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.Property;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.apache.tinkerpop.gremlin.structure.VertexProperty;
+import org.javatuples.Pair;
+import org.mastik.ElementCreator;
+import org.mastik.ElementUtils;
+import org.mastik.StreamUtils;
+import org.mastik.query.PredicatesTree;
+import org.mastik.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Elasticsearch Backend over the HTTP interface of Elasticsearch.
+ * Responses are parsed incrementally, and the properties of each hit are created straight from the parsed tokens,
+ * without parsing its source to a map first
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/20/17
+ */
+public class ElasticsearchRestBackend extends BaseElasticsearchBackend {
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchRestBackend.class);
+
+    private final ElasticsearchRestClient client;
+
+    public ElasticsearchRestBackend(Collection<String> clusterHosts, ElementCreator elementCreator) {
+        this(clusterHosts, elementCreator, new ElasticsearchBackendConfiguration());
+    }
+
+    /**
+     * @param clusterHosts Collection of HOST:PORT strings or base URLs (e.g. 'http://localhost:9200'), representing nodes in the cluster
+     */
+    public ElasticsearchRestBackend(Collection<String> clusterHosts, ElementCreator elementCreator, ElasticsearchBackendConfiguration configuration) {
+        super(elementCreator, configuration);
+        this.client = new ElasticsearchRestClient(clusterHosts, configuration);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    CompletableFuture<Stream<Pair<String, String>>> searchNeighborsAsync(Query<Edge> query) {
+        return CompletableFuture.supplyAsync(() ->
+                this.search(query, createSearchBody(query, true), ElasticsearchRestBackend::readNeighbors), this.requestExecutor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    <E extends Element> CompletableFuture<Long> countAsync(Query<E> query) {
+        return CompletableFuture.supplyAsync(() -> this.searchCount(query, null).getTotalHits(), this.requestExecutor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    <E extends Element> CompletableFuture<Map<Object, Long>> groupCountAsync(Query<E> query, String key) {
+        return CompletableFuture.supplyAsync(() -> this.searchCount(query, key).getGroups(), this.requestExecutor);
+    }
+
+    /**
+     * Sends a search which returns no hits, only the number of documents matching the query,
+     * and if a key is given, the number of documents per each of its values.
+     * As it returns no hits, its response is cached by the shards until their data changes
+     */
+    private <E extends Element> RestSearchResponse<E> searchCount(Query<E> query, String groupKey) {
+        String body = writeJson(generator -> {
+            generator.writeStartObject();
+            generator.writeFieldName("query");
+            generator.writeRawValue(createQueryJson(query));
+            generator.writeNumberField("size", 0);
+
+            if (groupKey != null) {
+                generator.writeObjectFieldStart("aggs");
+                generator.writeObjectFieldStart(GROUP_COUNT_AGGREGATION);
+                generator.writeObjectFieldStart("terms");
+                generator.writeStringField("field", this.queryCreator.getFieldName(groupKey));
+                generator.writeNumberField("size", 0); // all terms
+                generator.writeEndObject();
+                generator.writeEndObject();
+                generator.writeEndObject();
+            }
+
+            generator.writeEndObject();
+        });
+
+        String path = String.format("/%s/_search?request_cache=true%s", determineIndex(query), createRoutingParameter(query));
+
+        return this.client.execute("POST", path, body, parser ->
+                RestSearchResponse.read(parser, hitParser -> {
+                    hitParser.skipChildren();
+                    return null;
+                }, GROUP_COUNT_AGGREGATION));
+    }
+
+    /**
+     * Looks the given ids up by a request to the multi-get endpoint of the index of the query.
+     * The documents are small and bounded in number, so they are read to maps, as the transport client does
+     */
+    @Override
+    <E extends Element> CompletableFuture<List<MultiGetDocument>> multiGetAsync(Query<E> query, Collection<?> ids) {
+        boolean isVertex = ElementUtils.isVertex(query.getReturnType());
+
+        String body = writeJson(generator -> {
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("docs");
+
+            for (Object id : ids) {
+                generator.writeStartObject();
+                generator.writeStringField("_id", id.toString());
+
+                String routing = isVertex ? this.configuration.getRoutingPolicy().vertexRouting(id) : null;
+
+                if (routing != null) {
+                    generator.writeStringField("_routing", routing);
+                }
+
+                if (isProjected(query)) {
+                    generator.writeArrayFieldStart("_source");
+
+                    for (String field : getSourceFields(query, getMultiGetResidualPredicates(query))) {
+                        generator.writeString(field);
+                    }
+
+                    generator.writeEndArray();
+                }
+
+                generator.writeEndObject();
+            }
+
+            generator.writeEndArray();
+            generator.writeEndObject();
+        });
+
+        String path = String.format("/%s/_mget", determineIndex(query));
+
+        return CompletableFuture.supplyAsync(() -> this.client.execute("POST", path, body, ElasticsearchRestBackend::readMultiGet),
+                this.requestExecutor);
+    }
+
+    /**
+     * Reads the documents of a multi-get response
+     */
+    @SuppressWarnings("unchecked")
+    private static List<MultiGetDocument> readMultiGet(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == null) {
+            parser.nextToken();
+        }
+
+        Map<String, Object> response = (Map<String, Object>) RestSearchResponse.readValue(parser);
+        List<Map<String, Object>> docs = (List<Map<String, Object>>) response.getOrDefault("docs", Collections.emptyList());
+
+        return docs.stream()
+                .map(doc -> {
+                    String id = String.valueOf(doc.get("_id"));
+
+                    if (doc.containsKey("error")) {
+                        return new MultiGetDocument(id, null, false, String.valueOf(doc.get("error")));
+                    }
+
+                    Map<String, Object> source = (Map<String, Object>) doc.get("_source");
+
+                    return new MultiGetDocument(id, source != null ? source : Collections.emptyMap(), Boolean.TRUE.equals(doc.get("found")), null);
+                })
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    <E extends Element> CompletableFuture<Stream<E>> searchAsync(Query<E> query) {
+        return CompletableFuture.supplyAsync(() -> this.search(query), this.requestExecutor);
+    }
+
+    /**
+     * Sends the search of the given query, and returns a {@link Stream} of its elements.
+     * If the query is scrolled, the following pages are fetched lazily, as the stream is consumed
+     */
+    @Override
+    <E extends Element> Stream<E> search(Query<E> query) {
+        return this.search(query, createSearchBody(query, false), createHitReader(query, getResidualPredicates(query)));
+    }
+
+    /**
+     * Sends a search of the given query with the given body, and returns a {@link Stream} of its read hits.
+     * If the query is scrolled, the following pages are fetched lazily, as the stream is consumed
+     */
+    private <T> Stream<T> search(Query<?> query, String body, RestSearchResponse.HitReader<T> hitReader) {
+        boolean isScrolled = isScrolled(query);
+
+        String parameters = (isScrolled ? "&scroll=" + getScrollKeepAlive() : "") + createRoutingParameter(query);
+        String path = String.format("/%s/_search%s", determineIndex(query),
+                parameters.isEmpty() ? "" : "?" + parameters.substring(1));
+
+        RestSearchResponse<T> response = this.client.execute("POST", path, body,
+                parser -> RestSearchResponse.read(parser, hitReader, null));
+
+        if (!isScrolled) {
+            return response.getHits().stream();
+        }
+
+        RestScrollPagesIterator<T> pages = new RestScrollPagesIterator<>(response, hitReader);
+
+        Stream<T> hits = StreamUtils.toStream(pages)
+                .flatMap(List::stream)
+                .onClose(pages::close);
+
+        return query.getLimit() >= 0 ? hits.limit(query.getLimit()) : hits;
+    }
+
+    /**
+     * Creates the JSON body of the search request of the given query.
+     * Queries which may return more than {@link #MAX_RESULT_WINDOW} results are scrolled
+     *
+     * @param neighborsOnly Whether to fetch only the in-id and out-id doc values of edges, rather than their source
+     */
+    private <E extends Element> String createSearchBody(Query<E> query, boolean neighborsOnly) {
+        return writeJson(generator -> {
+            generator.writeStartObject();
+            generator.writeFieldName("query");
+            generator.writeRawValue(createQueryJson(query));
+            generator.writeNumberField("size", isScrolled(query) ? this.configuration.getScrollSize() : query.getLimit());
+
+            if (neighborsOnly) {
+                generator.writeBooleanField("_source", false);
+                generator.writeArrayFieldStart("fielddata_fields");
+                generator.writeString(EDGE_OUT_VERTEX_PROPERTY);
+                generator.writeString(EDGE_IN_VERTEX_PROPERTY);
+                generator.writeEndArray();
+            } else if (isProjected(query)) {
+                generator.writeArrayFieldStart("_source");
+
+                for (String field : getSourceFields(query, getResidualPredicates(query))) {
+                    generator.writeString(field);
+                }
+
+                generator.writeEndArray();
+            }
+
+            if (query.hasOrders() && !query.getOrders().isEmpty()) {
+                generator.writeArrayFieldStart("sort");
+
+                for (Pair<String, Order> order : query.getOrders()) {
+                    if (order.getValue1() == Order.shuffle) {
+                        continue;
+                    }
+
+                    generator.writeStartObject();
+                    generator.writeObjectFieldStart(order.getValue0());
+                    generator.writeStringField("order", order.getValue1() == Order.decr ? "desc" : "asc");
+                    generator.writeEndObject();
+                    generator.writeEndObject();
+                }
+
+                generator.writeEndArray();
+            }
+
+            generator.writeEndObject();
+        });
+    }
+
+    /**
+     * Returns the JSON of the query of the given predicates, as created for the transport client
+     */
+    private <E extends Element> String createQueryJson(Query<E> query) {
+        return this.queryCreator.createJsonFromPredicates(query.getPredicates());
+    }
+
+    /**
+     * Returns the 'routing' query string parameter of the given query, or an empty string if it is sent to all shards
+     */
+    private <E extends Element> String createRoutingParameter(Query<E> query) {
+        String[] routing = determineRouting(query, this.configuration.getRoutingPolicy());
+
+        return routing == null ? "" : "&routing=" + encode(String.join(",", routing));
+    }
+
+    /**
+     * Creates a reader of the hits of the given query, which creates an element straight from each parsed hit,
+     * and returns it only if it passes the residual predicates
+     */
+    @SuppressWarnings("unchecked")
+    private <E extends Element> RestSearchResponse.HitReader<E> createHitReader(Query<E> query, PredicatesTree residual) {
+        Class<E> returnType = query.getReturnType();
+
+        if (ElementUtils.isEdge(returnType)) {
+            return parser -> testElement(query, residual, (E) readEdge(parser));
+        } else if (ElementUtils.isVertex(returnType)) {
+            return parser -> testElement(query, residual, (E) readVertex(parser));
+        }
+
+        throw new IllegalStateException(String.format("Cannot execute query with '%s' return type", returnType));
+    }
+
+    private static <E extends Element> E testElement(Query<E> query, PredicatesTree residual, E element) {
+        return residual.isEmpty() || query.test(element, residual) ? element : null;
+    }
+
+    /**
+     * Reads a hit of a vertex document, creating its vertex properties as its source fields are parsed
+     */
+    @SuppressWarnings("rawtypes")
+    private Vertex readVertex(JsonParser parser) throws IOException {
+        String id = null;
+        Map<String, VertexProperty> properties = new HashMap<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            if (field.equals("_id")) {
+                id = parser.getText();
+            } else if (field.equals("_source")) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.getCurrentName();
+                    parser.nextToken();
+                    Object value = RestSearchResponse.readValue(parser);
+
+                    // as in a parsed source map, a null field is a missing property
+                    if (value != null) {
+                        properties.put(key, this.elementCreator.createVertexProperty(key, value));
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return this.elementCreator.createDeferredVertex(id, properties, this);
+    }
+
+    /**
+     * Reads a hit of an edge document, creating its properties as its source fields are parsed
+     */
+    @SuppressWarnings("rawtypes")
+    private Edge readEdge(JsonParser parser) throws IOException {
+        String id = null;
+        Object outVertexId = null;
+        Object inVertexId = null;
+        Object label = null;
+        Map<String, Property> properties = new HashMap<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            if (field.equals("_id")) {
+                id = parser.getText();
+            } else if (field.equals("_source")) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.getCurrentName();
+                    parser.nextToken();
+                    Object value = RestSearchResponse.readValue(parser);
+
+                    if (key.equals(EDGE_OUT_VERTEX_PROPERTY)) {
+                        outVertexId = value;
+                    } else if (key.equals(EDGE_IN_VERTEX_PROPERTY)) {
+                        inVertexId = value;
+                    } else if (key.equals(EDGE_LABEL_PROPERTY)) {
+                        label = value;
+                    }
+
+                    if (value != null) {
+                        properties.put(key, this.elementCreator.createProperty(key, value));
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (outVertexId == null || inVertexId == null) {
+            throw new IllegalStateException(String.format("Edge '%s' has no '%s' or '%s' field", id,
+                    EDGE_OUT_VERTEX_PROPERTY, EDGE_IN_VERTEX_PROPERTY));
+        }
+
+        Vertex outVertex = this.elementCreator.createVertexFromId(outVertexId.toString(), this);
+        Vertex inVertex = this.elementCreator.createVertexFromId(inVertexId.toString(), this);
+
+        return this.elementCreator.createEdgeFromProperties(id, label == null ? Edge.DEFAULT_LABEL : label.toString(),
+                properties, outVertex, inVertex, this);
+    }
+
+    /**
+     * Reads a hit of an edge document as its (out-vertex id, in-vertex id), from its doc value fields
+     */
+    private static Pair<String, String> readNeighbors(JsonParser parser) throws IOException {
+        String id = null;
+        Object outVertexId = null;
+        Object inVertexId = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            if (field.equals("_id")) {
+                id = parser.getText();
+            } else if (field.equals("fields")) {
+                Map<?, ?> fields = (Map<?, ?>) RestSearchResponse.readValue(parser);
+
+                outVertexId = getFirstValue(fields.get(EDGE_OUT_VERTEX_PROPERTY));
+                inVertexId = getFirstValue(fields.get(EDGE_IN_VERTEX_PROPERTY));
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if (outVertexId == null || inVertexId == null) {
+            throw new IllegalStateException(String.format("Edge '%s' has no '%s' or '%s' field", id,
+                    EDGE_OUT_VERTEX_PROPERTY, EDGE_IN_VERTEX_PROPERTY));
+        }
+
+        return Pair.with(outVertexId.toString(), inVertexId.toString());
+    }
+
+    /**
+     * Returns the first value of a multi-valued field, as fields are returned in arrays
+     */
+    private static Object getFirstValue(Object field) {
+        if (field instanceof List) {
+            return ((List<?>) field).isEmpty() ? null : ((List<?>) field).get(0);
+        }
+
+        return field;
+    }
+
+    private String getScrollKeepAlive() {
+        return this.configuration.getScrollKeepAlive().millis() + "ms";
+    }
+
+    /**
+     * Generates a JSON string with a generator
+     */
+    @FunctionalInterface
+    private interface JsonWriter {
+        void write(JsonGenerator generator) throws IOException;
+    }
+
+    private static String writeJson(JsonWriter writer) {
+        StringWriter json = new StringWriter();
+
+        try (JsonGenerator generator = ElasticsearchRestClient.getJsonFactory().createGenerator(json)) {
+            writer.write(generator);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return json.toString();
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Iterates over the pages of a scroll search, as {@link ScrollPagesIterator} does over the transport client
+     */
+    private class RestScrollPagesIterator<E> implements Iterator<List<E>>, AutoCloseable {
+        private final RestSearchResponse.HitReader<E> hitReader;
+        private String scrollId;
+        private List<E> nextPage;
+        private boolean hasMorePages;
+
+        private RestScrollPagesIterator(RestSearchResponse<E> firstResponse, RestSearchResponse.HitReader<E> hitReader) {
+            this.hitReader = hitReader;
+            this.scrollId = firstResponse.getScrollId();
+            this.nextPage = firstResponse.getHits();
+            this.hasMorePages = true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (this.nextPage == null && this.hasMorePages && this.scrollId != null) {
+                String body = writeJson(generator -> {
+                    generator.writeStartObject();
+                    generator.writeStringField("scroll", getScrollKeepAlive());
+                    generator.writeStringField("scroll_id", this.scrollId);
+                    generator.writeEndObject();
+                });
+
+                // a page whose hits were all filtered out is still read, and an empty page ends the scroll
+                long[] pageSize = new long[1];
+                RestSearchResponse<E> response = client.execute("POST", "/_search/scroll", body,
+                        parser -> RestSearchResponse.read(parser, hitParser -> {
+                            pageSize[0]++;
+                            return this.hitReader.read(hitParser);
+                        }, null));
+
+                this.scrollId = response.getScrollId();
+                this.hasMorePages = pageSize[0] > 0;
+                this.nextPage = this.hasMorePages ? response.getHits() : null;
+
+                if (this.nextPage != null && this.nextPage.isEmpty()) {
+                    this.nextPage = null;
+                }
+            }
+
+            if (this.nextPage == null) {
+                close();
+            }
+
+            return this.nextPage != null;
+        }
+
+        @Override
+        public List<E> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            List<E> page = this.nextPage;
+            this.nextPage = null;
+
+            return page;
+        }
+
+        /**
+         * Clears the scroll context, if it is still open
+         */
+        @Override
+        public void close() {
+            if (this.scrollId == null) {
+                return;
+            }
+
+            String scrollId = this.scrollId;
+            this.scrollId = null;
+
+            try {
+                client.execute("DELETE", "/_search/scroll/" + encode(scrollId), null, parser -> null);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to clear scroll '{}' due to inner exception: {}", scrollId, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Sends requests to the HTTP interface of Elasticsearch nodes, in turns.
+ * Responses are requested gzipped, and are handed to the caller as an incremental JSON parser.
+ * Each response is read to its end before it is closed, so its connection is kept alive
+ * and reused by following requests to the same node (up to 'http.maxConnections' idle connections per node)
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/20/17
+ */
+class ElasticsearchRestClient {
+    private static final Logger logger = LoggerFactory.getLogger(ElasticsearchRestClient.class);
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory()
+            .disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+    /**
+     * Reads a response from the parser of its body
+     */
+    @FunctionalInterface
+    interface ResponseReader<T> {
+        T read(JsonParser parser) throws IOException;
+    }
+
+    private final List<String> baseUrls;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final AtomicInteger nextNode = new AtomicInteger();
+
+    /**
+     * @param nodes Collection of HOST:PORT strings or base URLs, representing nodes in the cluster
+     * @param configuration Configuration of the connection timeouts
+     */
+    ElasticsearchRestClient(Collection<String> nodes, ElasticsearchBackendConfiguration configuration) {
+        this.baseUrls = nodes.stream()
+                .map(node -> node.contains("://") ? node : "http://" + node)
+                .map(url -> url.endsWith("/") ? url.substring(0, url.length() - 1) : url)
+                .collect(Collectors.toList());
+        this.connectTimeout = (int) configuration.getConnectTimeout().millis();
+        this.readTimeout = (int) configuration.getReadTimeout().millis();
+
+        if (this.baseUrls.isEmpty()) {
+            throw new IllegalStateException("No Elasticsearch nodes were given");
+        }
+    }
+
+    /**
+     * Returns the JSON factory request bodies should be generated with
+     */
+    static JsonFactory getJsonFactory() {
+        return JSON_FACTORY;
+    }
+
+    /**
+     * Sends a request to the next node, and reads its response.
+     * A node which refuses the connection is skipped, and the request is sent to the following node
+     *
+     * @param method HTTP method of the request
+     * @param path Path and query string of the request, starting with '/'
+     * @param body JSON body of the request, or null if it has no body
+     * @param reader Reads the response from its JSON body
+     * @return The read response
+     */
+    <T> T execute(String method, String path, String body, ResponseReader<T> reader) {
+        int first = Math.floorMod(this.nextNode.getAndIncrement(), this.baseUrls.size());
+
+        for (int attempt = 0; ; attempt++) {
+            String baseUrl = this.baseUrls.get((first + attempt) % this.baseUrls.size());
+
+            try {
+                return execute(baseUrl, method, path, body, reader);
+            } catch (ConnectException e) {
+                if (attempt + 1 >= this.baseUrls.size()) {
+                    throw new RuntimeException(String.format("Request %s %s failed, no node could be connected", method, path), e);
+                }
+
+                logger.warn("Failed to connect to Elasticsearch node '{}', trying the next node: {}", baseUrl, e.getMessage());
+            } catch (IOException e) {
+                throw new RuntimeException(String.format("Request %s %s failed due to an inner exception", method, path), e);
+            }
+        }
+    }
+
+    private <T> T execute(String baseUrl, String method, String path, String body, ResponseReader<T> reader) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(this.connectTimeout);
+        connection.setReadTimeout(this.readTimeout);
+        connection.setRequestProperty("Accept", "application/json");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+
+        if (body != null) {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(bytes.length);
+            connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(bytes);
+            }
+        }
+
+        int status = connection.getResponseCode();
+        InputStream response = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+
+        if (response == null) {
+            throw new IOException(String.format("Response of status %d has no body", status));
+        }
+
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            response = new GZIPInputStream(response);
+        }
+
+        try (InputStream stream = response) {
+            if (status >= 400) {
+                String error = new String(ByteStreams.toByteArray(stream), StandardCharsets.UTF_8);
+                throw new RuntimeException(String.format("Request %s %s got %d response status: %s", method, path, status, error));
+            }
+
+            T result;
+
+            try (JsonParser parser = JSON_FACTORY.createParser(stream)) {
+                result = reader.read(parser);
+            }
+
+            // a connection is returned to the keep-alive cache only after its response was read to the end
+            ByteStreams.exhaust(stream);
+
+            return result;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+import org.apache.tinkerpop.gremlin.process.traversal.Compare;
+import org.apache.tinkerpop.gremlin.process.traversal.Contains;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.T;
+import org.elasticsearch.search.SearchHit;
+import org.mastik.query.PredicatesTree;
+import org.mastik.query.predicates.Text;
+
+import java.util.*;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A page of search hits, whose properties are decoded to typed columns,
+ * so predicates are tested against whole columns rather than against one element at a time.
+ * The selected rows are then the only ones elements are created for
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/18/17
+ */
+class HitsBatch {
+    private enum ColumnType {
+        LONG,
+        DOUBLE,
+        STRING,
+        OBJECT
+    }
+
+    /**
+     * Values of a single property in all rows of the batch
+     */
+    private static class Column {
+        private final Object[] values;
+        private final BitSet present;
+        private ColumnType type;
+        private long[] longs;
+        private double[] doubles;
+
+        private Column(Object[] values) {
+            this.values = values;
+            this.present = new BitSet(values.length);
+
+            for (int row = 0; row < values.length; row++) {
+                if (values[row] != null) {
+                    this.present.set(row);
+                }
+            }
+
+            this.type = getType(values);
+
+            if (this.type == ColumnType.LONG) {
+                this.longs = new long[values.length];
+                this.present.stream().forEach(row -> this.longs[row] = ((Number) values[row]).longValue());
+            } else if (this.type == ColumnType.DOUBLE) {
+                this.doubles = new double[values.length];
+                this.present.stream().forEach(row -> this.doubles[row] = ((Number) values[row]).doubleValue());
+            }
+        }
+
+        /**
+         * Returns the single type all present values have, or OBJECT if they have different types
+         */
+        private static ColumnType getType(Object[] values) {
+            ColumnType type = null;
+
+            for (Object value : values) {
+                if (value == null) {
+                    continue;
+                }
+
+                ColumnType valueType = value instanceof Long || value instanceof Integer ? ColumnType.LONG :
+                        value instanceof Double ? ColumnType.DOUBLE :
+                        value instanceof String ? ColumnType.STRING :
+                        ColumnType.OBJECT;
+
+                if (type != null && type != valueType) {
+                    return ColumnType.OBJECT;
+                }
+
+                type = valueType;
+            }
+
+            return type == null ? ColumnType.OBJECT : type;
+        }
+    }
+
+    private final SearchHit[] hits;
+    private final Map<String, Object>[] sources;
+    private final Function<Map<String, Object>, Object> labelExtractor;
+    private final Map<String, Column> columns = new HashMap<>();
+
+    /**
+     * @param hits Page of hits
+     * @param labelExtractor Extracts the label from the source of a hit, or null if labels can not be tested by column
+     */
+    @SuppressWarnings("unchecked")
+    HitsBatch(SearchHit[] hits, Function<Map<String, Object>, Object> labelExtractor) {
+        this.hits = hits;
+        this.sources = (Map<String, Object>[]) new Map<?, ?>[hits.length];
+        this.labelExtractor = labelExtractor;
+
+        for (int row = 0; row < hits.length; row++) {
+            this.sources[row] = hits[row].getSource();
+        }
+    }
+
+    /**
+     * Returns the number of rows in this batch
+     */
+    int size() {
+        return this.hits.length;
+    }
+
+    /**
+     * Returns the hit of the given row
+     */
+    SearchHit getHit(int row) {
+        return this.hits[row];
+    }
+
+    /**
+     * Returns the decoded source of the given row
+     */
+    Map<String, Object> getSource(int row) {
+        return this.sources[row];
+    }
+
+    /**
+     * Whether the given predicates can be tested by columns,
+     * which is when they are tested against properties, or against edge labels
+     */
+    boolean canSelect(PredicatesTree predicates) {
+        return predicates.keys().stream().noneMatch(key -> key.equals(T.id.getAccessor()) || key.equals(T.key.getAccessor()) ||
+                key.equals(T.value.getAccessor()) || (key.equals(T.label.getAccessor()) && this.labelExtractor == null));
+    }
+
+    /**
+     * Returns the rows which pass the given predicates.
+     * The predicates must be testable by columns, as checked by {@link #canSelect(PredicatesTree)}
+     */
+    BitSet select(PredicatesTree predicates) {
+        BitSet selected = new BitSet(size());
+
+        if (predicates.isEmpty()) {
+            selected.set(0, size());
+            return selected;
+        }
+
+        List<BitSet> selections = new ArrayList<>();
+
+        if (predicates.hasPredicates()) {
+            predicates.predicates().forEach(predicate -> selections.add(select(predicate)));
+        }
+
+        if (predicates.hasChildren()) {
+            predicates.children().forEach(child -> selections.add(select(child)));
+        }
+
+        if (predicates.isAnd()) {
+            selected.set(0, size());
+            selections.forEach(selected::and);
+        } else {
+            selections.forEach(selected::or);
+        }
+
+        return selected;
+    }
+
+    /**
+     * Returns the rows whose property passes the given predicate.
+     * As in {@link HasContainer#test}, rows missing the property do not pass it
+     */
+    private BitSet select(HasContainer hasContainer) {
+        Column column = getColumn(hasContainer.getKey());
+        BiPredicate<?, ?> biPredicate = hasContainer.getBiPredicate();
+        Object value = hasContainer.getValue();
+        BitSet selected = new BitSet(size());
+
+        if (biPredicate instanceof Compare && column.type == ColumnType.LONG && isIntegral(value)) {
+            long longValue = ((Number) value).longValue();
+            column.present.stream()
+                    .filter(row -> compare((Compare) biPredicate, Long.compare(column.longs[row], longValue)))
+                    .forEach(selected::set);
+        } else if (biPredicate instanceof Compare && column.type == ColumnType.DOUBLE && value instanceof Double) {
+            // doubles are compared to doubles as by Double.compareTo, while other numbers would be compared as decimals
+            double doubleValue = (Double) value;
+            column.present.stream()
+                    .filter(row -> compare((Compare) biPredicate, Double.compare(column.doubles[row], doubleValue)))
+                    .forEach(selected::set);
+        } else if (biPredicate == Compare.eq && column.type == ColumnType.STRING && value instanceof String) {
+            column.present.stream()
+                    .filter(row -> value.equals(column.values[row]))
+                    .forEach(selected::set);
+        } else if (biPredicate == Contains.within && column.type == ColumnType.STRING && value instanceof Collection) {
+            Set<Object> values = new HashSet<>((Collection<?>) value);
+            column.present.stream()
+                    .filter(row -> values.contains(column.values[row]))
+                    .forEach(selected::set);
+        } else {
+            Predicate<Object> predicate = createPredicate(hasContainer);
+            column.present.stream()
+                    .filter(row -> predicate.test(column.values[row]))
+                    .forEach(selected::set);
+        }
+
+        return selected;
+    }
+
+    /**
+     * Returns a predicate of a single value, equivalent to the given predicate
+     */
+    private static Predicate<Object> createPredicate(HasContainer hasContainer) {
+        if (hasContainer.getBiPredicate() instanceof Text.TextPredicate) {
+            return ((Text.TextPredicate) hasContainer.getBiPredicate()).compile(hasContainer.getValue());
+        }
+
+        @SuppressWarnings("unchecked")
+        P<Object> predicate = (P<Object>) hasContainer.getPredicate();
+
+        return predicate::test;
+    }
+
+    /**
+     * Given the result of comparing a value to the predicate value, returns whether it passes the predicate
+     */
+    private static boolean compare(Compare compare, int comparison) {
+        switch (compare) {
+            case eq:
+                return comparison == 0;
+            case neq:
+                return comparison != 0;
+            case gt:
+                return comparison > 0;
+            case gte:
+                return comparison >= 0;
+            case lt:
+                return comparison < 0;
+            case lte:
+                return comparison <= 0;
+        }
+
+        throw new IllegalStateException(String.format("Unexpected compare predicate '%s'", compare));
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * Returns the column of the given key, decoding it on the first request
+     */
+    private Column getColumn(String key) {
+        return this.columns.computeIfAbsent(key, columnKey -> {
+            Object[] values = new Object[size()];
+
+            for (int row = 0; row < values.length; row++) {
+                values[row] = columnKey.equals(T.label.getAccessor()) ?
+                        this.labelExtractor.apply(this.sources[row]) :
+                        this.sources[row].get(columnKey);
+            }
+
+            return new Column(values);
+        });
+    }
+}
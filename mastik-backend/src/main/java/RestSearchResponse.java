@@ -0,0 +1,191 @@
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A search response of the HTTP interface of Elasticsearch, read by an incremental JSON parser.
+ * Hits are handed to a {@link HitReader} as they are reached, so they are read straight into elements,
+ * and are never held as a tree of the whole response
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/20/17
+ */
+class RestSearchResponse<E> {
+    /**
+     * Reads a single hit, whose object is the current token of the parser.
+     * Returns null if the hit should not be included in the response
+     */
+    @FunctionalInterface
+    interface HitReader<E> {
+        E read(JsonParser parser) throws IOException;
+    }
+
+    private String scrollId;
+    private long totalHits;
+    private final List<E> hits = new ArrayList<>();
+    private final Map<Object, Long> groups = new HashMap<>();
+
+    /**
+     * Returns the id of the scroll context to fetch the next page from, or null if the search was not scrolled
+     */
+    String getScrollId() {
+        return this.scrollId;
+    }
+
+    /**
+     * Returns the number of documents matching the search
+     */
+    long getTotalHits() {
+        return this.totalHits;
+    }
+
+    /**
+     * Returns the read hits of this page
+     */
+    List<E> getHits() {
+        return this.hits;
+    }
+
+    /**
+     * Returns the number of documents per each bucket key of the terms aggregation with the given name
+     */
+    Map<Object, Long> getGroups() {
+        return this.groups;
+    }
+
+    /**
+     * Reads a search response from a parser of its body
+     *
+     * @param parser Parser positioned before the response object
+     * @param hitReader Reads each hit
+     * @param aggregationName Name of a terms aggregation whose buckets are read, or null if there is none
+     */
+    static <E> RestSearchResponse<E> read(JsonParser parser, HitReader<E> hitReader, String aggregationName) throws IOException {
+        if (parser.getCurrentToken() == null) {
+            parser.nextToken();
+        }
+
+        RestSearchResponse<E> response = new RestSearchResponse<>();
+        expect(parser, JsonToken.START_OBJECT);
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            switch (field) {
+                case "_scroll_id":
+                    response.scrollId = parser.getText();
+                    break;
+                case "hits":
+                    response.readHits(parser, hitReader);
+                    break;
+                case "aggregations":
+                    response.readAggregations(parser, aggregationName);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+
+        return response;
+    }
+
+    private void readHits(JsonParser parser, HitReader<E> hitReader) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            if (field.equals("total")) {
+                this.totalHits = parser.getLongValue();
+            } else if (field.equals("hits")) {
+                expect(parser, JsonToken.START_ARRAY);
+
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    E hit = hitReader.read(parser);
+
+                    if (hit != null) {
+                        this.hits.add(hit);
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readAggregations(JsonParser parser, String aggregationName) throws IOException {
+        expect(parser, JsonToken.START_OBJECT);
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            if (!field.equals(aggregationName)) {
+                parser.skipChildren();
+                continue;
+            }
+
+            Map<?, ?> aggregation = (Map<?, ?>) readValue(parser);
+            Object buckets = aggregation.get("buckets");
+
+            if (buckets != null) {
+                ((List<?>) buckets).stream()
+                        .map(bucket -> (Map<?, ?>) bucket)
+                        .forEach(bucket -> this.groups.merge(
+                                BaseElasticsearchBackend.getGroup(bucket.get("key"), (String) bucket.get("key_as_string")),
+                                ((Number) bucket.get("doc_count")).longValue(), Long::sum));
+            }
+        }
+    }
+
+    /**
+     * Reads the value of the current token, as the values of a parsed source:
+     * small integers are read as Integer, larger ones as Long, and decimals as Double
+     */
+    static Object readValue(JsonParser parser) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                return parser.getNumberValue();
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_TRUE:
+                return true;
+            case VALUE_FALSE:
+                return false;
+            case VALUE_NULL:
+                return null;
+            case START_ARRAY:
+                List<Object> list = new ArrayList<>();
+
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    list.add(readValue(parser));
+                }
+
+                return list;
+            case START_OBJECT:
+                Map<String, Object> map = new LinkedHashMap<>();
+
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.getCurrentName();
+                    parser.nextToken();
+                    map.put(key, readValue(parser));
+                }
+
+                return map;
+        }
+
+        throw new IllegalStateException(String.format("Unexpected token '%s' at %s", parser.getCurrentToken(), parser.getCurrentLocation()));
+    }
+
+    private static void expect(JsonParser parser, JsonToken token) {
+        if (parser.getCurrentToken() != token) {
+            throw new IllegalStateException(String.format("Expected token '%s' but got '%s' at %s", token, parser.getCurrentToken(), parser.getCurrentLocation()));
+        }
+    }
+}
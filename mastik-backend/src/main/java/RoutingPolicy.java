@@ -0,0 +1,40 @@
+import org.apache.tinkerpop.gremlin.structure.Direction;
+
+/**
+ * Determines the routing of vertex and edge documents,
+ * so queries over known ids are sent only to the shards owning them
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/7/17
+ */
+public interface RoutingPolicy {
+    /**
+     * A policy of documents which were indexed without custom routing
+     */
+    RoutingPolicy NONE = new RoutingPolicy() {
+        @Override
+        public String vertexRouting(Object vertexId) {
+            return null;
+        }
+
+        @Override
+        public String edgeRouting(Object vertexId, Direction direction) {
+            return null;
+        }
+    };
+
+    /**
+     * Returns the routing of the document of the given vertex
+     * @param vertexId Id of the vertex
+     * @return Routing value, or null if the vertex document may reside in any shard
+     */
+    String vertexRouting(Object vertexId);
+
+    /**
+     * Returns the routing of the edge documents of the given vertex in the given direction
+     * @param vertexId Id of the vertex
+     * @param direction Direction of the edges, either {@link Direction#OUT} or {@link Direction#IN}
+     * @return Routing value, or null if the edge documents may reside in any shard
+     */
+    String edgeRouting(Object vertexId, Direction direction);
+}
@@ -0,0 +1,88 @@
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates over the pages of a scroll search.
+ * A page is fetched from Elasticsearch only when it is requested,
+ * and the scroll context is cleared once the last page was reached
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/3/17
+ */
+class ScrollPagesIterator implements Iterator<SearchHit[]>, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(ScrollPagesIterator.class);
+
+    private final Client client;
+    private final TimeValue keepAlive;
+    private String scrollId;
+    private SearchHit[] nextPage;
+
+    /**
+     * @param client Client to fetch the following pages with
+     * @param firstResponse Response of the search request that opened the scroll
+     * @param keepAlive How long to keep the scroll context alive between two fetches
+     */
+    ScrollPagesIterator(Client client, SearchResponse firstResponse, TimeValue keepAlive) {
+        this.client = client;
+        this.keepAlive = keepAlive;
+        this.scrollId = firstResponse.getScrollId();
+        this.nextPage = firstResponse.getHits().getHits();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (this.nextPage == null && this.scrollId != null) {
+            SearchResponse response = this.client.prepareSearchScroll(this.scrollId)
+                    .setScroll(this.keepAlive)
+                    .execute().actionGet();
+
+            this.scrollId = response.getScrollId();
+            this.nextPage = response.getHits().getHits();
+        }
+
+        if (this.nextPage != null && this.nextPage.length == 0) {
+            this.nextPage = null;
+            close();
+        }
+
+        return this.nextPage != null;
+    }
+
+    @Override
+    public SearchHit[] next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        SearchHit[] page = this.nextPage;
+        this.nextPage = null;
+
+        return page;
+    }
+
+    /**
+     * Clears the scroll context, if it is still open
+     */
+    @Override
+    public void close() {
+        if (this.scrollId == null) {
+            return;
+        }
+
+        String scrollId = this.scrollId;
+        this.scrollId = null;
+
+        try {
+            this.client.prepareClearScroll().addScrollId(scrollId).execute().actionGet();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to clear scroll '{}' due to inner exception: {}", scrollId, e);
+        }
+    }
+}
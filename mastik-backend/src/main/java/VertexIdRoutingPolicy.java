@@ -0,0 +1,47 @@
+import org.apache.tinkerpop.gremlin.structure.Direction;
+
+/**
+ * A {@link RoutingPolicy} of documents routed by vertex id:
+ * vertex documents are routed by their own id, and edge documents by the id of one of their vertices
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/7/17
+ */
+public class VertexIdRoutingPolicy implements RoutingPolicy {
+    private final Direction edgesDirection;
+
+    /**
+     * Creates a policy where edges are routed by their out-vertex id
+     */
+    public VertexIdRoutingPolicy() {
+        this(Direction.OUT);
+    }
+
+    /**
+     * @param edgesDirection Direction of the vertex edges are routed by,
+     *                       e.g. {@link Direction#OUT} when edges are routed by their out-vertex id
+     */
+    public VertexIdRoutingPolicy(Direction edgesDirection) {
+        if (edgesDirection == Direction.BOTH) {
+            throw new IllegalArgumentException("Edges can be routed either by their in-vertex or by their out-vertex");
+        }
+
+        this.edgesDirection = edgesDirection;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String vertexRouting(Object vertexId) {
+        return vertexId.toString();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String edgeRouting(Object vertexId, Direction direction) {
+        return direction == this.edgesDirection ? vertexId.toString() : null;
+    }
+}
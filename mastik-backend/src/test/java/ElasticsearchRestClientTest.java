@@ -0,0 +1,307 @@
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.T;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.apache.tinkerpop.gremlin.structure.VertexProperty;
+import org.apache.tinkerpop.gremlin.structure.util.detached.DetachedVertex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastik.Backend;
+import org.mastik.ElementCreator;
+import org.mastik.query.PredicatesTree;
+import org.mastik.query.Query;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the REST client and the reading of its responses against a local stub of the HTTP interface of Elasticsearch,
+ * which answers each request with the next stubbed response and records the requests it got
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 3/1/17
+ */
+public class ElasticsearchRestClientTest {
+
+    /**
+     * A stubbed response, and whether it is gzipped
+     */
+    private static class StubResponse {
+        private final int status;
+        private final String body;
+        private final boolean gzip;
+
+        private StubResponse(int status, String body, boolean gzip) {
+            this.status = status;
+            this.body = body;
+            this.gzip = gzip;
+        }
+    }
+
+    private HttpServer server;
+    private Queue<StubResponse> responses;
+    private List<String> requests;
+    private List<String> acceptEncodings;
+    private ElasticsearchBackendConfiguration configuration;
+    private String baseUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        this.responses = new ConcurrentLinkedQueue<>();
+        this.requests = Collections.synchronizedList(new ArrayList<>());
+        this.acceptEncodings = Collections.synchronizedList(new ArrayList<>());
+        this.configuration = new ElasticsearchBackendConfiguration();
+
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext("/", this::handle);
+        this.server.start();
+
+        this.baseUrl = "http://localhost:" + this.server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        this.server.stop(0);
+    }
+
+    @Test
+    public void readsSearchHitsAndAggregations() {
+        stub(200, "{\"took\":1,\"hits\":{\"total\":2,\"max_score\":1.0,\"hits\":[" +
+                "{\"_index\":\"graph-vertices\",\"_id\":\"1\",\"_source\":{\"name\":\"a\"}}," +
+                "{\"_index\":\"graph-vertices\",\"_id\":\"2\",\"_source\":{\"name\":\"b\"}}]}," +
+                "\"aggregations\":{\"group_count\":{\"buckets\":[" +
+                "{\"key\":1,\"key_as_string\":\"true\",\"doc_count\":3}," +
+                "{\"key\":17,\"doc_count\":2}," +
+                "{\"key\":\"name\",\"doc_count\":1}]}}}", false);
+
+        RestSearchResponse<String> response = createClient().execute("POST", "/graph-vertices/_search", "{}",
+                parser -> RestSearchResponse.read(parser, ElasticsearchRestClientTest::readId, "group_count"));
+
+        assertEquals(2, response.getTotalHits());
+        assertEquals(Arrays.asList("1", "2"), response.getHits());
+        assertNull(response.getScrollId());
+
+        Map<Object, Long> groups = new HashMap<>();
+        groups.put(true, 3L);
+        groups.put(17, 2L);
+        groups.put("name", 1L);
+        assertEquals(groups, response.getGroups());
+
+        assertEquals(Collections.singletonList("POST /graph-vertices/_search {}"), this.requests);
+    }
+
+    @Test
+    public void readsGzippedResponse() {
+        stub(200, "{\"hits\":{\"total\":1,\"hits\":[{\"_id\":\"1\",\"_source\":{}}]}}", true);
+
+        RestSearchResponse<String> response = createClient().execute("POST", "/graph-vertices/_search", "{}",
+                parser -> RestSearchResponse.read(parser, ElasticsearchRestClientTest::readId, null));
+
+        assertEquals(Collections.singletonList("1"), response.getHits());
+        assertEquals(Collections.singletonList("gzip"), this.acceptEncodings);
+    }
+
+    @Test
+    public void failsOnErrorStatus() {
+        stub(500, "{\"error\":\"search_phase_execution_exception\",\"status\":500}", true);
+
+        try {
+            createClient().execute("POST", "/graph-vertices/_search", "{}",
+                    parser -> RestSearchResponse.read(parser, ElasticsearchRestClientTest::readId, null));
+            fail("Expected the request to fail");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("500"));
+            assertTrue(e.getMessage(), e.getMessage().contains("search_phase_execution_exception"));
+        }
+    }
+
+    @Test
+    public void scrollsToTheLastPageAndClearsTheScroll() {
+        stub(200, "{\"_scroll_id\":\"scroll-1\",\"hits\":{\"total\":3,\"hits\":[{\"_id\":\"1\",\"_source\":{}},{\"_id\":\"2\",\"_source\":{}}]}}", false);
+        stub(200, "{\"_scroll_id\":\"scroll-2\",\"hits\":{\"total\":3,\"hits\":[{\"_id\":\"3\",\"_source\":{}}]}}", true);
+        stub(200, "{\"_scroll_id\":\"scroll-3\",\"hits\":{\"total\":3,\"hits\":[]}}", false);
+        stub(200, "{\"succeeded\":true}", false);
+
+        ElasticsearchRestBackend backend = createBackend();
+
+        try (Stream<Vertex> vertices = backend.query(new Query<>(Vertex.class, PredicatesTree.emptyTree(),
+                Query.noLimit(), Query.allLabels(), Query.noOrders()))) {
+            assertEquals(Arrays.asList("1", "2", "3"), vertices.map(vertex -> vertex.id().toString()).collect(Collectors.toList()));
+        }
+
+        backend.close();
+
+        assertEquals(4, this.requests.size());
+        assertTrue(this.requests.get(0), this.requests.get(0).startsWith("POST /graph-vertices/_search?scroll="));
+        assertTrue(this.requests.get(1), this.requests.get(1).startsWith("POST /_search/scroll ") && this.requests.get(1).contains("scroll-1"));
+        assertTrue(this.requests.get(2), this.requests.get(2).startsWith("POST /_search/scroll ") && this.requests.get(2).contains("scroll-2"));
+        assertEquals("DELETE /_search/scroll/scroll-3 ", this.requests.get(3));
+    }
+
+    @Test
+    public void clearsTheScrollOfAClosedStream() {
+        stub(200, "{\"_scroll_id\":\"scroll-1\",\"hits\":{\"total\":3,\"hits\":[{\"_id\":\"1\",\"_source\":{}},{\"_id\":\"2\",\"_source\":{}}]}}", false);
+        stub(200, "{\"succeeded\":true}", false);
+
+        ElasticsearchRestBackend backend = createBackend();
+
+        try (Stream<Vertex> vertices = backend.query(new Query<>(Vertex.class, PredicatesTree.emptyTree(),
+                Query.noLimit(), Query.allLabels(), Query.noOrders()))) {
+            assertEquals("1", vertices.findFirst().map(vertex -> vertex.id().toString()).orElse(null));
+        }
+
+        backend.close();
+
+        assertEquals(2, this.requests.size());
+        assertEquals("DELETE /_search/scroll/scroll-1 ", this.requests.get(1));
+    }
+
+    @Test
+    public void multiGetSkipsMissingDocuments() {
+        stub(200, "{\"docs\":[" +
+                "{\"_index\":\"graph-vertices\",\"_id\":\"1\",\"found\":true,\"_source\":{\"name\":\"a\"}}," +
+                "{\"_index\":\"graph-vertices\",\"_id\":\"2\",\"found\":false}]}", true);
+
+        ElasticsearchRestBackend backend = createBackend();
+        PredicatesTree ids = PredicatesTree.createFromPredicates(new HasContainer(T.id.getAccessor(), P.within("1", "2")));
+        List<Vertex> vertices;
+
+        try (Stream<Vertex> results = backend.query(new Query<>(Vertex.class, ids, Query.noLimit(), Query.allLabels(), Query.noOrders()))) {
+            vertices = results.collect(Collectors.toList());
+        }
+
+        backend.close();
+
+        assertEquals(1, vertices.size());
+        assertEquals("1", vertices.get(0).id());
+        assertEquals("a", vertices.get(0).value("name"));
+
+        assertEquals(1, this.requests.size());
+        assertTrue(this.requests.get(0), this.requests.get(0).startsWith("POST /graph-vertices/_mget "));
+    }
+
+    private void stub(int status, String body, boolean gzip) {
+        this.responses.add(new StubResponse(status, body, gzip));
+    }
+
+    /**
+     * Records the request, and answers it with the next stubbed response, gzipped if it was stubbed so
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        String body = new String(ByteStreams.toByteArray(exchange.getRequestBody()), StandardCharsets.UTF_8);
+        this.requests.add(String.format("%s %s %s", exchange.getRequestMethod(), exchange.getRequestURI(), body));
+
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null) {
+            this.acceptEncodings.add(acceptEncoding);
+        }
+
+        StubResponse response = this.responses.poll();
+        if (response == null) {
+            response = new StubResponse(404, "{\"error\":\"no stubbed response\"}", false);
+        }
+
+        byte[] bytes = response.body.getBytes(StandardCharsets.UTF_8);
+
+        if (response.gzip) {
+            ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+
+            try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+                gzip.write(bytes);
+            }
+
+            bytes = gzipped.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(response.status, bytes.length);
+
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(bytes);
+        }
+    }
+
+    private ElasticsearchRestClient createClient() {
+        return new ElasticsearchRestClient(Collections.singletonList(this.baseUrl), this.configuration);
+    }
+
+    private ElasticsearchRestBackend createBackend() {
+        return new ElasticsearchRestBackend(Collections.singletonList(this.baseUrl), new DetachedElementCreator(), this.configuration);
+    }
+
+    /**
+     * Reads the id of a hit, skipping the rest of it
+     */
+    private static String readId(JsonParser parser) throws IOException {
+        String id = null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+
+            if (field.equals("_id")) {
+                id = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return id;
+    }
+
+    /**
+     * Creates detached vertices, as the backend is tested without a graph
+     */
+    private static class DetachedElementCreator implements ElementCreator {
+        @Override
+        public Vertex createVertexFromId(String vertexId, Backend backend) {
+            return createVertex(vertexId, Collections.emptyMap(), backend);
+        }
+
+        @Override
+        public Edge createEdge(String edgeId, String label, Map<String, Object> properties, Vertex outVertex, Vertex inVertex, Backend backend) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Vertex createVertex(String vertexId, Map<String, Object> properties, Backend backend) {
+            Map<String, Object> vertexProperties = new HashMap<>();
+            properties.forEach((key, value) -> {
+                Map<String, Object> property = new HashMap<>();
+                property.put("id", key);
+                property.put("value", value);
+
+                vertexProperties.put(key, Collections.singletonList(property));
+            });
+
+            return new DetachedVertex(vertexId, Vertex.DEFAULT_LABEL, vertexProperties);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public Vertex createDeferredVertex(String vertexId, Map<String, VertexProperty> properties, Backend backend) {
+            Map<String, Object> values = new HashMap<>();
+            properties.forEach((key, property) -> values.put(key, property.value()));
+
+            return createVertex(vertexId, values, backend);
+        }
+    }
+}
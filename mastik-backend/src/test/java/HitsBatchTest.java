@@ -0,0 +1,233 @@
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.apache.tinkerpop.gremlin.structure.util.detached.DetachedVertex;
+import org.elasticsearch.common.text.Text;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.junit.Test;
+import org.mastik.query.PredicatesTree;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that selecting the rows of a batch by columns agrees with testing the elements of the rows one by one
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 3/1/17
+ */
+public class HitsBatchTest {
+    private static final int TREES = 1000;
+    private static final int HITS = 100;
+    private static final long LARGE = 1L << 40;
+
+    @Test
+    public void selectsTheRowsWhichPassThePredicates() throws IOException {
+        Random random = new Random(17);
+        SearchHit[] hits = new SearchHit[HITS];
+
+        for (int row = 0; row < hits.length; row++) {
+            hits[row] = createHit(row, randomSource(random));
+        }
+
+        HitsBatch batch = new HitsBatch(hits, null);
+        List<Vertex> vertices = new ArrayList<>();
+
+        for (int row = 0; row < batch.size(); row++) {
+            vertices.add(createVertex(row, batch.getSource(row)));
+        }
+
+        for (int i = 0; i < TREES; i++) {
+            PredicatesTree tree = randomTree(random, 2);
+            assertTrue(batch.canSelect(tree));
+
+            BitSet selected = batch.select(tree);
+
+            for (int row = 0; row < batch.size(); row++) {
+                assertEquals(String.format("%s tested against %s", tree, batch.getSource(row)),
+                        test(tree, vertices.get(row)), selected.get(row));
+            }
+        }
+    }
+
+    @Test
+    public void doesNotSelectByIds() throws IOException {
+        HitsBatch batch = new HitsBatch(new SearchHit[]{createHit(0, Collections.singletonMap("age", 1))}, null);
+
+        assertFalse(batch.canSelect(PredicatesTree.createFromPredicates(new HasContainer("~id", P.eq("0")))));
+        assertFalse(batch.canSelect(PredicatesTree.createFromPredicates(new HasContainer("~label", P.eq("vertex")))));
+        assertTrue(batch.canSelect(PredicatesTree.createFromPredicates(new HasContainer("age", P.eq(1)))));
+    }
+
+    /**
+     * Tests the given element against the tree, one predicate at a time as {@link HasContainer#test} does
+     */
+    private static boolean test(PredicatesTree tree, Element element) {
+        if (tree.isEmpty()) {
+            return true;
+        }
+
+        List<Boolean> results = new ArrayList<>();
+
+        if (tree.hasPredicates()) {
+            tree.predicates().forEach(predicate -> results.add(predicate.test(element)));
+        }
+
+        if (tree.hasChildren()) {
+            tree.children().forEach(child -> results.add(test(child, element)));
+        }
+
+        return tree.isAnd() ? !results.contains(false) : results.contains(true);
+    }
+
+    private static PredicatesTree randomTree(Random random, int depth) {
+        List<HasContainer> predicates = new ArrayList<>();
+        List<PredicatesTree> children = new ArrayList<>();
+
+        int predicatesCount = random.nextInt(3) + 1;
+        for (int i = 0; i < predicatesCount; i++) {
+            predicates.add(randomPredicate(random));
+        }
+
+        int childrenCount = depth > 0 ? random.nextInt(3) : 0;
+        for (int i = 0; i < childrenCount; i++) {
+            children.add(randomTree(random, depth - 1));
+        }
+
+        return random.nextBoolean() ?
+                PredicatesTree.createAnd(predicates, children) :
+                PredicatesTree.createOr(predicates, children);
+    }
+
+    /**
+     * Returns a predicate over a column of integers, of doubles, of large numbers or of numbers of any type,
+     * over a column of strings, or over a column of mixed types which is only tested for equality
+     */
+    private static HasContainer randomPredicate(Random random) {
+        switch (random.nextInt(6)) {
+            case 0:
+                return randomComparison(random, "count", randomNumber(random));
+            case 1:
+                return randomComparison(random, "score", randomNumber(random));
+            case 2:
+                return randomComparison(random, "age", randomNumber(random));
+            case 3:
+                return randomComparison(random, "size", random.nextBoolean() ? LARGE + random.nextInt(5) : randomNumber(random));
+            case 4:
+                switch (random.nextInt(3)) {
+                    case 0:
+                        return new HasContainer("name", P.eq(randomName(random)));
+                    case 1:
+                        return new HasContainer("name", P.neq(randomName(random)));
+                    default:
+                        return new HasContainer("name", P.within(randomName(random), randomName(random)));
+                }
+            default:
+                switch (random.nextInt(3)) {
+                    case 0:
+                        return new HasContainer("mixed", P.eq(randomMixed(random)));
+                    case 1:
+                        return new HasContainer("mixed", P.neq(randomMixed(random)));
+                    default:
+                        return new HasContainer("mixed", P.within(randomMixed(random), randomMixed(random)));
+                }
+        }
+    }
+
+    private static HasContainer randomComparison(Random random, String key, Object value) {
+        switch (random.nextInt(7)) {
+            case 0:
+                return new HasContainer(key, P.eq(value));
+            case 1:
+                return new HasContainer(key, P.neq(value));
+            case 2:
+                return new HasContainer(key, P.gt(value));
+            case 3:
+                return new HasContainer(key, P.gte(value));
+            case 4:
+                return new HasContainer(key, P.lt(value));
+            case 5:
+                return new HasContainer(key, P.lte(value));
+            default:
+                return new HasContainer(key, P.within(value, randomNumber(random)));
+        }
+    }
+
+    private static Map<String, Object> randomSource(Random random) {
+        Map<String, Object> source = new HashMap<>();
+
+        if (random.nextInt(5) > 0) {
+            source.put("count", random.nextInt(5));
+        }
+
+        if (random.nextInt(5) > 0) {
+            source.put("score", random.nextInt(10) / 2d);
+        }
+
+        if (random.nextInt(5) > 0) {
+            source.put("age", randomNumber(random));
+        }
+
+        if (random.nextInt(5) > 0) {
+            source.put("size", LARGE + random.nextInt(5));
+        }
+
+        if (random.nextInt(5) > 0) {
+            source.put("name", randomName(random));
+        }
+
+        if (random.nextInt(5) > 0) {
+            source.put("mixed", randomMixed(random));
+        }
+
+        return source;
+    }
+
+    private static String randomName(Random random) {
+        return String.valueOf((char) ('a' + random.nextInt(4)));
+    }
+
+    /**
+     * Returns a small number, which is an Integer, a Long or a Double
+     */
+    private static Object randomNumber(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return random.nextInt(5);
+            case 1:
+                return (long) random.nextInt(5);
+            default:
+                return random.nextInt(10) / 2d;
+        }
+    }
+
+    private static Object randomMixed(Random random) {
+        return random.nextBoolean() ? randomName(random) : randomNumber(random);
+    }
+
+    private static SearchHit createHit(int row, Map<String, Object> source) throws IOException {
+        return new InternalSearchHit(row, String.valueOf(row), new Text("vertex"), Collections.emptyMap())
+                .sourceRef(XContentFactory.jsonBuilder().map(source).bytes());
+    }
+
+    /**
+     * Creates a vertex of the decoded source of a row, so its properties have the same types as the columns
+     */
+    private static Vertex createVertex(int row, Map<String, Object> source) {
+        Map<String, Object> properties = new HashMap<>();
+        source.forEach((key, value) -> {
+            Map<String, Object> property = new HashMap<>();
+            property.put("id", key);
+            property.put("value", value);
+
+            properties.put(key, Collections.singletonList(property));
+        });
+
+        return new DetachedVertex(String.valueOf(row), Vertex.DEFAULT_LABEL, properties);
+    }
+}
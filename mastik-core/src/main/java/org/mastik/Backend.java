@@ -3,10 +3,16 @@ package org.mastik;
 import org.apache.tinkerpop.gremlin.structure.Edge;
 import org.apache.tinkerpop.gremlin.structure.Element;
 import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.javatuples.Pair;
+import org.mastik.cache.NegativeCache;
 import org.mastik.query.Query;
 import org.mastik.query.VertexQuery;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -32,6 +38,89 @@ public interface Backend {
      */
     Stream<Edge> queryVertex(VertexQuery query);
 
+    /**
+     * Asynchronous version of {@link #query(Query)}, which does not block the calling thread.
+     * The future is completed on a thread of the backend rather than on an I/O thread of the data store client,
+     * yet stages which block on its completion should still run on an executor of their own
+     * @param query A org.mastik.structure.query to lookup
+     * @param <E> Type of result
+     * @return Returns a future, completed with a stream of org.mastik.structure.query results
+     */
+    <E extends Element> CompletableFuture<Stream<E>> queryAsync(Query<E> query);
+
+    /**
+     * Asynchronous version of {@link #queryVertex(VertexQuery)}, which does not block the calling thread.
+     * The future is completed as the future of {@link #queryAsync(Query)}
+     * @param query A org.mastik.structure.query to lookup
+     * @return Returns a future, completed with a stream of edges which are the org.mastik.structure.query results
+     */
+    CompletableFuture<Stream<Edge>> queryVertexAsync(VertexQuery query);
+
+    /**
+     * Same as {@link #queryVertexAsync(VertexQuery)}, but only the ids of the vertices of each edge are returned,
+     * for navigating from the queried vertices to their neighbors without creating the edges
+     * @param query A org.mastik.structure.query to lookup
+     * @return Returns a future, completed with a stream of (out-vertex id, in-vertex id) pairs, one per each edge result
+     */
+    default CompletableFuture<Stream<Pair<String, String>>> queryVertexNeighborsAsync(VertexQuery query) {
+        return queryVertexAsync(query).thenApply(edges -> edges
+                .map(edge -> Pair.with(edge.outVertex().id().toString(), edge.inVertex().id().toString())));
+    }
+
+    /**
+     * Runs multiple independent {@link Query}s together, in as few round trips to the data store as it can.
+     * Each query fails on its own: the future of a failed query is completed exceptionally,
+     * and the futures of the other queries are not affected
+     * @param queries Queries to lookup
+     * @return Returns a future per each query, in the order of the given queries, completed with a stream of its results
+     */
+    default List<CompletableFuture<Stream<? extends Element>>> queryBatch(List<Query<?>> queries) {
+        return queries.stream()
+                .map(query -> this.queryAsync(query).<Stream<? extends Element>>thenApply(elements -> elements))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Counts the results of a {@link Query} in the data store, without retrieving them
+     * @param query A org.mastik.structure.query to count
+     * @param <E> Type of result
+     * @return Number of results, up to the query limit
+     */
+    <E extends Element> long count(Query<E> query);
+
+    /**
+     * Whether the data store counts and groups the results of a {@link Query} by itself,
+     * enforcing all of its predicates, so {@link #count(Query)} and {@link #groupCount(Query, String)} do not retrieve them
+     * @param query A org.mastik.structure.query to count
+     * @param <E> Type of result
+     * @return Whether the results are counted without retrieving them
+     */
+    default <E extends Element> boolean canCount(Query<E> query) {
+        return true;
+    }
+
+    /**
+     * Whether the data store groups the results of a {@link Query} by the given key by itself,
+     * so {@link #groupCount(Query, String)} does not retrieve them and its groups are keyed by the property values
+     * @param query A org.mastik.structure.query to group
+     * @param key Key of the property to group by, or {@link org.apache.tinkerpop.gremlin.structure.T#label} accessor
+     * @param <E> Type of result
+     * @return Whether the results are grouped without retrieving them
+     */
+    default <E extends Element> boolean canGroupCount(Query<E> query, String key) {
+        return canCount(query);
+    }
+
+    /**
+     * Groups the results of a {@link Query} by a property in the data store,
+     * and counts the results of each group, without retrieving them
+     * @param query A org.mastik.structure.query to group
+     * @param key Key of the property to group by, or {@link org.apache.tinkerpop.gremlin.structure.T#label} accessor
+     * @param <E> Type of result
+     * @return Number of results per each property value
+     */
+    <E extends Element> Map<Object, Long> groupCount(Query<E> query, String key);
+
     /**
      * Given a set of vertex-ids, returns a {@link Stream} of {@link Vertex} instances,
      * without any properties. When the first property of one of the vertices is fetched,
@@ -39,5 +128,25 @@ public interface Backend {
      * @param vertexIds Set of vertex ids to retrieve
      * @return Stream of vertex instances
      */
-    Stream<Vertex> getVerticesDeferred(Set<Object> vertexIds);
+    default Stream<Vertex> getVerticesDeferred(Set<Object> vertexIds) {
+        return getVerticesDeferred(vertexIds, Query.allLabels());
+    }
+
+    /**
+     * Same as {@link #getVerticesDeferred(Set)}, but when the properties are loaded,
+     * only the given property keys are fetched
+     * @param vertexIds Set of vertex ids to retrieve
+     * @param propertyKeys Keys of the properties to load, or {@link Query#allLabels()} to load all of them
+     * @return Stream of vertex instances
+     */
+    Stream<Vertex> getVerticesDeferred(Set<Object> vertexIds, Set<String> propertyKeys);
+
+    /**
+     * Returns the cache of vertices which were not found or have no edges,
+     * which traversal steps drop from their frontiers instead of querying them
+     * @return Negative cache of the backend, or null if negative results are not cached
+     */
+    default NegativeCache getNegativeCache() {
+        return null;
+    }
 }
@@ -1,10 +1,15 @@
 package org.mastik;
 
 import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Property;
 import org.apache.tinkerpop.gremlin.structure.Vertex;
 import org.apache.tinkerpop.gremlin.structure.VertexProperty;
+import org.apache.tinkerpop.gremlin.structure.util.detached.DetachedProperty;
+import org.apache.tinkerpop.gremlin.structure.util.detached.DetachedVertexProperty;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 /**
  * Encapsulating creation of concrete Graph elements
@@ -23,6 +28,18 @@ public interface ElementCreator {
      */
     Edge createEdge(String edgeId, String label, Map<String, Object> properties, Vertex outVertex, Vertex inVertex, Backend backend);
 
+    /**
+     * Creates a new instance of an Edge given already created properties.
+     * By default, the edge is created from the values of the properties
+     */
+    @SuppressWarnings("rawtypes")
+    default Edge createEdgeFromProperties(String edgeId, String label, Map<String, Property> properties, Vertex outVertex, Vertex inVertex, Backend backend) {
+        Map<String, Object> values = properties.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, entry -> entry.getValue().value()));
+
+        return createEdge(edgeId, label, values, outVertex, inVertex, backend);
+    }
+
     /**
      * Creates a new instance of a Vertex given raw arguments
      */
@@ -32,4 +49,22 @@ public interface ElementCreator {
      * Creates a new instance of a Vertex given arguments
      */
     Vertex createDeferredVertex(String vertexId, Map<String, VertexProperty> properties, Backend backend);
+
+    /**
+     * Creates a property of an Edge given raw key and value.
+     * By default, a detached property is created
+     */
+    @SuppressWarnings("rawtypes")
+    default Property createProperty(String key, Object value) {
+        return new DetachedProperty<>(key, value);
+    }
+
+    /**
+     * Creates a property of a Vertex given raw key and value.
+     * By default, a detached vertex property is created, whose id is its key
+     */
+    @SuppressWarnings("rawtypes")
+    default VertexProperty createVertexProperty(String key, Object value) {
+        return new DetachedVertexProperty<>(key, key, value, Collections.emptyMap());
+    }
 }
@@ -58,6 +58,20 @@ public class ElementUtils {
         return PredicatesTree.createFromPredicates(idPredicate);
     }
 
+    /**
+     * Given edge labels, creates a predicate-tree matching edges with any of them
+     * @param edgeLabels Edge labels, empty to match any edge
+     * @return New instance of predicate-tree with labels predicate
+     */
+    public static PredicatesTree createEdgeLabelsPredicate(String... edgeLabels) {
+        if (edgeLabels.length == 0) {
+            return PredicatesTree.emptyTree();
+        }
+
+        HasContainer labelsPredicate = new HasContainer(T.label.getAccessor(), P.within(edgeLabels));
+        return PredicatesTree.createFromPredicates(labelsPredicate);
+    }
+
     /**
      * Whether the given class is a Vertex
      *
@@ -1,6 +1,11 @@
 package org.mastik;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -15,4 +20,109 @@ public class StreamUtils {
         Iterable<T> iterable = () -> iterator;
         return StreamSupport.stream(iterable.spliterator(), false);
     }
+
+    /**
+     * Returns an iterator of the given stream, which closes the stream once it is exhausted
+     */
+    public static <T> Iterator<T> toClosingIterator(Stream<T> stream) {
+        Iterator<T> iterator = stream.iterator();
+
+        return new Iterator<T>() {
+            @Override
+            public boolean hasNext() {
+                if (iterator.hasNext()) {
+                    return true;
+                }
+
+                stream.close();
+                return false;
+            }
+
+            @Override
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+
+                return iterator.next();
+            }
+        };
+    }
+
+    /**
+     * Returns a stream of the results of the given future, which waits for the future only once it is consumed.
+     * Closing the returned stream closes the stream of the future,
+     * right away if it was consumed, or once the future completes otherwise
+     */
+    public static <T> Stream<T> fromFuture(CompletableFuture<Stream<T>> future) {
+        AtomicReference<Stream<T>> joined = new AtomicReference<>();
+
+        return StreamSupport.stream(() -> {
+            Stream<T> stream = future.join();
+            joined.set(stream);
+
+            return stream.spliterator();
+        }, Spliterator.ORDERED, false)
+                .onClose(() -> {
+                    Stream<T> stream = joined.get();
+
+                    if (stream != null) {
+                        stream.close();
+                    } else {
+                        future.thenAccept(Stream::close);
+                    }
+                });
+    }
+
+    /**
+     * Returns a stream of the elements of the given stream, which runs the given action once all of them were consumed.
+     * The action is not run if the returned stream is closed before it is exhausted
+     */
+    public static <T> Stream<T> onExhausted(Stream<T> stream, Runnable action) {
+        Spliterator<T> spliterator = stream.spliterator();
+
+        Spliterator<T> exhaustible = new Spliterator<T>() {
+            private boolean exhausted = false;
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> consumer) {
+                if (spliterator.tryAdvance(consumer)) {
+                    return true;
+                }
+
+                exhaust();
+                return false;
+            }
+
+            @Override
+            public void forEachRemaining(Consumer<? super T> consumer) {
+                spliterator.forEachRemaining(consumer);
+                exhaust();
+            }
+
+            @Override
+            public Spliterator<T> trySplit() {
+                return null;
+            }
+
+            @Override
+            public long estimateSize() {
+                return spliterator.estimateSize();
+            }
+
+            @Override
+            public int characteristics() {
+                return spliterator.characteristics() & ~(Spliterator.SIZED | Spliterator.SUBSIZED);
+            }
+
+            private void exhaust() {
+                if (!this.exhausted) {
+                    this.exhausted = true;
+                    action.run();
+                }
+            }
+        };
+
+        return StreamSupport.stream(exhaustible, false).onClose(stream::close);
+    }
 }
@@ -0,0 +1,410 @@
+package org.mastik.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.Direction;
+import org.mastik.StreamUtils;
+import org.mastik.query.PredicatesTree;
+import org.mastik.query.Query;
+import org.mastik.query.VertexQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * A cache of the adjacency of single vertices: the results of a {@link VertexQuery} per each of its vertices.
+ * A query is served from the cache for the vertices it holds, and only the missing vertices are queried,
+ * after which their results are cached and merged with the cached ones.
+ * Vertices with more results than the maximum degree (supernodes) are not cached,
+ * so they do not evict the adjacency of many other vertices.
+ * Optionally, adjacencies are also kept by a {@link MappedCacheStore}, which serves them after they are evicted
+ * and after a restart
+ *
+ * @param <T> Type of results, such as edges or the ids of their vertices
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/24/17
+ */
+public class AdjacencyCache<T> {
+    private static final Logger logger = LoggerFactory.getLogger(AdjacencyCache.class);
+
+    /**
+     * A vertex, and the query its adjacency was loaded by
+     */
+    private static class AdjacencyKey {
+        private final Object vertexId;
+        private final Direction direction;
+        private final PredicatesTree predicates;
+        private final Set<String> labels;
+
+        private AdjacencyKey(Object vertexId, VertexQuery query) {
+            this.vertexId = vertexId;
+            this.direction = query.getDirection();
+            this.predicates = query.getPredicates();
+            this.labels = query.getLabels() == null ? Query.allLabels() : query.getLabels();
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+
+            if (!(other instanceof AdjacencyKey)) {
+                return false;
+            }
+
+            AdjacencyKey otherKey = (AdjacencyKey) other;
+
+            return this.vertexId.equals(otherKey.vertexId) && this.direction == otherKey.direction &&
+                    this.predicates.equals(otherKey.predicates) && this.labels.equals(otherKey.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.vertexId, this.direction, this.predicates, this.labels);
+        }
+
+        /**
+         * Returns the key of this adjacency in a {@link MappedCacheStore},
+         * or null if its vertex id or predicates can not be encoded
+         */
+        private String toStoreKey(String namespace) {
+            Object predicates = encodePredicates(this.predicates);
+
+            if (predicates == null || !BinaryEncoding.canEncode(this.vertexId)) {
+                return null;
+            }
+
+            return BinaryEncoding.encodeKey(namespace, Arrays.asList(this.vertexId, this.direction.name(),
+                    new TreeSet<>(this.labels), predicates));
+        }
+
+        /**
+         * Encodes the given predicates, or returns null if any of them is not a built-in predicate of an encodable value,
+         * as the string of any other predicate may not tell it apart from a different one
+         */
+        private static Object encodePredicates(PredicatesTree tree) {
+            List<Object> predicates = new ArrayList<>();
+
+            for (HasContainer predicate : tree.hasPredicates() ? tree.predicates() : Collections.<HasContainer>emptyList()) {
+                if (!(predicate.getBiPredicate() instanceof Enum) || !BinaryEncoding.canEncode(predicate.getValue())) {
+                    return null;
+                }
+
+                Enum<?> biPredicate = (Enum<?>) predicate.getBiPredicate();
+                predicates.add(Arrays.asList(predicate.getKey(),
+                        biPredicate.getDeclaringClass().getName() + '.' + biPredicate.name(), predicate.getValue()));
+            }
+
+            List<Object> children = new ArrayList<>();
+
+            for (PredicatesTree child : tree.hasChildren() ? tree.children() : Collections.<PredicatesTree>emptyList()) {
+                Object encoded = encodePredicates(child);
+
+                if (encoded == null) {
+                    return null;
+                }
+
+                children.add(encoded);
+            }
+
+            return Arrays.asList(tree.isAnd(), predicates, children);
+        }
+    }
+
+    /**
+     * Results of a cached vertex, and when they expire
+     */
+    private static class CachedAdjacency<T> {
+        private final List<T> results;
+        private final long expiresAt;
+
+        private CachedAdjacency(List<T> results, long expiresAt) {
+            this.results = results;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - this.expiresAt >= 0;
+        }
+    }
+
+    private final int maximumDegree;
+    private final Function<T, Object> outVertexId;
+    private final Function<T, Object> inVertexId;
+    private final Cache<AdjacencyKey, CachedAdjacency<T>> adjacencies;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private MappedCacheStore store;
+    private String namespace;
+    private Function<T, Object> encoder;
+    private Function<Object, T> decoder;
+
+    /**
+     * @param maximumWeight Largest total number of results held by the cache
+     * @param maximumDegree Largest number of results of a single cached vertex
+     * @param outVertexId Returns the id of the out-vertex of a result
+     * @param inVertexId Returns the id of the in-vertex of a result
+     */
+    public AdjacencyCache(long maximumWeight, int maximumDegree, Function<T, Object> outVertexId, Function<T, Object> inVertexId) {
+        this.maximumDegree = maximumDegree;
+        this.outVertexId = outVertexId;
+        this.inVertexId = inVertexId;
+        this.adjacencies = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((AdjacencyKey key, CachedAdjacency<T> adjacency) -> adjacency.results.size() + 1)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Keeps the cached adjacencies in the given store as well, as a second tier which serves adjacencies
+     * evicted from memory, and the adjacencies cached before a restart
+     *
+     * @param store Store of the adjacencies, which may be shared with other caches
+     * @param namespace Prefix of the keys of this cache in the store
+     * @param encoder Encodes a result to values supported by the store: strings, numbers, booleans, lists and maps
+     * @param decoder Decodes a result encoded by the encoder
+     */
+    public void setSecondTier(MappedCacheStore store, String namespace, Function<T, Object> encoder, Function<Object, T> decoder) {
+        this.store = store;
+        this.namespace = namespace;
+        this.encoder = encoder;
+        this.decoder = decoder;
+    }
+
+    /**
+     * Whether the results of the given query can be split per vertex,
+     * which is when they are neither limited nor ordered across all of the queried vertices
+     */
+    public static boolean isCacheable(VertexQuery query) {
+        return query.getLimit() < 0 && (query.getOrders() == null || query.getOrders().isEmpty());
+    }
+
+    /**
+     * Returns the results of the given query, from the cache for the vertices it holds,
+     * and from the loader for the rest of the vertices, whose results are then cached.
+     * The loaded results are streamed through as they are consumed, and are split to the adjacency of each vertex on the way.
+     * They are cached once they were consumed to their end, so results closed before that, as by a limit, are not cached
+     *
+     * @param query A cacheable query, as checked by {@link #isCacheable(VertexQuery)}
+     * @param timeToLive How long the loaded results are cached
+     * @param loader Loads the results of a query over the missing vertices
+     * @return Future of the results of the whole query
+     */
+    public CompletableFuture<Stream<T>> query(VertexQuery query, Duration timeToLive, Function<VertexQuery, CompletableFuture<Stream<T>>> loader) {
+        Map<Object, List<T>> cached = new HashMap<>();
+        Set<Object> missingIds = new HashSet<>();
+
+        for (Object vertexId : query.getVertexIds()) {
+            List<T> results = getCached(new AdjacencyKey(vertexId, query));
+
+            if (results != null) {
+                cached.put(vertexId, results);
+            } else {
+                missingIds.add(vertexId);
+            }
+        }
+
+        if (missingIds.isEmpty()) {
+            return CompletableFuture.completedFuture(streamCached(query.getDirection(), cached, missingIds));
+        }
+
+        VertexQuery missingQuery = cached.isEmpty() ? query : new VertexQuery(missingIds, query.getDirection(),
+                query.getPredicates(), query.getLimit(), query.getLabels(), query.getOrders());
+
+        return loader.apply(missingQuery).thenApply(results -> {
+            Stream<T> loaded = timeToLive.isZero() || timeToLive.isNegative() ? results : cache(missingQuery, results, timeToLive);
+
+            return Stream.concat(loaded, streamCached(query.getDirection(), cached, missingIds));
+        });
+    }
+
+    /**
+     * Returns the statistics of the cache: its hits and misses per vertex, where an expired adjacency is a miss,
+     * and the number of adjacencies evicted to keep the cache within its weight
+     */
+    public CacheStats getStats() {
+        return new CacheStats(this.hits.sum(), this.misses.sum(), 0, 0, 0, this.adjacencies.stats().evictionCount());
+    }
+
+    /**
+     * Discards all cached adjacencies, including those of the second tier
+     */
+    public void invalidateAll() {
+        this.adjacencies.invalidateAll();
+
+        if (this.store != null) {
+            this.store.removeAll(this.namespace + ':');
+        }
+    }
+
+    private List<T> getCached(AdjacencyKey key) {
+        CachedAdjacency<T> adjacency = this.adjacencies.getIfPresent(key);
+
+        if (adjacency != null && adjacency.isExpired()) {
+            this.adjacencies.invalidate(key);
+            adjacency = null;
+        }
+
+        if (adjacency == null && this.store != null) {
+            adjacency = getStored(key);
+        }
+
+        if (adjacency == null) {
+            this.misses.increment();
+            return null;
+        }
+
+        this.hits.increment();
+
+        return adjacency.results;
+    }
+
+    /**
+     * Returns a stream of the loaded results of a query, which splits them to the adjacency of each of its vertices
+     * as they are consumed, and caches the adjacencies once the results were consumed to their end.
+     * A result of both directions belongs to both of its vertices, and a loop belongs to its vertex once.
+     * The adjacency of a vertex is dropped as soon as it has more results than the maximum degree
+     */
+    private Stream<T> cache(VertexQuery query, Stream<T> loaded, Duration timeToLive) {
+        Direction direction = query.getDirection();
+        Map<Object, List<T>> adjacencies = new HashMap<>();
+        query.getVertexIds().forEach(vertexId -> adjacencies.put(vertexId, new ArrayList<>()));
+
+        Stream<T> split = loaded.peek(result -> {
+            Object outVertexId = this.outVertexId.apply(result);
+            Object inVertexId = this.inVertexId.apply(result);
+
+            if (direction != Direction.IN) {
+                addAdjacent(adjacencies, outVertexId, result);
+            }
+
+            if (direction != Direction.OUT && (direction == Direction.IN || !inVertexId.equals(outVertexId))) {
+                addAdjacent(adjacencies, inVertexId, result);
+            }
+        });
+
+        return StreamUtils.onExhausted(split, () -> cache(query, adjacencies, timeToLive));
+    }
+
+    /**
+     * Adds a result to the adjacency of the given vertex, unless the vertex was not loaded or its adjacency was dropped,
+     * and drops the adjacency if it now has more results than the maximum degree
+     */
+    private void addAdjacent(Map<Object, List<T>> adjacencies, Object vertexId, T result) {
+        List<T> results = adjacencies.get(vertexId);
+
+        if (results == null) {
+            return;
+        }
+
+        if (results.size() >= this.maximumDegree) {
+            logger.debug("Vertex '{}' has more than {} adjacent results, and is not cached", vertexId, this.maximumDegree);
+            adjacencies.remove(vertexId);
+            return;
+        }
+
+        results.add(result);
+    }
+
+    /**
+     * Caches the given adjacencies of the vertices of a query
+     */
+    private void cache(VertexQuery query, Map<Object, List<T>> adjacencies, Duration timeToLive) {
+        long expiresAt = System.nanoTime() + timeToLive.toNanos();
+        long storeExpiresAt = System.currentTimeMillis() + timeToLive.toMillis();
+
+        adjacencies.forEach((vertexId, results) -> {
+            AdjacencyKey key = new AdjacencyKey(vertexId, query);
+            this.adjacencies.put(key, new CachedAdjacency<>(Collections.unmodifiableList(results), expiresAt));
+
+            if (this.store != null) {
+                store(key, results, storeExpiresAt);
+            }
+        });
+    }
+
+    /**
+     * Returns the adjacency of the given key from the store, and caches it in memory until it expires
+     */
+    private CachedAdjacency<T> getStored(AdjacencyKey key) {
+        String storeKey = key.toStoreKey(this.namespace);
+        byte[] bytes = storeKey != null ? this.store.get(storeKey) : null;
+
+        if (bytes == null) {
+            return null;
+        }
+
+        try {
+            List<?> stored = (List<?>) BinaryEncoding.decode(bytes);
+            long timeToLive = (Long) stored.get(0) - System.currentTimeMillis();
+
+            if (timeToLive <= 0) {
+                return null;
+            }
+
+            List<T> results = new ArrayList<>();
+            ((List<?>) stored.get(1)).forEach(result -> results.add(this.decoder.apply(result)));
+
+            CachedAdjacency<T> adjacency = new CachedAdjacency<>(Collections.unmodifiableList(results),
+                    System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeToLive));
+            this.adjacencies.put(key, adjacency);
+
+            return adjacency;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to decode the stored adjacency of vertex '{}' due to inner exception: {}", key.vertexId, e);
+            return null;
+        }
+    }
+
+    private void store(AdjacencyKey key, List<T> results, long expiresAt) {
+        String storeKey = key.toStoreKey(this.namespace);
+
+        if (storeKey == null) {
+            return;
+        }
+
+        List<Object> encoded = new ArrayList<>(results.size());
+        results.forEach(result -> encoded.add(this.encoder.apply(result)));
+
+        if (!BinaryEncoding.canEncode(encoded)) {
+            return;
+        }
+
+        this.store.put(storeKey, BinaryEncoding.encode(Arrays.asList(expiresAt, encoded)), expiresAt);
+    }
+
+    /**
+     * Returns the cached results of the given vertices, each of them once.
+     * Results of both directions whose other vertex was loaded are returned by the loaded results,
+     * and results between two cached vertices are returned by the adjacency of their out-vertex
+     */
+    private Stream<T> streamCached(Direction direction, Map<Object, List<T>> cached, Set<Object> loadedIds) {
+        if (direction != Direction.BOTH) {
+            return cached.values().stream().flatMap(List::stream);
+        }
+
+        return cached.entrySet().stream()
+                .flatMap(adjacency -> adjacency.getValue().stream()
+                        .filter(result -> {
+                            Object outVertexId = this.outVertexId.apply(result);
+                            Object inVertexId = this.inVertexId.apply(result);
+
+                            if (loadedIds.contains(outVertexId) || loadedIds.contains(inVertexId)) {
+                                return false;
+                            }
+
+                            return !cached.containsKey(outVertexId) || adjacency.getKey().equals(outVertexId);
+                        }));
+    }
+}
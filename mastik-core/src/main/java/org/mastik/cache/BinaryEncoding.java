@@ -0,0 +1,215 @@
+package org.mastik.cache;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * A compact, type-preserving binary encoding of property values, and of lists and maps of them.
+ * Integers are written as zig-zag variable-length numbers, and strings as UTF-8 with a variable-length size
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/25/17
+ */
+final class BinaryEncoding {
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte TRUE = 6;
+    private static final byte FALSE = 7;
+    private static final byte LIST = 8;
+    private static final byte MAP = 9;
+
+    private BinaryEncoding() {
+    }
+
+    /**
+     * Encodes the given value
+     *
+     * @throws IllegalArgumentException If the value, or a value it contains, has a type which can not be encoded
+     */
+    static byte[] encode(Object value) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            write(output, value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a value encoded by {@link #encode(Object)}
+     */
+    static Object decode(byte[] bytes) {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return read(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes the given value to a string, to be used as a key of a {@link MappedCacheStore}
+     *
+     * @throws IllegalArgumentException If the value, or a value it contains, has a type which can not be encoded
+     */
+    static String encodeKey(String namespace, Object value) {
+        return namespace + ':' + Base64.getUrlEncoder().withoutPadding().encodeToString(encode(value));
+    }
+
+    /**
+     * Whether the given value can be encoded
+     */
+    static boolean canEncode(Object value) {
+        if (value == null || value instanceof String || value instanceof Integer || value instanceof Long ||
+                value instanceof Double || value instanceof Float || value instanceof Boolean) {
+            return true;
+        }
+
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).stream().allMatch(BinaryEncoding::canEncode);
+        }
+
+        if (value instanceof Map) {
+            return ((Map<?, ?>) value).entrySet().stream()
+                    .allMatch(entry -> entry.getKey() instanceof String && canEncode(entry.getValue()));
+        }
+
+        return false;
+    }
+
+    private static void write(DataOutputStream output, Object value) throws IOException {
+        if (value == null) {
+            output.writeByte(NULL);
+        } else if (value instanceof String) {
+            output.writeByte(STRING);
+            writeString(output, (String) value);
+        } else if (value instanceof Integer) {
+            output.writeByte(INTEGER);
+            writeVarLong(output, (Integer) value);
+        } else if (value instanceof Long) {
+            output.writeByte(LONG);
+            writeVarLong(output, (Long) value);
+        } else if (value instanceof Double) {
+            output.writeByte(DOUBLE);
+            output.writeDouble((Double) value);
+        } else if (value instanceof Float) {
+            output.writeByte(FLOAT);
+            output.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            output.writeByte((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            output.writeByte(LIST);
+            writeVarLong(output, values.size());
+
+            for (Object element : values) {
+                write(output, element);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> values = (Map<?, ?>) value;
+            output.writeByte(MAP);
+            writeVarLong(output, values.size());
+
+            for (Map.Entry<?, ?> entry : values.entrySet()) {
+                if (!(entry.getKey() instanceof String)) {
+                    throw new IllegalArgumentException(String.format("Can not encode map key '%s'", entry.getKey()));
+                }
+
+                writeString(output, (String) entry.getKey());
+                write(output, entry.getValue());
+            }
+        } else {
+            throw new IllegalArgumentException(String.format("Can not encode value '%s' of type '%s'", value, value.getClass()));
+        }
+    }
+
+    private static Object read(DataInputStream input) throws IOException {
+        byte type = input.readByte();
+
+        switch (type) {
+            case NULL:
+                return null;
+            case STRING:
+                return readString(input);
+            case INTEGER:
+                return (int) readVarLong(input);
+            case LONG:
+                return readVarLong(input);
+            case DOUBLE:
+                return input.readDouble();
+            case FLOAT:
+                return input.readFloat();
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case LIST:
+                int size = (int) readVarLong(input);
+                List<Object> list = new ArrayList<>(size);
+
+                for (int i = 0; i < size; i++) {
+                    list.add(read(input));
+                }
+
+                return list;
+            case MAP:
+                int entries = (int) readVarLong(input);
+                Map<String, Object> map = new LinkedHashMap<>();
+
+                for (int i = 0; i < entries; i++) {
+                    String key = readString(input);
+                    map.put(key, read(input));
+                }
+
+                return map;
+        }
+
+        throw new IllegalStateException(String.format("Unexpected encoded type '%d'", type));
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(output, bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        byte[] bytes = new byte[(int) readVarLong(input)];
+        input.readFully(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarLong(DataOutputStream output, long value) throws IOException {
+        long zigZag = (value << 1) ^ (value >> 63);
+
+        while ((zigZag & ~0x7FL) != 0) {
+            output.writeByte((int) ((zigZag & 0x7F) | 0x80));
+            zigZag >>>= 7;
+        }
+
+        output.writeByte((int) zigZag);
+    }
+
+    private static long readVarLong(DataInputStream input) throws IOException {
+        long zigZag = 0;
+
+        for (int shift = 0; ; shift += 7) {
+            byte b = input.readByte();
+            zigZag |= (long) (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+
+        return (zigZag >>> 1) ^ -(zigZag & 1);
+    }
+}
@@ -0,0 +1,512 @@
+package org.mastik.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.javatuples.Pair;
+import org.mastik.Backend;
+import org.mastik.ElementCreator;
+import org.mastik.StreamUtils;
+import org.mastik.query.Query;
+import org.mastik.query.VertexQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * A {@link Backend} which caches the results of queries of another backend.
+ * Results are keyed by their queries, which are equal when their predicates, limit, labels and orders are,
+ * and are held until their time-to-live passes or until they are evicted to keep the cache within its weight.
+ * The weight of a result is the number of its elements.
+ * A result is cached as it is consumed, once it was consumed to its end,
+ * and misses of a query whose result is being consumed wait for it to be cached rather than querying it again.
+ * Unlimited and unordered vertex queries are cached per vertex instead, by an {@link AdjacencyCache},
+ * optionally backed by a {@link MappedCacheStore} on disk
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/22/17
+ */
+@SuppressWarnings("try")
+public class CachingBackend implements Backend, AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(CachingBackend.class);
+
+    /**
+     * Elements of a cached result, and when they expire
+     */
+    private static class CachedResult {
+        private final List<? extends Element> elements;
+        private final long expiresAt;
+
+        private CachedResult(List<? extends Element> elements, long expiresAt) {
+            this.elements = elements;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.nanoTime() - this.expiresAt >= 0;
+        }
+    }
+
+    private final Backend backend;
+    private final CachingBackendConfiguration configuration;
+    private final Cache<Query<?>, CachedResult> results;
+    private final ConcurrentMap<Query<?>, CompletableFuture<CachedResult>> inFlight = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService executor;
+    private final AdjacencyCache<Edge> edgesAdjacency;
+    private final AdjacencyCache<Pair<String, String>> neighborsAdjacency;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public CachingBackend(Backend backend) {
+        this(backend, new CachingBackendConfiguration());
+    }
+
+    public CachingBackend(Backend backend, CachingBackendConfiguration configuration) {
+        this.backend = backend;
+        this.configuration = configuration;
+        this.results = CacheBuilder.newBuilder()
+                .maximumWeight(configuration.getMaximumWeight())
+                .weigher((Query<?> query, CachedResult result) -> result.elements.size() + 1)
+                .recordStats()
+                .build();
+        this.executor = Executors.newScheduledThreadPool(configuration.getThreads(),
+                new ThreadFactoryBuilder().setNameFormat("mastik-cache-%d").setDaemon(true).build());
+
+        if (configuration.getAdjacencyMaximumWeight() > 0) {
+            this.edgesAdjacency = new AdjacencyCache<>(configuration.getAdjacencyMaximumWeight(), configuration.getAdjacencyMaximumDegree(),
+                    edge -> edge.outVertex().id(), edge -> edge.inVertex().id());
+            this.neighborsAdjacency = new AdjacencyCache<>(configuration.getAdjacencyMaximumWeight(), configuration.getAdjacencyMaximumDegree(),
+                    Pair::getValue0, Pair::getValue1);
+
+            if (configuration.getAdjacencyStore() != null) {
+                setSecondTier(configuration.getAdjacencyStore(), configuration.getElementCreator());
+            }
+        } else {
+            this.edgesAdjacency = null;
+            this.neighborsAdjacency = null;
+        }
+    }
+
+    /**
+     * Returns the cached result of the given query, or else queries the wrapped backend and caches its result
+     */
+    @Override
+    public <E extends Element> Stream<E> query(Query<E> query) {
+        List<E> cached = getCached(query);
+
+        return cached != null ? cached.stream() : cache(query, this.backend.query(query), startInFlight(query));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Stream<Edge> queryVertex(VertexQuery query) {
+        if (isAdjacencyCached(query)) {
+            return this.queryVertexAsync(query).join();
+        }
+
+        List<Edge> cached = getCached(query);
+
+        return cached != null ? cached.stream() : cache(query, this.backend.queryVertex(query), startInFlight(query));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <E extends Element> CompletableFuture<Stream<E>> queryAsync(Query<E> query) {
+        return this.queryCachedAsync(query, this.backend::queryAsync);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Stream<Edge>> queryVertexAsync(VertexQuery query) {
+        if (isAdjacencyCached(query)) {
+            return this.edgesAdjacency.query(query, getTimeToLive(query), this.backend::queryVertexAsync);
+        }
+
+        return this.queryCachedAsync(query, this.backend::queryVertexAsync);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Stream<Pair<String, String>>> queryVertexNeighborsAsync(VertexQuery query) {
+        if (isAdjacencyCached(query)) {
+            return this.neighborsAdjacency.query(query, getTimeToLive(query), this.backend::queryVertexNeighborsAsync);
+        }
+
+        return this.backend.queryVertexNeighborsAsync(query);
+    }
+
+    /**
+     * Returns the cached results of the given queries, and sends the misses to the wrapped backend in a single batch.
+     * Misses of queries whose results are already being read by other misses wait for them, as in {@link #queryAsync(Query)}
+     */
+    @Override
+    public List<CompletableFuture<Stream<? extends Element>>> queryBatch(List<Query<?>> queries) {
+        List<CompletableFuture<Stream<? extends Element>>> results = new ArrayList<>(Collections.nCopies(queries.size(), null));
+        List<Integer> missIndices = new ArrayList<>();
+        List<Query<?>> misses = new ArrayList<>();
+        List<CompletableFuture<CachedResult>> pendings = new ArrayList<>();
+
+        for (int i = 0; i < queries.size(); i++) {
+            Query<?> query = queries.get(i);
+
+            if (this.results.getIfPresent(query) != null ||
+                    (this.inFlight.containsKey(query) && !this.configuration.getInFlightWait().isZero())) {
+                results.set(i, this.queryAsync(query).thenApply(elements -> elements));
+                continue;
+            }
+
+            this.misses.increment();
+            missIndices.add(i);
+            misses.add(query);
+            pendings.add(startInFlight(query));
+        }
+
+        if (misses.isEmpty()) {
+            return results;
+        }
+
+        List<CompletableFuture<Stream<? extends Element>>> missResults;
+
+        try {
+            missResults = this.backend.queryBatch(misses);
+        } catch (RuntimeException e) {
+            for (int i = 0; i < misses.size(); i++) {
+                endInFlight(misses.get(i), pendings.get(i), null);
+            }
+
+            throw e;
+        }
+
+        for (int i = 0; i < misses.size(); i++) {
+            results.set(missIndices.get(i), cacheAsync(misses.get(i), missResults.get(i), pendings.get(i)));
+        }
+
+        return results;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <E extends Element> long count(Query<E> query) {
+        return this.backend.count(query);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <E extends Element> boolean canCount(Query<E> query) {
+        return this.backend.canCount(query);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <E extends Element> boolean canGroupCount(Query<E> query, String key) {
+        return this.backend.canGroupCount(query, key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public <E extends Element> Map<Object, Long> groupCount(Query<E> query, String key) {
+        return this.backend.groupCount(query, key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Stream<Vertex> getVerticesDeferred(Set<Object> vertexIds, Set<String> propertyKeys) {
+        return this.backend.getVerticesDeferred(vertexIds, propertyKeys);
+    }
+
+    /**
+     * Returns the statistics of the cache: its hits and misses, where an expired result is a miss,
+     * and the number of results evicted to keep the cache within its weight
+     */
+    public CacheStats getStats() {
+        return new CacheStats(this.hits.sum(), this.misses.sum(), 0, 0, 0, this.results.stats().evictionCount());
+    }
+
+    /**
+     * Returns the statistics of the adjacency caches, as in {@link AdjacencyCache#getStats()}
+     */
+    public CacheStats getAdjacencyStats() {
+        return this.edgesAdjacency == null ?
+                new CacheStats(0, 0, 0, 0, 0, 0) :
+                this.edgesAdjacency.getStats().plus(this.neighborsAdjacency.getStats());
+    }
+
+    /**
+     * Discards all cached results
+     */
+    public void invalidateAll() {
+        this.results.invalidateAll();
+
+        if (this.edgesAdjacency != null) {
+            this.edgesAdjacency.invalidateAll();
+            this.neighborsAdjacency.invalidateAll();
+        }
+    }
+
+    /**
+     * Whether the given query is served per vertex by the adjacency caches
+     */
+    private boolean isAdjacencyCached(VertexQuery query) {
+        return this.edgesAdjacency != null && AdjacencyCache.isCacheable(query);
+    }
+
+    /**
+     * Returns the cached elements of the given query, or null if they are not cached or already expired
+     */
+    private <E extends Element> List<E> getCached(Query<E> query) {
+        CachedResult result = this.results.getIfPresent(query);
+
+        if (result != null && result.isExpired()) {
+            this.results.invalidate(query);
+            result = null;
+        }
+
+        if (result == null) {
+            this.misses.increment();
+            return null;
+        }
+
+        this.hits.increment();
+
+        return getElements(result);
+    }
+
+    /**
+     * Returns the cached result of the given query, or else queries the wrapped backend and caches its result.
+     * If the result of the same query is already being read by another miss, waits for it to be cached instead,
+     * up to the in-flight wait, and queries the wrapped backend only if it was not
+     */
+    private <Q extends Query<E>, E extends Element> CompletableFuture<Stream<E>> queryCachedAsync(
+            Q query, Function<Q, CompletableFuture<Stream<E>>> backendQuery) {
+        List<E> cached = getCached(query);
+
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.stream());
+        }
+
+        CompletableFuture<CachedResult> inFlight = this.inFlight.get(query);
+
+        if (inFlight != null && !this.configuration.getInFlightWait().isZero()) {
+            return awaitInFlight(query, inFlight).thenCompose(result -> result != null ?
+                    CompletableFuture.completedFuture(this.<E>getElements(result).stream()) :
+                    backendQuery.apply(query).thenApply(elements -> cache(query, elements, startInFlight(query))));
+        }
+
+        CompletableFuture<CachedResult> pending = startInFlight(query);
+        CompletableFuture<Stream<E>> future;
+
+        try {
+            future = backendQuery.apply(query);
+        } catch (RuntimeException e) {
+            endInFlight(query, pending, null);
+            throw e;
+        }
+
+        return future
+                .whenComplete((elements, throwable) -> {
+                    if (throwable != null) {
+                        endInFlight(query, pending, null);
+                    }
+                })
+                .thenApply(elements -> cache(query, elements, pending));
+    }
+
+    /**
+     * Caches the elements of the given query result as they are consumed, and returns a stream of them.
+     * The result is cached once it was consumed to its end, so a stream closed before that, as by a limit, is not cached.
+     * Once a result turns out to be heavier than a single entry may be, it is streamed on without being buffered
+     *
+     * @param pending In-flight result of the query to complete, or null if the query is not in flight by this miss
+     */
+    private <E extends Element> Stream<E> cache(Query<E> query, Stream<E> elements, CompletableFuture<CachedResult> pending) {
+        Duration timeToLive = getTimeToLive(query);
+
+        if (timeToLive.isZero() || timeToLive.isNegative()) {
+            endInFlight(query, pending, null);
+            return elements;
+        }
+
+        int maximumEntryWeight = this.configuration.getMaximumEntryWeight();
+        List<E> buffer = new ArrayList<>();
+        AtomicBoolean isTooHeavy = new AtomicBoolean(false);
+
+        Stream<E> buffered = elements.peek(element -> {
+            if (isTooHeavy.get()) {
+                return;
+            }
+
+            if (buffer.size() < maximumEntryWeight) {
+                buffer.add(element);
+                return;
+            }
+
+            logger.debug("Result of query {} has more than {} elements, and is not cached", query, maximumEntryWeight);
+
+            isTooHeavy.set(true);
+            buffer.clear();
+            endInFlight(query, pending, null);
+        });
+
+        return StreamUtils.onExhausted(buffered, () -> {
+            if (!isTooHeavy.get()) {
+                CachedResult result = new CachedResult(Collections.unmodifiableList(buffer), System.nanoTime() + timeToLive.toNanos());
+                this.results.put(query, result);
+                endInFlight(query, this.inFlight.remove(query), result);
+                endInFlight(query, pending, result);
+            }
+        }).onClose(() -> endInFlight(query, pending, null));
+    }
+
+    /**
+     * Caches the future elements of the given query of a batch as in {@link #cache(Query, Stream, CompletableFuture)},
+     * or ends its in-flight result if the query failed
+     */
+    @SuppressWarnings("unchecked")
+    private <E extends Element> CompletableFuture<Stream<? extends Element>> cacheAsync(
+            Query<E> query, CompletableFuture<Stream<? extends Element>> future, CompletableFuture<CachedResult> pending) {
+        return future
+                .whenComplete((elements, throwable) -> {
+                    if (throwable != null) {
+                        endInFlight(query, pending, null);
+                    }
+                })
+                .thenApply(elements -> cache(query, (Stream<E>) elements, pending));
+    }
+
+    /**
+     * Marks the result of the given query as being read by a miss, unless it is already read by another miss
+     * or would not be cached either way
+     *
+     * @return The in-flight result to complete once the result is cached, or null if the query was not marked
+     */
+    private <E extends Element> CompletableFuture<CachedResult> startInFlight(Query<E> query) {
+        Duration timeToLive = getTimeToLive(query);
+
+        if (timeToLive.isZero() || timeToLive.isNegative()) {
+            return null;
+        }
+
+        CompletableFuture<CachedResult> pending = new CompletableFuture<>();
+
+        return this.inFlight.putIfAbsent(query, pending) == null ? pending : null;
+    }
+
+    /**
+     * Completes the in-flight result of the given query, with the cached result or with null if it was not cached,
+     * so misses waiting for it stop waiting
+     */
+    private <E extends Element> void endInFlight(Query<E> query, CompletableFuture<CachedResult> pending, CachedResult result) {
+        if (pending != null) {
+            this.inFlight.remove(query, pending);
+            pending.complete(result);
+        }
+    }
+
+    /**
+     * Returns the given in-flight result of the query, which is ended with null if it is not completed within the in-flight wait,
+     * so a result whose stream was abandoned without being closed is not waited for again
+     */
+    private <E extends Element> CompletableFuture<CachedResult> awaitInFlight(Query<E> query, CompletableFuture<CachedResult> inFlight) {
+        this.executor.schedule(() -> endInFlight(query, inFlight, null),
+                this.configuration.getInFlightWait().toNanos(), TimeUnit.NANOSECONDS);
+
+        return inFlight;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E extends Element> List<E> getElements(CachedResult result) {
+        return (List<E>) result.elements;
+    }
+
+    /**
+     * Keeps the adjacency caches in the given store as well, where edges are encoded by their ids, labels,
+     * vertex ids and property values, and are created again by the element creator
+     */
+    private void setSecondTier(MappedCacheStore store, ElementCreator elementCreator) {
+        this.neighborsAdjacency.setSecondTier(store, "neighbors",
+                neighbors -> Arrays.asList(neighbors.getValue0(), neighbors.getValue1()),
+                encoded -> {
+                    List<?> neighbors = (List<?>) encoded;
+                    return Pair.with((String) neighbors.get(0), (String) neighbors.get(1));
+                });
+
+        if (elementCreator == null) {
+            return;
+        }
+
+        this.edgesAdjacency.setSecondTier(store, "edges",
+                edge -> {
+                    Map<String, Object> properties = new HashMap<>();
+                    edge.properties().forEachRemaining(property -> properties.put(property.key(), property.value()));
+
+                    return Arrays.asList(edge.id(), edge.label(), edge.outVertex().id(), edge.inVertex().id(), properties);
+                },
+                encoded -> {
+                    List<?> edge = (List<?>) encoded;
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> properties = (Map<String, Object>) edge.get(4);
+
+                    return elementCreator.createEdge((String) edge.get(0), (String) edge.get(1), properties,
+                            elementCreator.createVertexFromId((String) edge.get(2), this.backend),
+                            elementCreator.createVertexFromId((String) edge.get(3), this.backend), this.backend);
+                });
+    }
+
+    /**
+     * Returns the negative cache of the wrapped backend
+     */
+    @Override
+    public NegativeCache getNegativeCache() {
+        return this.backend.getNegativeCache();
+    }
+
+    private Duration getTimeToLive(Query<?> query) {
+        Duration timeToLive = this.configuration.getTimeToLivePolicy() != null ?
+                this.configuration.getTimeToLivePolicy().apply(query) : null;
+
+        return timeToLive != null ? timeToLive : this.configuration.getTimeToLive();
+    }
+
+    @Override
+    public void close() throws Exception {
+        this.executor.shutdown();
+
+        if (this.backend instanceof AutoCloseable) {
+            ((AutoCloseable) this.backend).close();
+        }
+    }
+}
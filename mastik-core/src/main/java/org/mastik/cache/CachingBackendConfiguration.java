@@ -0,0 +1,177 @@
+package org.mastik.cache;
+
+import org.mastik.ElementCreator;
+import org.mastik.query.Query;
+
+import java.time.Duration;
+import java.util.function.Function;
+
+/**
+ * Tunable settings of {@link CachingBackend}
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/22/17
+ */
+public class CachingBackendConfiguration {
+    private long maximumWeight = 100000;
+    private int maximumEntryWeight = 10000;
+    private Duration timeToLive = Duration.ofMinutes(1);
+    private Function<Query<?>, Duration> timeToLivePolicy = null;
+    private Duration inFlightWait = Duration.ofSeconds(1);
+    private int threads = 4;
+    private long adjacencyMaximumWeight = 1000000;
+    private int adjacencyMaximumDegree = 1000;
+    private MappedCacheStore adjacencyStore = null;
+    private ElementCreator elementCreator = null;
+
+    /**
+     * Returns the largest total number of elements held by the cache
+     */
+    public long getMaximumWeight() {
+        return this.maximumWeight;
+    }
+
+    /**
+     * Sets the largest total number of elements held by the cache.
+     * Least recently used results are evicted once it is exceeded
+     */
+    public void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+    }
+
+    /**
+     * Returns the largest number of elements of a single cached result
+     */
+    public int getMaximumEntryWeight() {
+        return this.maximumEntryWeight;
+    }
+
+    /**
+     * Sets the largest number of elements of a single cached result.
+     * Larger results are streamed as they are, without being cached
+     */
+    public void setMaximumEntryWeight(int maximumEntryWeight) {
+        this.maximumEntryWeight = maximumEntryWeight;
+    }
+
+    /**
+     * Returns how long a result is cached, unless the time-to-live policy decides otherwise
+     */
+    public Duration getTimeToLive() {
+        return this.timeToLive;
+    }
+
+    /**
+     * Sets how long a result is cached, unless the time-to-live policy decides otherwise
+     */
+    public void setTimeToLive(Duration timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Returns the policy deciding how long the result of each query is cached, or null if all are cached for the time-to-live
+     */
+    public Function<Query<?>, Duration> getTimeToLivePolicy() {
+        return this.timeToLivePolicy;
+    }
+
+    /**
+     * Sets the policy deciding how long the result of each query is cached.
+     * A null duration falls back to the time-to-live, and a zero duration means the result is not cached
+     */
+    public void setTimeToLivePolicy(Function<Query<?>, Duration> timeToLivePolicy) {
+        this.timeToLivePolicy = timeToLivePolicy;
+    }
+
+    /**
+     * Returns how long a miss waits for the result of the same query, which is being read by another miss, to be cached
+     */
+    public Duration getInFlightWait() {
+        return this.inFlightWait;
+    }
+
+    /**
+     * Sets how long a miss waits for the result of the same query, which is being read by another miss, to be cached.
+     * Once it passes, or if the other result turns out not to be cached, the miss queries the wrapped backend by itself.
+     * A zero duration disables waiting
+     */
+    public void setInFlightWait(Duration inFlightWait) {
+        this.inFlightWait = inFlightWait;
+    }
+
+    /**
+     * Returns the number of threads of the cache, which stop misses from waiting for in-flight results
+     * once the in-flight wait passes
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    /**
+     * Sets the number of threads of the cache, which stop misses from waiting for in-flight results
+     * once the in-flight wait passes
+     */
+    public void setThreads(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Returns the largest total number of edges held by the adjacency caches
+     */
+    public long getAdjacencyMaximumWeight() {
+        return this.adjacencyMaximumWeight;
+    }
+
+    /**
+     * Sets the largest total number of edges held by the adjacency caches,
+     * which serve unlimited and unordered vertex queries per vertex. 0 disables the adjacency caches
+     */
+    public void setAdjacencyMaximumWeight(long adjacencyMaximumWeight) {
+        this.adjacencyMaximumWeight = adjacencyMaximumWeight;
+    }
+
+    /**
+     * Returns the largest number of edges of a single vertex in the adjacency caches
+     */
+    public int getAdjacencyMaximumDegree() {
+        return this.adjacencyMaximumDegree;
+    }
+
+    /**
+     * Sets the largest number of edges of a single vertex in the adjacency caches.
+     * Vertices with more edges (supernodes) are always queried
+     */
+    public void setAdjacencyMaximumDegree(int adjacencyMaximumDegree) {
+        this.adjacencyMaximumDegree = adjacencyMaximumDegree;
+    }
+
+    /**
+     * Returns the store which is the second tier of the adjacency caches, or null if they are held only in memory
+     */
+    public MappedCacheStore getAdjacencyStore() {
+        return this.adjacencyStore;
+    }
+
+    /**
+     * Sets the store which is the second tier of the adjacency caches, and keeps their adjacencies across restarts.
+     * The store is not closed by the caching backend, so it may be shared with other caches
+     */
+    public void setAdjacencyStore(MappedCacheStore adjacencyStore) {
+        this.adjacencyStore = adjacencyStore;
+    }
+
+    /**
+     * Returns the element creator the edges of the adjacency store are created by
+     */
+    public ElementCreator getElementCreator() {
+        return this.elementCreator;
+    }
+
+    /**
+     * Sets the element creator the edges of the adjacency store are created by.
+     * Without it, only the neighbors of vertices are kept by the adjacency store
+     */
+    public void setElementCreator(ElementCreator elementCreator) {
+        this.elementCreator = elementCreator;
+    }
+}
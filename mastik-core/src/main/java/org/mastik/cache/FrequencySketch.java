@@ -0,0 +1,119 @@
+package org.mastik.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch of how frequently keys were recently seen, in a fixed amount of memory.
+ * Counters are 4 bits wide, packed 16 to a long, and saturate at 15.
+ * They are all halved once the sketch was incremented as many times as its sample size, so old frequencies fade away.
+ * Counters are updated by compare-and-set without a lock, so concurrent reads may see a halving half done,
+ * which only makes the estimates a bit less accurate
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/23/17
+ */
+class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long HALVING_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = {0x97cb3127, 0xcc9e2d51, 0x1b873593, 0x85ebca6b};
+
+    private final AtomicLongArray[] table;
+    private final int mask;
+    private final long sampleSize;
+    private final AtomicLong additions = new AtomicLong();
+
+    /**
+     * @param expectedKeys Number of distinct keys the sketch should tell apart, such as the capacity of a cache
+     */
+    FrequencySketch(long expectedKeys) {
+        int width = Integer.highestOneBit((int) Math.min(Math.max(expectedKeys, 16), 1 << 24) - 1) << 1;
+
+        this.table = new AtomicLongArray[DEPTH];
+        for (int row = 0; row < DEPTH; row++) {
+            this.table[row] = new AtomicLongArray(width >>> 4);
+        }
+
+        this.mask = width - 1;
+        this.sampleSize = 10L * width;
+    }
+
+    /**
+     * Counts another occurrence of the given key
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+
+        for (int row = 0; row < DEPTH; row++) {
+            increment(this.table[row], index(hash, row));
+        }
+
+        // a single incrementing thread reaches the sample size, and halves the counters
+        if (this.additions.incrementAndGet() == this.sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Increments the counter of the given index, unless it is saturated
+     */
+    private static void increment(AtomicLongArray row, int index) {
+        int shift = shift(index);
+
+        while (true) {
+            long word = row.get(index >>> 4);
+
+            if (((word >>> shift) & MAX_COUNT) == MAX_COUNT || row.compareAndSet(index >>> 4, word, word + (1L << shift))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the estimated number of recent occurrences of the given key
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_COUNT;
+
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, count(row, index(hash, row)));
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Halves all of the counters at once, shifting each long and clearing the bits shifted into its lower counters
+     */
+    private void reset() {
+        for (AtomicLongArray row : this.table) {
+            for (int i = 0; i < row.length(); i++) {
+                row.updateAndGet(i, word -> (word >>> 1) & HALVING_MASK);
+            }
+        }
+
+        this.additions.addAndGet(-this.sampleSize / 2);
+    }
+
+    private int count(int row, int index) {
+        return (int) ((this.table[row].get(index >>> 4) >>> shift(index)) & MAX_COUNT);
+    }
+
+    private int index(int hash, int row) {
+        int rowHash = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+
+        return (rowHash ^ (rowHash >>> 16)) & this.mask;
+    }
+
+    private static int shift(int index) {
+        return (index & 15) << 2;
+    }
+
+    private static int spread(int hash) {
+        hash *= 0x9e3779b9;
+
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,455 @@
+package org.mastik.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * An off-heap cache tier of encoded values, appended to memory-mapped segment files in a directory.
+ * The segments outlive the process, so a restarted process finds the values it cached before.
+ * They are mapped and indexed on the first access, and their pages are read from disk only once they are accessed.
+ * Once the directory holds the maximum number of segments, the oldest segment is deleted with all of its values
+ * <p>
+ * Each record holds its length, a checksum, when it expires, and its key and value.
+ * Values may be compressed. Indexing reads only the lengths and keys of the records, and the checksum of a record
+ * is checked when it is first read, so a torn record is ignored. The last record of each segment is checked when it is indexed,
+ * so a record torn by a process which died while writing it is overwritten
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/25/17
+ */
+public class MappedCacheStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(MappedCacheStore.class);
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+    /**
+     * Smallest value which is compressed, as compressing shorter values hardly saves anything
+     */
+    private static final int MIN_COMPRESSED_LENGTH = 128;
+
+    private static final byte COMPRESSED = 1;
+
+    /**
+     * Sizes of the record length, checksum, expiry time, flags and key length
+     */
+    private static final int LENGTH_SIZE = 4;
+    private static final int HEADER_SIZE = 4 + 8 + 1 + 4;
+
+    /**
+     * A memory-mapped segment file
+     */
+    private static class Segment {
+        private final int number;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int writePosition;
+
+        private Segment(int number, Path path, long size) throws IOException {
+            this.number = number;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, this.channel.size()));
+        }
+    }
+
+    /**
+     * Location of a record, and whether its checksum was already checked
+     */
+    private static class Location {
+        private final Segment segment;
+        private final int offset;
+        private volatile boolean verified;
+
+        private Location(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maximumSegments;
+    private final boolean compress;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, Location> index = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+
+    /**
+     * @param directory Directory of the segment files, which is created if it does not exist
+     * @param segmentSize Size of each segment file, in bytes
+     * @param maximumSegments Largest number of segment files, so the store takes up to their total size on disk
+     * @param compress Whether to compress values with {@link Deflater#BEST_SPEED}
+     */
+    public MappedCacheStore(Path directory, int segmentSize, int maximumSegments, boolean compress) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maximumSegments = maximumSegments;
+        this.compress = compress;
+    }
+
+    /**
+     * Returns the value of the given key, or null if it is not stored or has already expired
+     */
+    public byte[] get(String key) {
+        ensureLoaded();
+
+        Location location = this.index.get(key);
+
+        if (location == null) {
+            return null;
+        }
+
+        if (!location.verified) {
+            if (!isIntact(location.segment, location.offset)) {
+                logger.warn("Segment '{}' has a torn record of '{}' at {}, which is ignored", location.segment.path, key, location.offset);
+                this.index.remove(key, location);
+                return null;
+            }
+
+            location.verified = true;
+        }
+
+        ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.offset + LENGTH_SIZE + 4);
+
+        long expiresAt = buffer.getLong();
+
+        if (expiresAt <= System.currentTimeMillis()) {
+            this.index.remove(key, location);
+            return null;
+        }
+
+        byte flags = buffer.get();
+        byte[] keyBytes = new byte[buffer.getInt()];
+        buffer.get(keyBytes);
+
+        byte[] value = new byte[location.segment.buffer.getInt(location.offset) - HEADER_SIZE - keyBytes.length];
+        buffer.get(value);
+
+        return (flags & COMPRESSED) != 0 ? decompress(value) : value;
+    }
+
+    /**
+     * Stores the value of the given key, replacing its previous value.
+     * Values larger than a segment are not stored
+     *
+     * @param expiresAt Wall-clock time the value expires at, in milliseconds since the epoch
+     */
+    public synchronized void put(String key, byte[] value, long expiresAt) {
+        ensureLoaded();
+
+        byte flags = 0;
+
+        if (this.compress && value.length >= MIN_COMPRESSED_LENGTH) {
+            byte[] compressed = compress(value);
+
+            if (compressed.length < value.length) {
+                value = compressed;
+                flags |= COMPRESSED;
+            }
+        }
+
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int recordLength = HEADER_SIZE + keyBytes.length + value.length;
+
+        // a segment always ends with an empty length, which ends its scan
+        if (LENGTH_SIZE + recordLength + LENGTH_SIZE > this.segmentSize) {
+            return;
+        }
+
+        try {
+            Segment segment = getWritableSegment(LENGTH_SIZE + recordLength + LENGTH_SIZE);
+            int offset = segment.writePosition;
+
+            ByteBuffer record = ByteBuffer.allocate(recordLength - 4);
+            record.putLong(expiresAt).put(flags).putInt(keyBytes.length).put(keyBytes).put(value);
+
+            CRC32 checksum = new CRC32();
+            checksum.update(record.array());
+
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset);
+            buffer.putInt(recordLength).putInt((int) checksum.getValue()).put(record.array());
+
+            segment.writePosition = buffer.position();
+
+            if (expiresAt > System.currentTimeMillis()) {
+                Location location = new Location(segment, offset);
+                location.verified = true;
+                this.index.put(key, location);
+            } else {
+                this.index.remove(key);
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to store '{}' in '{}' due to inner exception: {}", key, this.directory, e);
+        }
+    }
+
+    /**
+     * Discards the value of the given key, by storing an expired value which hides it after a restart as well
+     */
+    public void remove(String key) {
+        ensureLoaded();
+
+        if (this.index.containsKey(key)) {
+            put(key, new byte[0], 0);
+        }
+    }
+
+    /**
+     * Discards the values of all keys which start with the given prefix
+     */
+    public void removeAll(String prefix) {
+        ensureLoaded();
+
+        this.index.keySet().stream()
+                .filter(key -> key.startsWith(prefix))
+                .collect(Collectors.toList())
+                .forEach(this::remove);
+    }
+
+    /**
+     * Returns the number of stored keys, including expired keys which were not accessed yet
+     */
+    public int size() {
+        ensureLoaded();
+        return this.index.size();
+    }
+
+    /**
+     * Writes the mapped segments to disk, and closes their files
+     */
+    @Override
+    public synchronized void close() {
+        this.segments.forEach(segment -> {
+            try {
+                segment.buffer.force();
+                segment.channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close segment '{}' due to inner exception: {}", segment.path, e);
+            }
+        });
+    }
+
+    /**
+     * Maps and indexes the existing segments, once
+     */
+    private void ensureLoaded() {
+        if (this.loaded) {
+            return;
+        }
+
+        synchronized (this) {
+            if (this.loaded) {
+                return;
+            }
+
+            try {
+                Files.createDirectories(this.directory);
+
+                List<Path> paths;
+
+                try (Stream<Path> files = Files.list(this.directory)) {
+                    paths = files.filter(path -> SEGMENT_NAME.matcher(path.getFileName().toString()).matches())
+                            .sorted(Comparator.comparingInt(MappedCacheStore::getSegmentNumber))
+                            .collect(Collectors.toList());
+                }
+
+                for (Path path : paths) {
+                    Segment segment = new Segment(getSegmentNumber(path), path, this.segmentSize);
+                    this.segments.add(segment);
+                    scan(segment);
+                }
+
+                while (this.segments.size() > this.maximumSegments) {
+                    deleteOldestSegment();
+                }
+
+                logger.info("Loaded {} keys from {} segments in '{}'", this.index.size(), this.segments.size(), this.directory);
+            } catch (IOException e) {
+                throw new UncheckedIOException(String.format("Failed to load the cache segments in '%s'", this.directory), e);
+            }
+
+            this.loaded = true;
+        }
+    }
+
+    /**
+     * Indexes the records of the given segment by their keys, up to its end or to a record whose length is invalid,
+     * without reading their values. The checksum of the last record is checked, and a torn last record is overwritten
+     */
+    private void scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        int lastPosition = -1;
+        String lastKey = null;
+        Location lastReplaced = null;
+
+        while (position + LENGTH_SIZE <= buffer.limit()) {
+            int recordLength = buffer.getInt(position);
+
+            if (recordLength < HEADER_SIZE || position + LENGTH_SIZE + recordLength > buffer.limit()) {
+                break;
+            }
+
+            buffer.position(position + LENGTH_SIZE + 4);
+            long expiresAt = buffer.getLong();
+            buffer.get();
+            int keyLength = buffer.getInt();
+
+            if (keyLength < 0 || HEADER_SIZE + keyLength > recordLength) {
+                logger.warn("Segment '{}' has a torn record at {}, the rest of it is ignored", segment.path, position);
+                break;
+            }
+
+            byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+
+            String key = new String(keyBytes, StandardCharsets.UTF_8);
+
+            Location replaced = expiresAt > System.currentTimeMillis() ?
+                    this.index.put(key, new Location(segment, position)) :
+                    this.index.remove(key);
+
+            lastPosition = position;
+            lastReplaced = replaced;
+            lastKey = key;
+            position += LENGTH_SIZE + recordLength;
+        }
+
+        if (lastKey != null && !isIntact(segment, lastPosition)) {
+            logger.warn("Segment '{}' has a torn record at {}, which is overwritten", segment.path, lastPosition);
+
+            // the key is served by its previous record, if it had one
+            if (lastReplaced != null) {
+                this.index.put(lastKey, lastReplaced);
+            } else {
+                this.index.remove(lastKey);
+            }
+
+            position = lastPosition;
+        }
+
+        segment.writePosition = position;
+    }
+
+    /**
+     * Whether the checksum of the record at the given position matches its contents
+     */
+    private static boolean isIntact(Segment segment, int position) {
+        ByteBuffer record = segment.buffer.duplicate();
+        int recordLength = record.getInt(position);
+
+        record.position(position + LENGTH_SIZE + 4);
+        record.limit(position + LENGTH_SIZE + recordLength);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(record);
+
+        return (int) checksum.getValue() == segment.buffer.getInt(position + LENGTH_SIZE);
+    }
+
+    /**
+     * Returns the last segment if it has room for the given number of bytes, or else a new segment
+     */
+    private Segment getWritableSegment(int length) throws IOException {
+        Segment last = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+
+        if (last != null && last.writePosition + length <= last.buffer.limit()) {
+            return last;
+        }
+
+        int number = last == null ? 0 : last.number + 1;
+        Segment segment = new Segment(number, this.directory.resolve(String.format("segment-%05d.dat", number)), this.segmentSize);
+        this.segments.add(segment);
+
+        while (this.segments.size() > this.maximumSegments) {
+            deleteOldestSegment();
+        }
+
+        return segment;
+    }
+
+    private void deleteOldestSegment() throws IOException {
+        Segment oldest = this.segments.remove(0);
+
+        this.index.values().removeIf(location -> location.segment == oldest);
+        oldest.channel.close();
+        Files.deleteIfExists(oldest.path);
+    }
+
+    private static int getSegmentNumber(Path path) {
+        Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+
+        return matcher.matches() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    /**
+     * Compresses the given bytes, prefixed by their uncompressed length
+     */
+    private static byte[] compress(byte[] value) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(value);
+        deflater.finish();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream(value.length / 2 + 4);
+        output.write(value.length >>> 24);
+        output.write(value.length >>> 16);
+        output.write(value.length >>> 8);
+        output.write(value.length);
+
+        byte[] buffer = new byte[4096];
+
+        while (!deflater.finished()) {
+            output.write(buffer, 0, deflater.deflate(buffer));
+        }
+
+        deflater.end();
+
+        return output.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed) {
+        ByteBuffer buffer = ByteBuffer.wrap(compressed);
+        byte[] value = new byte[buffer.getInt()];
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed, 4, compressed.length - 4);
+
+        try {
+            int length = 0;
+
+            while (length < value.length && !inflater.finished()) {
+                length += inflater.inflate(value, length, value.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Failed to decompress a cached value", e);
+        } finally {
+            inflater.end();
+        }
+
+        return value;
+    }
+}
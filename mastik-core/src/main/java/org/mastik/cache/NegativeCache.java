@@ -0,0 +1,163 @@
+package org.mastik.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.apache.tinkerpop.gremlin.structure.Direction;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of negative results: vertices which were not found, and vertices which have no edges of a label
+ * in a direction, so they can be dropped from the frontier of a traversal instead of being queried again.
+ * <p>
+ * Negative results are held for a short time-to-live, by an exact set which never reports a vertex it was not told of.
+ * In front of it, a {@link BloomFilter} per (direction, label) cheaply rules out most of the vertices which are not
+ * in the set, as most queried vertices do have edges. The filters are never trusted on their own,
+ * as a false positive would drop the edges of a vertex, and they are replaced once per time-to-live,
+ * after which all of their entries have expired from the set anyway
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/26/17
+ */
+public class NegativeCache {
+    private static final String ALL_LABELS = "*";
+    private static final String MISSING = "missing";
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /**
+     * A Bloom filter of the entries which were added since it was created
+     */
+    private static class Generation {
+        private final BloomFilter<CharSequence> filter;
+        private final long createdAt;
+
+        private Generation(int expectedInsertions) {
+            this.filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expectedInsertions, FALSE_POSITIVE_PROBABILITY);
+            this.createdAt = System.nanoTime();
+        }
+    }
+
+    private final long timeToLive;
+    private final int expectedInsertions;
+    private final Cache<String, Boolean> negatives;
+    private final Map<String, Generation> filters = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param maximumSize Largest number of negative results held by the cache
+     * @param timeToLive How long a negative result is held
+     */
+    public NegativeCache(long maximumSize, Duration timeToLive) {
+        this.timeToLive = timeToLive.toNanos();
+        this.expectedInsertions = (int) Math.min(maximumSize, Integer.MAX_VALUE);
+        this.negatives = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(this.timeToLive, TimeUnit.NANOSECONDS)
+                .build();
+    }
+
+    /**
+     * Whether the given vertex was recently not found
+     */
+    public boolean isMissing(Object vertexId) {
+        return contains(MISSING, vertexId.toString());
+    }
+
+    /**
+     * Records that the given vertex was not found
+     */
+    public void markMissing(Object vertexId) {
+        add(MISSING, vertexId.toString());
+    }
+
+    /**
+     * Whether the given vertex recently had no edges of any of the given labels in the given direction,
+     * either by the queries of these labels, or by a query of all labels, or by a query of both directions
+     *
+     * @param labels Edge labels, or an empty set for all labels
+     */
+    public boolean hasNoEdges(Object vertexId, Direction direction, Set<String> labels) {
+        String id = vertexId.toString();
+
+        if (hasNoEdges(id, direction, ALL_LABELS)) {
+            return true;
+        }
+
+        return !labels.isEmpty() && labels.stream().allMatch(label -> hasNoEdges(id, direction, label));
+    }
+
+    /**
+     * Records that the given vertex has no edges of any of the given labels in the given direction
+     *
+     * @param labels Edge labels, or an empty set for all labels
+     */
+    public void markNoEdges(Object vertexId, Direction direction, Set<String> labels) {
+        String id = vertexId.toString();
+
+        if (labels.isEmpty()) {
+            add(getNamespace(direction, ALL_LABELS), id);
+        } else {
+            labels.forEach(label -> add(getNamespace(direction, label), id));
+        }
+    }
+
+    /**
+     * Returns the number of lookups which found a negative result
+     */
+    public long getHitCount() {
+        return this.hits.sum();
+    }
+
+    /**
+     * Discards all negative results
+     */
+    public void invalidateAll() {
+        this.negatives.invalidateAll();
+        this.filters.clear();
+    }
+
+    private boolean hasNoEdges(String vertexId, Direction direction, String label) {
+        return contains(getNamespace(direction, label), vertexId) ||
+                (direction != Direction.BOTH && contains(getNamespace(Direction.BOTH, label), vertexId));
+    }
+
+    private boolean contains(String namespace, String vertexId) {
+        Generation generation = this.filters.get(namespace);
+
+        if (generation == null || !generation.filter.mightContain(vertexId)) {
+            return false;
+        }
+
+        if (this.negatives.getIfPresent(namespace + ':' + vertexId) == null) {
+            return false;
+        }
+
+        this.hits.increment();
+
+        return true;
+    }
+
+    private void add(String namespace, String vertexId) {
+        Generation generation = this.filters.compute(namespace, (key, current) ->
+                current == null || System.nanoTime() - current.createdAt >= this.timeToLive ? new Generation(this.expectedInsertions) : current);
+
+        // puts to a bloom filter are not thread-safe, unlike its reads, which may only miss a concurrent put
+        synchronized (generation) {
+            generation.filter.put(vertexId);
+        }
+
+        this.negatives.put(namespace + ':' + vertexId, Boolean.TRUE);
+    }
+
+    private static String getNamespace(Direction direction, String label) {
+        return direction.name() + ':' + label;
+    }
+}
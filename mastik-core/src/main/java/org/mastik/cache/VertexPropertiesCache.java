@@ -0,0 +1,254 @@
+package org.mastik.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import org.apache.tinkerpop.gremlin.structure.VertexProperty;
+import org.mastik.ElementCreator;
+import org.mastik.query.Query;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A graph-wide cache of the properties of vertices, shared by all deferred vertices,
+ * so vertices which were loaded recently are not loaded again.
+ * Once the cache has evicted a vertex to stay within its size, a vertex is admitted only if it was requested
+ * frequently enough lately, as estimated by a {@link FrequencySketch}, so vertices which are seen once do not evict others.
+ * This is a fixed admission threshold in front of the least recently used eviction of the cache,
+ * and a candidate is not compared against the vertex it would evict.
+ * Vertex ids are keyed by their string form, as the documents of the vertices are.
+ * Optionally, admitted vertices are also kept by a {@link MappedCacheStore}, which serves them after they are evicted
+ * and after a restart
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/23/17
+ */
+@SuppressWarnings("rawtypes")
+public class VertexPropertiesCache {
+    private static final Logger logger = LoggerFactory.getLogger(VertexPropertiesCache.class);
+
+    private static final String NAMESPACE = "vertex";
+    private static final int DEFAULT_ADMISSION_FREQUENCY = 2;
+
+    /**
+     * Properties of a cached vertex, and the keys they were loaded by
+     */
+    private static class CachedProperties {
+        private final Map<String, VertexProperty> properties;
+        private final Set<String> propertyKeys;
+
+        private CachedProperties(Map<String, VertexProperty> properties, Set<String> propertyKeys) {
+            this.properties = properties;
+            this.propertyKeys = propertyKeys;
+        }
+
+        /**
+         * Whether these properties include all of the given keys
+         */
+        private boolean contains(Set<String> propertyKeys) {
+            return isAll(this.propertyKeys) || (!isAll(propertyKeys) && this.propertyKeys.containsAll(propertyKeys));
+        }
+    }
+
+    private final Duration timeToLive;
+    private final int admissionFrequency;
+    private final Cache<String, CachedProperties> vertices;
+    private final FrequencySketch sketch;
+    private MappedCacheStore store;
+    private ElementCreator elementCreator;
+
+    /**
+     * Whether a vertex was evicted to keep the cache within its size, after which new vertices need to be admitted
+     */
+    private volatile boolean isFull = false;
+
+    /**
+     * @param maximumSize Largest number of vertices held by the cache
+     * @param timeToLive How long the properties of a vertex are cached
+     */
+    public VertexPropertiesCache(long maximumSize, Duration timeToLive) {
+        this(maximumSize, timeToLive, DEFAULT_ADMISSION_FREQUENCY);
+    }
+
+    /**
+     * @param maximumSize Largest number of vertices held by the cache
+     * @param timeToLive How long the properties of a vertex are cached
+     * @param admissionFrequency Number of recent requests of a vertex needed for it to be admitted to a full cache
+     */
+    public VertexPropertiesCache(long maximumSize, Duration timeToLive, int admissionFrequency) {
+        this.timeToLive = timeToLive;
+        this.admissionFrequency = admissionFrequency;
+        this.vertices = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive.toNanos(), TimeUnit.NANOSECONDS)
+                .<String, CachedProperties>removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        this.isFull = true;
+                    }
+                })
+                .recordStats()
+                .build();
+        this.sketch = new FrequencySketch(maximumSize);
+    }
+
+    /**
+     * Keeps the cached vertices in the given store as well, as a second tier which serves vertices
+     * evicted from memory, and the vertices cached before a restart.
+     * Vertices which are not admitted to the memory are not stored either, so they do not take the place of others on disk.
+     * Only vertices whose ids and property values are strings, numbers, booleans, lists or maps are stored
+     *
+     * @param store Store of the vertices, which may be shared with other caches
+     * @param elementCreator Creates the properties of the stored vertices
+     */
+    public void setSecondTier(MappedCacheStore store, ElementCreator elementCreator) {
+        this.store = store;
+        this.elementCreator = elementCreator;
+    }
+
+    /**
+     * Returns the cached properties of the given vertex, which include all of the given keys
+     *
+     * @param vertexId Id of the vertex
+     * @param propertyKeys Keys of the requested properties, or {@link Query#allLabels()} for all of them
+     * @return Properties of the vertex, or null if they are not cached
+     */
+    public Map<String, VertexProperty> get(Object vertexId, Set<String> propertyKeys) {
+        String id = vertexId.toString();
+        this.sketch.increment(id);
+
+        CachedProperties cached = getCached(id);
+
+        if (cached == null || !cached.contains(propertyKeys)) {
+            return null;
+        }
+
+        if (isAll(propertyKeys)) {
+            return new HashMap<>(cached.properties);
+        }
+
+        Map<String, VertexProperty> properties = new HashMap<>();
+        propertyKeys.forEach(key -> {
+            VertexProperty property = cached.properties.get(key);
+
+            if (property != null) {
+                properties.put(key, property);
+            }
+        });
+
+        return properties;
+    }
+
+    /**
+     * Caches the loaded properties of the given vertex, in memory and in the second tier, if it is admitted
+     *
+     * @param vertexId Id of the vertex
+     * @param propertyKeys Keys the properties were loaded by, or {@link Query#allLabels()} if all of them were loaded
+     * @param properties Loaded properties of the vertex, which are empty if it was confirmed not to exist.
+     *                   Vertices whose lookup failed should not be cached
+     */
+    public void put(Object vertexId, Set<String> propertyKeys, Map<String, VertexProperty> properties) {
+        String id = vertexId.toString();
+        CachedProperties cached = new CachedProperties(new HashMap<>(properties),
+                isAll(propertyKeys) ? Query.allLabels() : new HashSet<>(propertyKeys));
+
+        if (this.isFull && this.sketch.frequency(id) < this.admissionFrequency) {
+            return;
+        }
+
+        this.vertices.put(id, cached);
+
+        if (this.store != null) {
+            store(id, cached);
+        }
+    }
+
+    /**
+     * Discards the cached properties of the given vertex, including those of the second tier
+     */
+    public void invalidate(Object vertexId) {
+        String id = vertexId.toString();
+        this.vertices.invalidate(id);
+
+        if (this.store != null) {
+            this.store.remove(BinaryEncoding.encodeKey(NAMESPACE, id));
+        }
+    }
+
+    /**
+     * Discards the cached properties of all vertices, including those of the second tier
+     */
+    public void invalidateAll() {
+        this.vertices.invalidateAll();
+        this.isFull = false;
+
+        if (this.store != null) {
+            this.store.removeAll(NAMESPACE + ':');
+        }
+    }
+
+    /**
+     * Returns the statistics of the cache
+     */
+    public CacheStats getStats() {
+        return this.vertices.stats();
+    }
+
+    private CachedProperties getCached(String vertexId) {
+        CachedProperties cached = this.vertices.getIfPresent(vertexId);
+
+        return cached == null && this.store != null ? getStored(vertexId) : cached;
+    }
+
+    /**
+     * Returns the properties of the given vertex from the store, and caches them in memory
+     */
+    private CachedProperties getStored(String vertexId) {
+        byte[] bytes = this.store.get(BinaryEncoding.encodeKey(NAMESPACE, vertexId));
+
+        if (bytes == null) {
+            return null;
+        }
+
+        try {
+            List<?> stored = (List<?>) BinaryEncoding.decode(bytes);
+
+            Set<String> propertyKeys = new HashSet<>();
+            ((List<?>) stored.get(0)).forEach(key -> propertyKeys.add((String) key));
+
+            Map<String, VertexProperty> properties = new HashMap<>();
+            ((Map<?, ?>) stored.get(1)).forEach((key, value) ->
+                    properties.put((String) key, this.elementCreator.createVertexProperty((String) key, value)));
+
+            CachedProperties cached = new CachedProperties(properties, propertyKeys.isEmpty() ? Query.allLabels() : propertyKeys);
+            this.vertices.put(vertexId, cached);
+
+            return cached;
+        } catch (RuntimeException e) {
+            logger.warn("Failed to decode the stored properties of vertex '{}' due to inner exception: {}", vertexId, e);
+            return null;
+        }
+    }
+
+    private void store(String vertexId, CachedProperties cached) {
+        Map<String, Object> values = new HashMap<>();
+        cached.properties.forEach((key, property) -> values.put(key, property.value()));
+
+        List<Object> stored = Arrays.asList(new ArrayList<>(cached.propertyKeys), values);
+
+        if (!BinaryEncoding.canEncode(stored)) {
+            return;
+        }
+
+        this.store.put(BinaryEncoding.encodeKey(NAMESPACE, vertexId), BinaryEncoding.encode(stored),
+                System.currentTimeMillis() + this.timeToLive.toMillis());
+    }
+
+    private static boolean isAll(Set<String> propertyKeys) {
+        return propertyKeys == null || propertyKeys.isEmpty();
+    }
+}
@@ -0,0 +1,211 @@
+package org.mastik.query;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Compare;
+import org.apache.tinkerpop.gremlin.process.traversal.Contains;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.Property;
+import org.apache.tinkerpop.gremlin.structure.T;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.apache.tinkerpop.gremlin.structure.VertexProperty;
+import org.mastik.query.predicates.Text;
+
+import java.util.*;
+import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+
+/**
+ * Compiles a {@link PredicatesTree} to a single {@link Predicate} of elements,
+ * which is created once and then tested against many elements without allocations.
+ * Property keys are resolved once, 'within' values are hashed,
+ * and the predicates of each clause are tested from the cheapest to the most expensive
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/14/17
+ */
+class PredicatesCompiler {
+    private static final int ID_COST = 0;
+    private static final int EQUALITY_COST = 1;
+    private static final int COMPARE_COST = 2;
+    private static final int TEXT_COST = 3;
+    private static final int GENERIC_COST = 4;
+
+    /**
+     * Compiles the given tree
+     *
+     * @param tree Tree to compile
+     * @return Predicate which accepts exactly the elements {@link PredicatesQuery#test} accepts
+     */
+    static Predicate<Element> compile(PredicatesTree tree) {
+        return compileTree(tree).predicate;
+    }
+
+    /**
+     * Compiles a tree to a predicate over all of its predicates and children, ordered by cost
+     */
+    private static Compiled compileTree(PredicatesTree tree) {
+        if (tree.isEmpty()) {
+            return new Compiled(element -> true, ID_COST);
+        }
+
+        List<Compiled> compiled = new ArrayList<>();
+
+        if (tree.hasPredicates()) {
+            tree.predicates().forEach(predicate -> compiled.add(compilePredicate(predicate)));
+        }
+
+        if (tree.hasChildren()) {
+            tree.children().forEach(child -> compiled.add(compileTree(child)));
+        }
+
+        if (compiled.size() == 1) {
+            return compiled.get(0);
+        }
+
+        compiled.sort(Comparator.comparingInt(predicate -> predicate.cost));
+
+        @SuppressWarnings("unchecked")
+        Predicate<Element>[] predicates = compiled.stream()
+                .map(predicate -> predicate.predicate)
+                .toArray(Predicate[]::new);
+        int cost = compiled.stream().mapToInt(predicate -> predicate.cost).sum();
+
+        if (tree.isAnd()) {
+            return new Compiled(element -> {
+                for (Predicate<Element> predicate : predicates) {
+                    if (!predicate.test(element)) {
+                        return false;
+                    }
+                }
+
+                return true;
+            }, cost);
+        } else if (tree.isOr()) {
+            return new Compiled(element -> {
+                for (Predicate<Element> predicate : predicates) {
+                    if (predicate.test(element)) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }, cost);
+        }
+
+        throw new IllegalStateException(String.format("Unexpected predicates-tree '%s' was given", tree));
+    }
+
+    /**
+     * Compiles a single 'has' predicate, matching the semantics of {@link HasContainer#test(Element)}
+     */
+    private static Compiled compilePredicate(HasContainer hasContainer) {
+        String key = hasContainer.getKey();
+
+        // ids may be tested by their string form, as decided by the 'has' container itself
+        if (key.equals(T.id.getAccessor())) {
+            return new Compiled(hasContainer::test, ID_COST);
+        }
+
+        Predicate<Object> valuePredicate = compileValuePredicate(hasContainer);
+        int cost = getCost(hasContainer);
+
+        if (key.equals(T.label.getAccessor())) {
+            return new Compiled(element -> valuePredicate.test(element.label()), ID_COST);
+        }
+
+        boolean isValueKey = key.equals(T.value.getAccessor());
+        boolean isKeyKey = key.equals(T.key.getAccessor());
+
+        return new Compiled(element -> {
+            if (element instanceof VertexProperty) {
+                if (isValueKey) {
+                    return valuePredicate.test(((VertexProperty) element).value());
+                }
+
+                if (isKeyKey) {
+                    return valuePredicate.test(((VertexProperty) element).key());
+                }
+            }
+
+            if (element instanceof Vertex) {
+                Iterator<? extends Property<Object>> properties = element.properties(key);
+
+                while (properties.hasNext()) {
+                    if (valuePredicate.test(properties.next().value())) {
+                        return true;
+                    }
+                }
+
+                return false;
+            }
+
+            Property<Object> property = element.property(key);
+
+            return property.isPresent() && valuePredicate.test(property.value());
+        }, cost);
+    }
+
+    /**
+     * Compiles the predicate of property values, specializing equality and 'within' of non-numeric values,
+     * and compiling text patterns once
+     */
+    private static Predicate<Object> compileValuePredicate(HasContainer hasContainer) {
+        BiPredicate<?, ?> biPredicate = hasContainer.getBiPredicate();
+        Object value = hasContainer.getValue();
+
+        // numbers are compared by value regardless of their type, so they are left to the generic predicate
+        if (biPredicate == Compare.eq && value != null && !(value instanceof Number)) {
+            return value::equals;
+        }
+
+        if (biPredicate == Contains.within && value instanceof Collection) {
+            Set<Object> values = new HashSet<>((Collection<?>) value);
+
+            return values::contains;
+        }
+
+        if (biPredicate instanceof Text.TextPredicate) {
+            return ((Text.TextPredicate) biPredicate).compile(value);
+        }
+
+        @SuppressWarnings("unchecked")
+        P<Object> predicate = (P<Object>) hasContainer.getPredicate();
+
+        return predicate::test;
+    }
+
+    /**
+     * Estimates how expensive it is to test the given predicate
+     */
+    private static int getCost(HasContainer hasContainer) {
+        BiPredicate<?, ?> biPredicate = hasContainer.getBiPredicate();
+
+        if (biPredicate == Compare.eq || biPredicate == Contains.within) {
+            return EQUALITY_COST;
+        }
+
+        if (biPredicate instanceof Compare || biPredicate instanceof Contains) {
+            return COMPARE_COST;
+        }
+
+        if (biPredicate instanceof Text.TextPredicate) {
+            return TEXT_COST;
+        }
+
+        return GENERIC_COST;
+    }
+
+    /**
+     * A compiled predicate, and its estimated cost
+     */
+    private static class Compiled {
+        private final Predicate<Element> predicate;
+        private final int cost;
+
+        private Compiled(Predicate<Element> predicate, int cost) {
+            this.predicate = predicate;
+            this.cost = cost;
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package org.mastik.query;
+
+import com.google.common.collect.Lists;
+import org.apache.tinkerpop.gremlin.process.traversal.Compare;
+import org.apache.tinkerpop.gremlin.process.traversal.Contains;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.javatuples.Pair;
+
+import java.util.*;
+import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
+
+/**
+ * Simplifies predicates trees before they are queried:
+ * flattens nested clauses, removes duplicate predicates, merges 'eq' and 'within' predicates of the same key,
+ * tightens the bounds of ranges over the same key, hoists predicates common to all branches of an 'or',
+ * and detects trees no element can pass
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/15/17
+ */
+public class PredicatesOptimizer {
+    /**
+     * Optimizes the given tree
+     *
+     * @param tree Tree to optimize
+     * @return An equivalent tree, which is {@link PredicatesTree#unsatisfiable()} if no element can pass it
+     */
+    public static PredicatesTree optimize(PredicatesTree tree) {
+        if (tree.isEmpty() || tree.isUnsatisfiable()) {
+            return tree;
+        }
+
+        List<PredicatesTree> children = tree.hasChildren() ?
+                tree.children().stream().map(PredicatesOptimizer::optimize).collect(Collectors.toList()) :
+                Collections.emptyList();
+        List<HasContainer> predicates = tree.hasPredicates() ? tree.predicates() : Collections.emptyList();
+
+        return tree.isAnd() ? optimizeAnd(predicates, children) : optimizeOr(predicates, children);
+    }
+
+    /**
+     * Optimizes an 'and' clause of the given predicates and optimized children
+     */
+    private static PredicatesTree optimizeAnd(List<HasContainer> predicates, List<PredicatesTree> children) {
+        List<HasContainer> andPredicates = Lists.newArrayList(predicates);
+        List<PredicatesTree> andChildren = Lists.newArrayList();
+
+        for (PredicatesTree child : children) {
+            if (child.isUnsatisfiable()) {
+                return PredicatesTree.unsatisfiable();
+            }
+
+            if (child.isEmpty()) {
+                continue;
+            }
+
+            if (child.isAnd()) {
+                if (child.hasPredicates()) {
+                    andPredicates.addAll(child.predicates());
+                }
+
+                if (child.hasChildren()) {
+                    andChildren.addAll(child.children());
+                }
+            } else {
+                andChildren.add(child);
+            }
+        }
+
+        List<HasContainer> mergedPredicates = Lists.newArrayList();
+
+        for (List<HasContainer> keyPredicates : groupByKey(dedupe(andPredicates)).values()) {
+            List<HasContainer> merged = intersectKeyPredicates(keyPredicates);
+
+            if (merged == null) {
+                return PredicatesTree.unsatisfiable();
+            }
+
+            mergedPredicates.addAll(merged);
+        }
+
+        return PredicatesTree.and(PredicatesTree.createAnd(mergedPredicates, andChildren));
+    }
+
+    /**
+     * Optimizes an 'or' clause of the given predicates and optimized children
+     */
+    private static PredicatesTree optimizeOr(List<HasContainer> predicates, List<PredicatesTree> children) {
+        List<HasContainer> orPredicates = Lists.newArrayList(predicates);
+        List<PredicatesTree> orChildren = Lists.newArrayList();
+
+        for (PredicatesTree child : children) {
+            if (child.isUnsatisfiable()) {
+                continue;
+            }
+
+            // a branch every element passes makes the whole clause pass
+            if (child.isEmpty()) {
+                return PredicatesTree.emptyTree();
+            }
+
+            if (child.isOr()) {
+                if (child.hasPredicates()) {
+                    orPredicates.addAll(child.predicates());
+                }
+
+                if (child.hasChildren()) {
+                    orChildren.addAll(child.children());
+                }
+            } else if (!child.hasChildren() && child.predicates().size() == 1) {
+                orPredicates.add(child.predicates().get(0));
+            } else {
+                orChildren.add(child);
+            }
+        }
+
+        List<HasContainer> mergedPredicates = Lists.newArrayList();
+
+        for (List<HasContainer> keyPredicates : groupByKey(dedupe(orPredicates)).values()) {
+            mergedPredicates.addAll(unionKeyPredicates(keyPredicates));
+        }
+
+        mergedPredicates.removeIf(PredicatesOptimizer::isUnsatisfiable);
+
+        if (mergedPredicates.isEmpty() && orChildren.isEmpty()) {
+            return PredicatesTree.unsatisfiable();
+        }
+
+        if (mergedPredicates.size() + orChildren.size() == 1) {
+            return mergedPredicates.isEmpty() ? orChildren.get(0) : PredicatesTree.createFromPredicates(mergedPredicates.get(0));
+        }
+
+        return hoistCommonPredicates(mergedPredicates, orChildren);
+    }
+
+    /**
+     * Given the branches of an 'or' clause, moves out the predicates all of its branches have in common:
+     * (A and B) or (A and C) becomes A and (B or C)
+     */
+    private static PredicatesTree hoistCommonPredicates(List<HasContainer> predicates, List<PredicatesTree> children) {
+        List<PredicatesTree> branches = Lists.newArrayList();
+        predicates.forEach(predicate -> branches.add(PredicatesTree.createFromPredicates(predicate)));
+        branches.addAll(children);
+
+        Set<Pair<String, P<?>>> common = null;
+
+        for (PredicatesTree branch : branches) {
+            Set<Pair<String, P<?>>> branchPredicates = branch.isAnd() && branch.hasPredicates() ?
+                    branch.predicates().stream().map(PredicatesOptimizer::identity).collect(Collectors.toSet()) :
+                    Collections.emptySet();
+
+            if (common == null) {
+                common = new HashSet<>(branchPredicates);
+            } else {
+                common.retainAll(branchPredicates);
+            }
+        }
+
+        if (common == null || common.isEmpty()) {
+            return PredicatesTree.createOr(predicates, children);
+        }
+
+        Set<Pair<String, P<?>>> commonPredicates = common;
+        List<HasContainer> hoisted = branches.get(0).predicates().stream()
+                .filter(predicate -> commonPredicates.contains(identity(predicate)))
+                .collect(Collectors.toList());
+
+        List<PredicatesTree> remainingBranches = Lists.newArrayList();
+
+        for (PredicatesTree branch : branches) {
+            List<HasContainer> remainingPredicates = branch.predicates().stream()
+                    .filter(predicate -> !commonPredicates.contains(identity(predicate)))
+                    .collect(Collectors.toList());
+
+            PredicatesTree remainingBranch = PredicatesTree.createAnd(remainingPredicates, branch.hasChildren() ? branch.children() : null);
+
+            // when a branch has nothing but the common predicates, the 'or' clause is implied by them
+            if (remainingBranch.isEmpty()) {
+                return PredicatesTree.createFromPredicates(hoisted.toArray(new HasContainer[hoisted.size()]));
+            }
+
+            remainingBranches.add(remainingBranch);
+        }
+
+        return optimize(PredicatesTree.and(
+                PredicatesTree.createFromPredicates(hoisted.toArray(new HasContainer[hoisted.size()])),
+                PredicatesTree.or(remainingBranches)));
+    }
+
+    /**
+     * Given the predicates of a single key in an 'and' clause, merges them to fewer predicates.
+     * 'eq' and 'within' values are intersected, and ranges are tightened to their strictest bounds
+     *
+     * @return The merged predicates, or null if no value can pass all of them
+     */
+    private static List<HasContainer> intersectKeyPredicates(List<HasContainer> predicates) {
+        String key = predicates.get(0).getKey();
+        List<HasContainer> merged = Lists.newArrayList();
+        Set<Object> values = null;
+        HasContainer lowerBound = null;
+        HasContainer upperBound = null;
+
+        for (HasContainer predicate : predicates) {
+            if (isUnsatisfiable(predicate)) {
+                return null;
+            }
+
+            Collection<?> predicateValues = getEqualityValues(predicate);
+
+            if (predicateValues != null) {
+                if (values == null) {
+                    values = new LinkedHashSet<>(predicateValues);
+                } else {
+                    values.retainAll(predicateValues);
+                }
+
+                if (values.isEmpty()) {
+                    return null;
+                }
+            } else if (isLowerBound(predicate) && isComparable(predicate, lowerBound)) {
+                lowerBound = lowerBound == null || isStricterLowerBound(predicate, lowerBound) ? predicate : lowerBound;
+            } else if (isUpperBound(predicate) && isComparable(predicate, upperBound)) {
+                upperBound = upperBound == null || isStricterUpperBound(predicate, upperBound) ? predicate : upperBound;
+            } else {
+                merged.add(predicate);
+            }
+        }
+
+        if (values != null) {
+            HasContainer lower = lowerBound;
+            HasContainer upper = upperBound;
+
+            // bounds comparable with all of the values are replaced by filtering the values
+            if ((lower == null || values.stream().allMatch(value -> isComparable(lower, value)))
+                    && (upper == null || values.stream().allMatch(value -> isComparable(upper, value)))) {
+                values.removeIf(value -> (lower != null && !passes(lower, value)) || (upper != null && !passes(upper, value)));
+
+                if (values.isEmpty()) {
+                    return null;
+                }
+
+                lowerBound = null;
+                upperBound = null;
+            }
+
+            merged.add(createEqualityPredicate(key, values));
+        }
+
+        if (lowerBound != null && upperBound != null && isComparable(lowerBound, upperBound.getValue())) {
+            Object lowerValue = lowerBound.getValue();
+            Object upperValue = upperBound.getValue();
+            boolean isInclusive = lowerBound.getBiPredicate() == Compare.gte && upperBound.getBiPredicate() == Compare.lte;
+
+            if (isInclusive ? Compare.gt.test(lowerValue, upperValue) : Compare.gte.test(lowerValue, upperValue)) {
+                return null;
+            }
+        }
+
+        if (lowerBound != null) {
+            merged.add(lowerBound);
+        }
+
+        if (upperBound != null) {
+            merged.add(upperBound);
+        }
+
+        return merged;
+    }
+
+    /**
+     * Given the predicates of a single key in an 'or' clause, unions all of its 'eq' and 'within' predicates
+     */
+    private static List<HasContainer> unionKeyPredicates(List<HasContainer> predicates) {
+        List<HasContainer> merged = Lists.newArrayList();
+        Set<Object> values = null;
+
+        for (HasContainer predicate : predicates) {
+            Collection<?> predicateValues = getEqualityValues(predicate);
+
+            if (predicateValues == null) {
+                merged.add(predicate);
+            } else if (values == null) {
+                values = new LinkedHashSet<>(predicateValues);
+            } else {
+                values.addAll(predicateValues);
+            }
+        }
+
+        if (values != null) {
+            merged.add(createEqualityPredicate(predicates.get(0).getKey(), values));
+        }
+
+        return merged;
+    }
+
+    /**
+     * Returns the values an 'eq' or 'within' predicate accepts,
+     * or null if it is another predicate, or its values are numbers which are not compared by equality
+     */
+    private static Collection<?> getEqualityValues(HasContainer predicate) {
+        BiPredicate<?, ?> biPredicate = predicate.getBiPredicate();
+        Object value = predicate.getValue();
+        Collection<?> values;
+
+        if (biPredicate == Compare.eq && value != null) {
+            values = Collections.singleton(value);
+        } else if (biPredicate == Contains.within && value instanceof Collection) {
+            values = (Collection<?>) value;
+        } else {
+            return null;
+        }
+
+        return values.stream().anyMatch(item -> item == null || item instanceof Number) ? null : values;
+    }
+
+    /**
+     * Creates an 'eq' predicate of a single value, or a 'within' predicate of multiple values
+     */
+    private static HasContainer createEqualityPredicate(String key, Collection<Object> values) {
+        return values.size() == 1 ?
+                new HasContainer(key, P.eq(values.iterator().next())) :
+                new HasContainer(key, P.within(Lists.newArrayList(values)));
+    }
+
+    /**
+     * Whether no value can pass the given predicate
+     */
+    private static boolean isUnsatisfiable(HasContainer predicate) {
+        return predicate.getBiPredicate() == Contains.within && predicate.getValue() instanceof Collection &&
+                ((Collection) predicate.getValue()).isEmpty();
+    }
+
+    /**
+     * Whether the given value passes the predicate
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean passes(HasContainer hasContainer, Object value) {
+        P<Object> predicate = (P<Object>) hasContainer.getPredicate();
+
+        return predicate.test(value);
+    }
+
+    private static boolean isLowerBound(HasContainer predicate) {
+        return (predicate.getBiPredicate() == Compare.gt || predicate.getBiPredicate() == Compare.gte) && predicate.getValue() != null;
+    }
+
+    private static boolean isUpperBound(HasContainer predicate) {
+        return (predicate.getBiPredicate() == Compare.lt || predicate.getBiPredicate() == Compare.lte) && predicate.getValue() != null;
+    }
+
+    private static boolean isStricterLowerBound(HasContainer predicate, HasContainer other) {
+        return Compare.gt.test(predicate.getValue(), other.getValue()) ||
+                (Compare.eq.test(predicate.getValue(), other.getValue()) && predicate.getBiPredicate() == Compare.gt);
+    }
+
+    private static boolean isStricterUpperBound(HasContainer predicate, HasContainer other) {
+        return Compare.lt.test(predicate.getValue(), other.getValue()) ||
+                (Compare.eq.test(predicate.getValue(), other.getValue()) && predicate.getBiPredicate() == Compare.lt);
+    }
+
+    /**
+     * Whether the value of the given range predicate can be compared with the value of the other predicate
+     */
+    private static boolean isComparable(HasContainer predicate, HasContainer other) {
+        return other == null || isComparable(predicate, other.getValue());
+    }
+
+    /**
+     * Whether the value of the given range predicate can be compared with the given value,
+     * which is when both are numbers, or both are comparable of the same class
+     */
+    private static boolean isComparable(HasContainer predicate, Object value) {
+        Object predicateValue = predicate.getValue();
+
+        if (predicateValue instanceof Number && value instanceof Number) {
+            return true;
+        }
+
+        return predicateValue instanceof Comparable && value != null && predicateValue.getClass().equals(value.getClass());
+    }
+
+    /**
+     * Returns the predicates of the given list without duplicates, in their original order
+     */
+    private static List<HasContainer> dedupe(List<HasContainer> predicates) {
+        Set<Pair<String, P<?>>> seen = new HashSet<>();
+
+        return predicates.stream()
+                .filter(predicate -> seen.add(identity(predicate)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Groups the given predicates by their keys, keeping the order of the keys
+     */
+    private static Map<String, List<HasContainer>> groupByKey(List<HasContainer> predicates) {
+        return predicates.stream()
+                .collect(Collectors.groupingBy(HasContainer::getKey, LinkedHashMap::new, Collectors.toList()));
+    }
+
+    /**
+     * Returns an object which equals for predicates of the same key, predicate and value
+     */
+    private static Pair<String, P<?>> identity(HasContainer predicate) {
+        return new Pair<>(predicate.getKey(), predicate.getPredicate());
+    }
+}
@@ -1,9 +1,13 @@
 package org.mastik.query;
 
 import com.google.common.collect.Lists;
+import org.apache.tinkerpop.gremlin.process.traversal.P;
 import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.T;
 
 import java.util.*;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
@@ -15,6 +19,9 @@ import java.util.stream.Collectors;
 public class PredicatesTree {
     private static final PredicatesTree EMPTY = createAnd(null, null);
 
+    private static final PredicatesTree UNSATISFIABLE = createFromPredicates(
+            new HasContainer(T.label.getAccessor(), P.within(Collections.emptyList())));
+
     /**
      * Returns an empty predicates tree
      *
@@ -24,6 +31,15 @@ public class PredicatesTree {
         return EMPTY;
     }
 
+    /**
+     * Returns a predicates tree which no element passes
+     *
+     * @return Instance of an unsatisfiable predicates tree
+     */
+    public static PredicatesTree unsatisfiable() {
+        return UNSATISFIABLE;
+    }
+
     enum Clause {
         And,
         Or
@@ -32,6 +48,8 @@ public class PredicatesTree {
     private Clause clause;
     private List<HasContainer> predicates;
     private List<PredicatesTree> children;
+    private volatile Predicate<Element> compiled;
+    private volatile int hash;
 
     public PredicatesTree(Clause clause, List<HasContainer> predicates, List<PredicatesTree> childContainers) {
         this.clause = clause;
@@ -81,6 +99,76 @@ public class PredicatesTree {
         return this.children != null && !this.children.isEmpty();
     }
 
+    /**
+     * Returns the keys of all predicates in this tree, including predicates of child trees
+     */
+    public Set<String> keys() {
+        Set<String> keys = new HashSet<>();
+
+        if (hasPredicates()) {
+            this.predicates.forEach(predicate -> keys.add(predicate.getKey()));
+        }
+
+        if (hasChildren()) {
+            this.children.forEach(child -> keys.addAll(child.keys()));
+        }
+
+        return keys;
+    }
+
+    /**
+     * Returns the part of this tree which is not enforced by the given predicate, and should still be tested.
+     * Predicates of an 'and' tree are dropped one by one, while an 'or' tree is kept as a whole
+     * unless all of its predicates and children are enforced
+     *
+     * @param isEnforced Whether a single predicate is already enforced exactly
+     * @return The residual predicates tree, or an empty tree if the whole tree is enforced
+     */
+    public PredicatesTree residual(Predicate<HasContainer> isEnforced) {
+        List<HasContainer> residualPredicates = hasPredicates() ?
+                this.predicates.stream().filter(isEnforced.negate()).collect(Collectors.toList()) :
+                Collections.emptyList();
+
+        List<PredicatesTree> residualChildren = hasChildren() ?
+                this.children.stream()
+                        .map(child -> child.residual(isEnforced))
+                        .filter(child -> !child.isEmpty())
+                        .collect(Collectors.toList()) :
+                Collections.emptyList();
+
+        if (residualPredicates.isEmpty() && residualChildren.isEmpty()) {
+            return emptyTree();
+        }
+
+        if (isOr()) {
+            return this;
+        }
+
+        List<PredicatesTree> trees = Lists.newArrayList(createAnd(residualPredicates, null));
+        trees.addAll(residualChildren);
+
+        return and(trees);
+    }
+
+    /**
+     * Returns a predicate accepting the elements which pass this tree.
+     * The tree is compiled once, and the same predicate is returned on following calls
+     */
+    public Predicate<Element> compile() {
+        if (this.compiled == null) {
+            this.compiled = PredicatesCompiler.compile(this);
+        }
+
+        return this.compiled;
+    }
+
+    /**
+     * Whether this tree is known to be passed by no element, as detected by {@link PredicatesOptimizer}
+     */
+    public boolean isUnsatisfiable() {
+        return this == UNSATISFIABLE;
+    }
+
     /**
      * Whether this tree has predicates or child trees
      */
@@ -88,6 +176,52 @@ public class PredicatesTree {
         return !hasChildren() && !hasPredicates();
     }
 
+    /**
+     * Trees are equal when they have the same clause, and the same predicates and children in any order.
+     * As {@link HasContainer} has no equality of its own, predicates are compared by their keys and {@link P}s
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (!(other instanceof PredicatesTree)) {
+            return false;
+        }
+
+        PredicatesTree otherTree = (PredicatesTree) other;
+
+        return hashCode() == otherTree.hashCode() &&
+                this.clause == otherTree.clause &&
+                predicateKeys().equals(otherTree.predicateKeys()) &&
+                childrenSet().equals(otherTree.childrenSet());
+    }
+
+    @Override
+    public int hashCode() {
+        if (this.hash == 0) {
+            this.hash = Objects.hash(this.clause, predicateKeys(), childrenSet());
+        }
+
+        return this.hash;
+    }
+
+    /**
+     * Returns the predicates of this tree as comparable (key, predicate) pairs
+     */
+    private Set<List<Object>> predicateKeys() {
+        return hasPredicates() ?
+                this.predicates.stream()
+                        .map(predicate -> Arrays.<Object>asList(predicate.getKey(), predicate.getPredicate()))
+                        .collect(Collectors.toSet()) :
+                Collections.emptySet();
+    }
+
+    private Set<PredicatesTree> childrenSet() {
+        return hasChildren() ? new HashSet<>(this.children) : Collections.emptySet();
+    }
+
     @Override
     public String toString() {
         return String.format("PredicatesTree{predicates=%s, children=%s}", this.predicates, this.children);
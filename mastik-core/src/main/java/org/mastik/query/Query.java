@@ -6,6 +6,7 @@ import org.javatuples.Pair;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -79,6 +80,42 @@ public class Query<E extends Element> extends PredicatesQuery<E> {
         return getOrders() != null;
     }
 
+    /**
+     * Queries are equal when they have the same return type, predicates, limit, labels and orders.
+     * Missing labels and orders are equal to empty ones
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+
+        if (other == null || getClass() != other.getClass()) {
+            return false;
+        }
+
+        Query<?> otherQuery = (Query<?>) other;
+
+        return this.limit == otherQuery.limit &&
+                Objects.equals(this.returnType, otherQuery.returnType) &&
+                Objects.equals(this.getPredicates(), otherQuery.getPredicates()) &&
+                getLabelsOrEmpty().equals(otherQuery.getLabelsOrEmpty()) &&
+                getOrdersOrEmpty().equals(otherQuery.getOrdersOrEmpty());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(this.returnType, this.getPredicates(), this.limit, getLabelsOrEmpty(), getOrdersOrEmpty());
+    }
+
+    private Set<String> getLabelsOrEmpty() {
+        return this.labels == null ? allLabels() : this.labels;
+    }
+
+    private List<Pair<String, Order>> getOrdersOrEmpty() {
+        return this.orders == null ? noOrders() : this.orders;
+    }
+
     @Override
     public String toString() {
         return String.format("Query{returnType=%s, predicates=%s, limit=%s}", this.returnType.getSimpleName(), this.getPredicates(), this.limit);
@@ -7,6 +7,7 @@ import org.javatuples.Pair;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 /**
@@ -62,6 +63,22 @@ public class VertexQuery extends Query<Edge> {
         return false;
     }
 
+    @Override
+    public boolean equals(Object other) {
+        if (!super.equals(other)) {
+            return false;
+        }
+
+        VertexQuery otherQuery = (VertexQuery) other;
+
+        return this.direction == otherQuery.direction && Objects.equals(this.vertexIds, otherQuery.vertexIds);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(super.hashCode(), this.direction, this.vertexIds);
+    }
+
     @Override
     public String toString() {
         return String.format("VertexQuery{vertices=%s, direction=%s, limit=%s}", this.vertexIds, this.direction, this.getLimit());
@@ -1,8 +1,13 @@
 package org.mastik.query.predicates;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import org.apache.tinkerpop.gremlin.process.traversal.P;
 
 import java.util.function.BiPredicate;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 /**
  * Text functions and predicates
@@ -11,6 +16,24 @@ import java.util.function.BiPredicate;
  * @since 1/13/17
  */
 public class Text {
+    /**
+     * Largest number of compiled patterns kept per predicate
+     */
+    private static final int MAX_CACHED_PATTERNS = 1000;
+
+    /**
+     * Characters which have a special meaning in a regular expression
+     */
+    private static final String REGEX_META_CHARACTERS = "\\^$.|?*+()[]{}";
+
+    private static final LoadingCache<String, Predicate<String>> LIKE_MATCHERS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_PATTERNS)
+            .build(CacheLoader.from(Text::createLikeMatcher));
+
+    private static final LoadingCache<String, Predicate<String>> REGEX_MATCHERS = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_PATTERNS)
+            .build(CacheLoader.from(Text::createRegexMatcher));
+
     public static <V> P<V> like(final V value) {
         return new P(TextPredicate.LIKE, value);
     }
@@ -30,12 +53,19 @@ public class Text {
                 return first.toString().startsWith(second.toString());
             }
 
+            @Override
+            public Predicate<Object> compile(final Object second) {
+                String prefix = second.toString();
+
+                return first -> first.toString().startsWith(prefix);
+            }
+
             /**
-             * The negative of {@code LIKE} is {@link #UNLIKE}.
+             * The negative of {@code PREFIX} is {@link #UNPREFIX}.
              */
             @Override
             public TextPredicate negate() {
-                return UNREGEX;
+                return UNPREFIX;
             }
         },
         UNPREFIX {
@@ -45,7 +75,7 @@ public class Text {
             }
 
             /**
-             * The negative of {@code LIKE} is {@link #UNLIKE}.
+             * The negative of {@code UNPREFIX} is {@link #PREFIX}.
              */
             @Override
             public TextPredicate negate() {
@@ -55,7 +85,14 @@ public class Text {
         LIKE {
             @Override
             public boolean test(final Object first, final Object second) {
-                return first.toString().matches(second.toString().replace("?", ".?").replace("*", ".*?"));
+                return LIKE_MATCHERS.getUnchecked(second.toString()).test(first.toString());
+            }
+
+            @Override
+            public Predicate<Object> compile(final Object second) {
+                Predicate<String> matcher = LIKE_MATCHERS.getUnchecked(second.toString());
+
+                return first -> matcher.test(first.toString());
             }
 
             @Override
@@ -77,7 +114,14 @@ public class Text {
         REGEX {
             @Override
             public boolean test(final Object first, final Object second) {
-                return first.toString().matches(second.toString());
+                return REGEX_MATCHERS.getUnchecked(second.toString()).test(first.toString());
+            }
+
+            @Override
+            public Predicate<Object> compile(final Object second) {
+                Predicate<String> matcher = REGEX_MATCHERS.getUnchecked(second.toString());
+
+                return first -> matcher.test(first.toString());
             }
 
             @Override
@@ -95,6 +139,88 @@ public class Text {
             public TextPredicate negate() {
                 return REGEX;
             }
+        };
+
+        /**
+         * Creates a predicate of values, equivalent to testing each value against the given second argument.
+         * The second argument is processed once (e.g. a pattern is compiled), rather than once per tested value
+         */
+        public Predicate<Object> compile(final Object second) {
+            Predicate<Object> negated = negate().compile(second);
+
+            return negated.negate();
         }
+
+        @Override
+        public abstract TextPredicate negate();
+    }
+
+    /**
+     * Creates a matcher of a 'like' pattern, where '?' matches a single optional character and '*' any characters.
+     * Patterns which are a literal surrounded by optional wildcards are matched without a regular expression
+     */
+    private static Predicate<String> createLikeMatcher(String like) {
+        Pattern pattern = Pattern.compile(like.replace("?", ".?").replace("*", ".*?"));
+
+        boolean anyPrefix = like.startsWith("*");
+        boolean anySuffix = like.length() > (anyPrefix ? 1 : 0) && like.endsWith("*");
+        String literal = like.substring(anyPrefix ? 1 : 0, like.length() - (anySuffix ? 1 : 0));
+
+        return createMatcher(pattern, literal, anyPrefix, anySuffix);
+    }
+
+    /**
+     * Creates a matcher of a regular expression.
+     * Expressions which are a literal surrounded by optional '.*' are matched without a regular expression
+     */
+    private static Predicate<String> createRegexMatcher(String regex) {
+        Pattern pattern = Pattern.compile(regex);
+
+        boolean anyPrefix = regex.startsWith(".*");
+        boolean anySuffix = regex.length() >= (anyPrefix ? 4 : 2) && regex.endsWith(".*") && !regex.endsWith("\\.*");
+        String literal = regex.substring(anyPrefix ? 2 : 0, regex.length() - (anySuffix ? 2 : 0));
+
+        return createMatcher(pattern, literal, anyPrefix, anySuffix);
+    }
+
+    /**
+     * Creates a matcher of the whole pattern, or of the literal if it has no special characters.
+     * As wildcards do not match line terminators, values with line terminators are still matched by the pattern
+     */
+    private static Predicate<String> createMatcher(Pattern pattern, String literal, boolean anyPrefix, boolean anySuffix) {
+        if (literal.chars().anyMatch(character -> REGEX_META_CHARACTERS.indexOf(character) >= 0)) {
+            return value -> pattern.matcher(value).matches();
+        }
+
+        if (!anyPrefix && !anySuffix) {
+            return literal::equals;
+        }
+
+        Predicate<String> literalMatcher;
+
+        if (anyPrefix && anySuffix) {
+            literalMatcher = value -> value.contains(literal);
+        } else if (anyPrefix) {
+            literalMatcher = value -> value.endsWith(literal);
+        } else {
+            literalMatcher = value -> value.startsWith(literal);
+        }
+
+        return value -> hasLineTerminator(value) ? pattern.matcher(value).matches() : literalMatcher.test(value);
+    }
+
+    /**
+     * Whether the given value has a character which '.' does not match
+     */
+    private static boolean hasLineTerminator(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char character = value.charAt(i);
+
+            if (character == '\n' || character == '\r' || character == '\u0085' || character == '\u2028' || character == '\u2029') {
+                return true;
+            }
+        }
+
+        return false;
     }
 }
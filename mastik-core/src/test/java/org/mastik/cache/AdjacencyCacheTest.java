@@ -0,0 +1,144 @@
+package org.mastik.cache;
+
+import com.google.common.collect.Sets;
+import org.apache.tinkerpop.gremlin.structure.Direction;
+import org.javatuples.Pair;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastik.query.PredicatesTree;
+import org.mastik.query.Query;
+import org.mastik.query.VertexQuery;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that queries of both directions return each edge once,
+ * whether its vertices were loaded, cached, or one of each
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 3/1/17
+ */
+public class AdjacencyCacheTest {
+    private static final Duration TIME_TO_LIVE = Duration.ofMinutes(1);
+
+    /**
+     * Edges as (out-vertex id, in-vertex id), including a loop and an edge to a vertex which is never queried
+     */
+    private static final List<Pair<String, String>> EDGES = Arrays.asList(
+            new Pair<>("a", "b"),
+            new Pair<>("b", "c"),
+            new Pair<>("c", "a"),
+            new Pair<>("a", "a"),
+            new Pair<>("b", "d"));
+
+    private AdjacencyCache<Pair<String, String>> cache;
+    private AtomicInteger loads;
+
+    @Before
+    public void setUp() {
+        this.cache = new AdjacencyCache<>(1000, 100, Pair::getValue0, Pair::getValue1);
+        this.loads = new AtomicInteger();
+    }
+
+    @Test
+    public void loadedEdgesAreReturnedOnce() {
+        assertEdges(query("a", "b", "c"), "a", "b", "c");
+        assertEquals(1, this.loads.get());
+    }
+
+    @Test
+    public void cachedEdgesAreReturnedOnce() {
+        query("a", "b", "c");
+
+        assertEdges(query("a", "b", "c"), "a", "b", "c");
+        assertEquals(1, this.loads.get());
+    }
+
+    @Test
+    public void edgesOfCachedAndLoadedVerticesAreReturnedOnce() {
+        query("a");
+
+        assertEdges(query("a", "b"), "a", "b");
+        assertEquals(2, this.loads.get());
+    }
+
+    @Test
+    public void edgesBetweenSeparatelyCachedVerticesAreReturnedOnce() {
+        query("a");
+        query("b");
+        query("c");
+
+        assertEdges(query("a", "b", "c"), "a", "b", "c");
+        assertEdges(query("b", "c"), "b", "c");
+        assertEquals(3, this.loads.get());
+    }
+
+    @Test
+    public void verticesOverTheMaximumDegreeAreNotCached() {
+        // 'a' and 'b' have three edges each, and 'c' has two
+        this.cache = new AdjacencyCache<>(1000, 2, Pair::getValue0, Pair::getValue1);
+        query("a", "b", "c");
+
+        assertEdges(query("c"), "c");
+        assertEquals(1, this.loads.get());
+
+        assertEdges(query("a", "b"), "a", "b");
+        assertEquals(2, this.loads.get());
+    }
+
+    @Test
+    public void resultsClosedBeforeTheirEndAreNotCached() {
+        VertexQuery query = new VertexQuery(Collections.singleton("a"), Direction.BOTH,
+                PredicatesTree.emptyTree(), Query.noLimit(), Query.allLabels(), Query.noOrders());
+
+        try (Stream<Pair<String, String>> results = this.cache.query(query, TIME_TO_LIVE, this::load).join()) {
+            assertTrue(results.findFirst().isPresent());
+        }
+
+        assertEdges(query("a"), "a");
+        assertEquals(2, this.loads.get());
+    }
+
+    /**
+     * Asserts the given results have each edge of the given vertices once
+     */
+    private static void assertEdges(List<Pair<String, String>> results, String... vertexIds) {
+        Set<String> ids = Sets.newHashSet(vertexIds);
+        List<Pair<String, String>> expected = EDGES.stream()
+                .filter(edge -> ids.contains(edge.getValue0()) || ids.contains(edge.getValue1()))
+                .collect(Collectors.toList());
+
+        assertEquals(sorted(expected), sorted(results));
+    }
+
+    private List<Pair<String, String>> query(String... vertexIds) {
+        VertexQuery query = new VertexQuery(new HashSet<>(Arrays.asList(vertexIds)), Direction.BOTH,
+                PredicatesTree.emptyTree(), Query.noLimit(), Query.allLabels(), Query.noOrders());
+
+        return this.cache.query(query, TIME_TO_LIVE, this::load).join().collect(Collectors.toList());
+    }
+
+    /**
+     * Loads the edges of the given vertices, as the backend returns them: each edge once
+     */
+    private CompletableFuture<Stream<Pair<String, String>>> load(VertexQuery query) {
+        this.loads.incrementAndGet();
+
+        return CompletableFuture.completedFuture(EDGES.stream()
+                .filter(edge -> query.getVertexIds().contains(edge.getValue0()) || query.getVertexIds().contains(edge.getValue1())));
+    }
+
+    private static List<Pair<String, String>> sorted(List<Pair<String, String>> edges) {
+        List<Pair<String, String>> sorted = new ArrayList<>(edges);
+        sorted.sort(Comparator.naturalOrder());
+
+        return sorted;
+    }
+}
@@ -0,0 +1,163 @@
+package org.mastik.cache;
+
+import org.apache.tinkerpop.gremlin.structure.Edge;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.apache.tinkerpop.gremlin.structure.util.detached.DetachedVertex;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastik.Backend;
+import org.mastik.query.PredicatesTree;
+import org.mastik.query.Query;
+import org.mastik.query.VertexQuery;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests which results are cached, and that misses of a result which is being read wait for it
+ * rather than querying the wrapped backend again
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 3/1/17
+ */
+public class CachingBackendTest {
+    private static final List<String> IDS = Arrays.asList("1", "2", "3");
+    private static final Query<Vertex> QUERY = new Query<>(Vertex.class, PredicatesTree.emptyTree(),
+            10, Query.allLabels(), Query.noOrders());
+
+    private StubBackend backend;
+    private CachingBackendConfiguration configuration;
+    private CachingBackend cache;
+
+    @Before
+    public void setUp() {
+        this.backend = new StubBackend();
+        this.configuration = new CachingBackendConfiguration();
+        this.configuration.setAdjacencyMaximumWeight(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (this.cache != null) {
+            this.cache.close();
+        }
+    }
+
+    @Test
+    public void concurrentMissesQueryOnce() throws Exception {
+        this.cache = new CachingBackend(this.backend, this.configuration);
+
+        CompletableFuture<Stream<Vertex>> first = this.cache.queryAsync(QUERY);
+        CompletableFuture<Stream<Vertex>> second = this.cache.queryAsync(QUERY);
+        assertFalse(second.isDone());
+
+        assertEquals(IDS, ids(first.join()));
+        assertEquals(IDS, ids(second.get(1, TimeUnit.SECONDS)));
+        assertEquals(1, this.backend.queries.get());
+    }
+
+    @Test
+    public void closedStreamIsNotCachedAndReleasesWaiters() throws Exception {
+        this.cache = new CachingBackend(this.backend, this.configuration);
+
+        CompletableFuture<Stream<Vertex>> first = this.cache.queryAsync(QUERY);
+        CompletableFuture<Stream<Vertex>> second = this.cache.queryAsync(QUERY);
+
+        try (Stream<Vertex> elements = first.join()) {
+            assertEquals(1, elements.limit(1).collect(Collectors.toList()).size());
+        }
+
+        // the waiting miss queries the backend by itself, as the closed result was not cached
+        assertEquals(IDS, ids(second.get(1, TimeUnit.SECONDS)));
+        assertEquals(2, this.backend.queries.get());
+
+        assertEquals(IDS, ids(this.cache.query(QUERY)));
+        assertEquals(2, this.backend.queries.get());
+    }
+
+    @Test
+    public void expiredResultIsAMiss() throws InterruptedException {
+        this.configuration.setTimeToLive(Duration.ofMillis(1));
+        this.cache = new CachingBackend(this.backend, this.configuration);
+
+        assertEquals(IDS, ids(this.cache.query(QUERY)));
+        Thread.sleep(10);
+        assertEquals(IDS, ids(this.cache.query(QUERY)));
+
+        assertEquals(2, this.backend.queries.get());
+        assertEquals(0, this.cache.getStats().hitCount());
+        assertEquals(2, this.cache.getStats().missCount());
+    }
+
+    @Test
+    public void heavyResultStreamsThroughUncached() {
+        this.configuration.setMaximumEntryWeight(IDS.size() - 1);
+        this.cache = new CachingBackend(this.backend, this.configuration);
+
+        assertEquals(IDS, ids(this.cache.query(QUERY)));
+        assertEquals(IDS, ids(this.cache.query(QUERY)));
+
+        assertEquals(2, this.backend.queries.get());
+        assertEquals(0, this.cache.getStats().hitCount());
+    }
+
+    private static List<String> ids(Stream<? extends Element> elements) {
+        try (Stream<? extends Element> closed = elements) {
+            return closed.map(element -> element.id().toString()).collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Returns the same vertices for every query, and counts the queries
+     */
+    private static class StubBackend implements Backend {
+        private final AtomicInteger queries = new AtomicInteger();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <E extends Element> Stream<E> query(Query<E> query) {
+            this.queries.incrementAndGet();
+
+            return IDS.stream().map(id -> (E) new DetachedVertex(id, Vertex.DEFAULT_LABEL, Collections.emptyMap()));
+        }
+
+        @Override
+        public <E extends Element> CompletableFuture<Stream<E>> queryAsync(Query<E> query) {
+            return CompletableFuture.completedFuture(query(query));
+        }
+
+        @Override
+        public Stream<Edge> queryVertex(VertexQuery query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<Stream<Edge>> queryVertexAsync(VertexQuery query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <E extends Element> long count(Query<E> query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public <E extends Element> Map<Object, Long> groupCount(Query<E> query, String key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Stream<Vertex> getVerticesDeferred(Set<Object> vertexIds, Set<String> propertyKeys) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.mastik.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests values are encoded and stored on disk, and read back after the store is reopened
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 3/1/17
+ */
+public class MappedCacheStoreTest {
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        this.directory = Files.createTempDirectory("mastik-cache");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.list(this.directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+
+        Files.delete(this.directory);
+    }
+
+    @Test
+    public void encodingRoundTrip() {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        properties.put("name", "mastik");
+        properties.put("int", 17);
+        properties.put("long", 1L << 40);
+        properties.put("negative", -3L);
+        properties.put("double", 0.5d);
+        properties.put("float", 1.5f);
+        properties.put("flag", true);
+        properties.put("missing", null);
+        properties.put("list", Arrays.asList("a", 1, Collections.singletonMap("nested", false)));
+
+        assertTrue(BinaryEncoding.canEncode(properties));
+        assertEquals(properties, BinaryEncoding.decode(BinaryEncoding.encode(properties)));
+    }
+
+    @Test
+    public void encodesOnlySupportedValues() {
+        assertFalse(BinaryEncoding.canEncode(new Object()));
+        assertFalse(BinaryEncoding.canEncode(Collections.singletonMap(1, "a")));
+        assertFalse(BinaryEncoding.canEncode(Collections.singletonList(new Date())));
+        assertNotEquals(BinaryEncoding.encodeKey("namespace", 1), BinaryEncoding.encodeKey("namespace", 1L));
+    }
+
+    @Test
+    public void storeRoundTrip() {
+        storeRoundTrip(false);
+    }
+
+    @Test
+    public void compressedStoreRoundTrip() {
+        storeRoundTrip(true);
+    }
+
+    private void storeRoundTrip(boolean compress) {
+        byte[] small = "small".getBytes(StandardCharsets.UTF_8);
+        byte[] large = BinaryEncoding.encode(Collections.nCopies(100, "repeated value"));
+
+        MappedCacheStore store = new MappedCacheStore(this.directory, SEGMENT_SIZE, 4, compress);
+        store.put("small", small, NEVER);
+        store.put("large", large, NEVER);
+        store.put("expired", small, System.currentTimeMillis() - 1);
+        store.put("removed", small, NEVER);
+        store.remove("removed");
+
+        assertArrayEquals(small, store.get("small"));
+        assertArrayEquals(large, store.get("large"));
+        store.close();
+
+        MappedCacheStore reopened = new MappedCacheStore(this.directory, SEGMENT_SIZE, 4, compress);
+        assertArrayEquals(small, reopened.get("small"));
+        assertArrayEquals(large, reopened.get("large"));
+        assertNull(reopened.get("expired"));
+        assertNull(reopened.get("removed"));
+        assertEquals(2, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void ignoresTornRecord() throws IOException {
+        byte[] value = "torn value".getBytes(StandardCharsets.UTF_8);
+
+        MappedCacheStore store = new MappedCacheStore(this.directory, SEGMENT_SIZE, 4, false);
+        store.put("first", "first value".getBytes(StandardCharsets.UTF_8), NEVER);
+        store.put("torn", value, NEVER);
+        store.close();
+
+        // flip a byte of the last record, as if the process died while writing it
+        Path segment;
+        try (Stream<Path> files = Files.list(this.directory)) {
+            segment = files.findFirst().orElseThrow(() -> new IllegalStateException("No segment was written"));
+        }
+
+        int offset = indexOf(Files.readAllBytes(segment), value);
+        assertTrue(offset > 0);
+
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(offset);
+            file.write(value[0] ^ 0xFF);
+        }
+
+        MappedCacheStore reopened = new MappedCacheStore(this.directory, SEGMENT_SIZE, 4, false);
+        assertArrayEquals("first value".getBytes(StandardCharsets.UTF_8), reopened.get("first"));
+        assertNull(reopened.get("torn"));
+
+        // the torn record is overwritten by the next one
+        reopened.put("next", value, NEVER);
+        reopened.close();
+
+        MappedCacheStore recovered = new MappedCacheStore(this.directory, SEGMENT_SIZE, 4, false);
+        assertArrayEquals("first value".getBytes(StandardCharsets.UTF_8), recovered.get("first"));
+        assertArrayEquals(value, recovered.get("next"));
+        assertNull(recovered.get("torn"));
+        recovered.close();
+    }
+
+    @Test
+    public void ignoresCorruptRecordWhenReadingIt() throws IOException {
+        byte[] value = "corrupt value".getBytes(StandardCharsets.UTF_8);
+
+        MappedCacheStore store = new MappedCacheStore(this.directory, SEGMENT_SIZE, 4, false);
+        store.put("corrupt", value, NEVER);
+        store.put("last", "last value".getBytes(StandardCharsets.UTF_8), NEVER);
+        store.close();
+
+        Path segment;
+        try (Stream<Path> files = Files.list(this.directory)) {
+            segment = files.findFirst().orElseThrow(() -> new IllegalStateException("No segment was written"));
+        }
+
+        int offset = indexOf(Files.readAllBytes(segment), value);
+        assertTrue(offset > 0);
+
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(offset);
+            file.write(value[0] ^ 0xFF);
+        }
+
+        // the record is indexed by its key, and its checksum is checked once it is read
+        MappedCacheStore reopened = new MappedCacheStore(this.directory, SEGMENT_SIZE, 4, false);
+        assertEquals(2, reopened.size());
+        assertNull(reopened.get("corrupt"));
+        assertArrayEquals("last value".getBytes(StandardCharsets.UTF_8), reopened.get("last"));
+        assertEquals(1, reopened.size());
+        reopened.close();
+    }
+
+    private static int indexOf(byte[] bytes, byte[] pattern) {
+        for (int i = 0; i <= bytes.length - pattern.length; i++) {
+            if (Arrays.equals(Arrays.copyOfRange(bytes, i, i + pattern.length), pattern)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+}
@@ -0,0 +1,241 @@
+package org.mastik.query;
+
+import org.apache.tinkerpop.gremlin.process.traversal.P;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.apache.tinkerpop.gremlin.structure.Vertex;
+import org.apache.tinkerpop.gremlin.structure.util.ElementHelper;
+import org.apache.tinkerpop.gremlin.structure.util.detached.DetachedVertex;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests that optimized predicates trees accept exactly the elements the original trees accept
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 3/1/17
+ */
+public class PredicatesOptimizerTest {
+    private static final int TREES = 1000;
+    private static final int VERTICES = 200;
+
+    @Test
+    public void optimizedTreesAcceptTheSameElements() {
+        Random random = new Random(17);
+        List<Vertex> vertices = randomVertices(random, VERTICES);
+
+        for (int i = 0; i < TREES; i++) {
+            PredicatesTree tree = randomTree(random, 3);
+            PredicatesTree optimized = PredicatesOptimizer.optimize(tree);
+
+            for (Vertex vertex : vertices) {
+                String message = String.format("%s optimized to %s, tested against %s", tree, optimized,
+                        ElementHelper.propertyValueMap(vertex));
+                boolean expected = test(tree, vertex);
+
+                assertEquals(message, expected, test(optimized, vertex));
+                assertEquals(message, expected, optimized.compile().test(vertex));
+            }
+        }
+    }
+
+    @Test
+    public void mergesEqualityPredicates() {
+        PredicatesTree tree = PredicatesTree.createFromPredicates(
+                new HasContainer("name", P.within("a", "b", "c")),
+                new HasContainer("name", P.within("b", "c", "d")),
+                new HasContainer("name", P.neq("c")));
+
+        PredicatesTree optimized = PredicatesOptimizer.optimize(tree);
+
+        assertFalse(optimized.isUnsatisfiable());
+        assertTrue(test(optimized, vertexWith("name", "b")));
+        assertFalse(test(optimized, vertexWith("name", "c")));
+        assertFalse(test(optimized, vertexWith("name", "a")));
+    }
+
+    @Test
+    public void detectsDisjointEqualityPredicates() {
+        PredicatesTree tree = PredicatesTree.createFromPredicates(
+                new HasContainer("name", P.eq("a")),
+                new HasContainer("name", P.within("b", "c")));
+
+        assertTrue(PredicatesOptimizer.optimize(tree).isUnsatisfiable());
+    }
+
+    @Test
+    public void detectsEmptyRanges() {
+        PredicatesTree tree = PredicatesTree.createFromPredicates(
+                new HasContainer("age", P.gt(5)),
+                new HasContainer("age", P.lt(3)));
+
+        assertTrue(PredicatesOptimizer.optimize(tree).isUnsatisfiable());
+    }
+
+    @Test
+    public void keepsRangesOfDifferentNumberTypes() {
+        PredicatesTree tree = PredicatesTree.createFromPredicates(
+                new HasContainer("age", P.gt(5)),
+                new HasContainer("age", P.lt(5.5d)));
+
+        PredicatesTree optimized = PredicatesOptimizer.optimize(tree);
+
+        assertFalse(optimized.isUnsatisfiable());
+        assertFalse(test(optimized, vertexWith("age", 5)));
+        assertTrue(test(optimized, vertexWith("age", 5.25d)));
+    }
+
+    @Test
+    public void hoistsCommonPredicates() {
+        HasContainer common = new HasContainer("name", P.eq("a"));
+        PredicatesTree tree = PredicatesTree.or(
+                PredicatesTree.createFromPredicates(common, new HasContainer("age", P.eq(1))),
+                PredicatesTree.createFromPredicates(common, new HasContainer("age", P.eq(2))));
+
+        PredicatesTree optimized = PredicatesOptimizer.optimize(tree);
+
+        assertTrue(optimized.isAnd());
+        assertEquals(1, optimized.predicates().size());
+        assertEquals(common.getKey(), optimized.predicates().get(0).getKey());
+        assertEquals(common.getPredicate(), optimized.predicates().get(0).getPredicate());
+    }
+
+    /**
+     * Tests the given element against the tree, one predicate at a time as {@link HasContainer#test} does,
+     * so the expected results do not depend on {@link PredicatesTree#compile()}
+     */
+    private static boolean test(PredicatesTree tree, Element element) {
+        if (tree.isUnsatisfiable()) {
+            return false;
+        }
+
+        if (tree.isEmpty()) {
+            return true;
+        }
+
+        List<Boolean> results = new ArrayList<>();
+
+        if (tree.hasPredicates()) {
+            tree.predicates().forEach(predicate -> results.add(predicate.test(element)));
+        }
+
+        if (tree.hasChildren()) {
+            tree.children().forEach(child -> results.add(test(child, element)));
+        }
+
+        return tree.isAnd() ? !results.contains(false) : results.contains(true);
+    }
+
+    private static PredicatesTree randomTree(Random random, int depth) {
+        List<HasContainer> predicates = new ArrayList<>();
+        List<PredicatesTree> children = new ArrayList<>();
+
+        int predicatesCount = random.nextInt(4);
+        for (int i = 0; i < predicatesCount; i++) {
+            predicates.add(randomPredicate(random));
+        }
+
+        int childrenCount = depth > 0 ? random.nextInt(3) : 0;
+        for (int i = 0; i < childrenCount; i++) {
+            children.add(randomTree(random, depth - 1));
+        }
+
+        if (predicates.isEmpty() && children.isEmpty()) {
+            predicates.add(randomPredicate(random));
+        }
+
+        return random.nextBoolean() ?
+                PredicatesTree.createAnd(predicates, children) :
+                PredicatesTree.createOr(predicates, children);
+    }
+
+    private static HasContainer randomPredicate(Random random) {
+        if (random.nextBoolean()) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    return new HasContainer("name", P.eq(randomName(random)));
+                case 1:
+                    return new HasContainer("name", P.neq(randomName(random)));
+                case 2:
+                    return new HasContainer("name", P.within(randomName(random), randomName(random)));
+                default:
+                    return new HasContainer("name", P.within());
+            }
+        }
+
+        switch (random.nextInt(7)) {
+            case 0:
+                return new HasContainer("age", P.eq(randomNumber(random)));
+            case 1:
+                return new HasContainer("age", P.neq(randomNumber(random)));
+            case 2:
+                return new HasContainer("age", P.gt(randomNumber(random)));
+            case 3:
+                return new HasContainer("age", P.gte(randomNumber(random)));
+            case 4:
+                return new HasContainer("age", P.lt(randomNumber(random)));
+            case 5:
+                return new HasContainer("age", P.lte(randomNumber(random)));
+            default:
+                return new HasContainer("age", P.within(random.nextInt(5), random.nextInt(5), random.nextInt(5)));
+        }
+    }
+
+    private static List<Vertex> randomVertices(Random random, int count) {
+        List<Vertex> vertices = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> properties = new HashMap<>();
+
+            if (random.nextInt(5) > 0) {
+                properties.put("name", randomName(random));
+            }
+
+            if (random.nextInt(5) > 0) {
+                properties.put("age", randomNumber(random));
+            }
+
+            vertices.add(vertex("v" + i, properties));
+        }
+
+        return vertices;
+    }
+
+    private static String randomName(Random random) {
+        return String.valueOf((char) ('a' + random.nextInt(4)));
+    }
+
+    /**
+     * Returns a small number, which is an Integer, a Long or a Double, so predicates compare values of all of them
+     */
+    private static Object randomNumber(Random random) {
+        switch (random.nextInt(3)) {
+            case 0:
+                return random.nextInt(5);
+            case 1:
+                return (long) random.nextInt(5);
+            default:
+                return random.nextInt(10) / 2d;
+        }
+    }
+
+    private static Vertex vertexWith(String key, Object value) {
+        return vertex("v", Collections.singletonMap(key, value));
+    }
+
+    private static Vertex vertex(Object id, Map<String, Object> properties) {
+        Map<String, Object> vertexProperties = new HashMap<>();
+        properties.forEach((key, value) -> {
+            Map<String, Object> property = new HashMap<>();
+            property.put("id", key);
+            property.put("value", value);
+
+            vertexProperties.put(key, Collections.singletonList(property));
+        });
+
+        return new DetachedVertex(id, Vertex.DEFAULT_LABEL, vertexProperties);
+    }
+}
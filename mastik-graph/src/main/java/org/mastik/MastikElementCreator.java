@@ -39,6 +39,15 @@ public class MastikElementCreator implements ElementCreator {
                 .collect(Collectors.toMap(Map.Entry::getKey,
                         entry -> createProperty(entry.getKey(), entry.getValue())));
 
+        return createEdgeFromProperties(edgeId, label, properties, outVertex, inVertex, backend);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("rawtypes")
+    public Edge createEdgeFromProperties(String edgeId, String label, Map<String, Property> properties, Vertex outVertex, Vertex inVertex, Backend backend) {
         return new MastikEdge(edgeId, label, properties, outVertex, inVertex, backend);
     }
 
@@ -64,18 +73,20 @@ public class MastikElementCreator implements ElementCreator {
     }
 
     /**
-     * Creates a property given raw key and value
+     * {@inheritDoc}
      */
-    protected Property createProperty(String key, Object value) {
+    @Override
+    public Property createProperty(String key, Object value) {
         ElementHelper.validateProperty(key, value);
 
         return new MastikProperty<>(key, value);
     }
 
     /**
-     * Creates a vertex property given raw key and value
+     * {@inheritDoc}
      */
-    protected VertexProperty createVertexProperty(String key, Object value) {
+    @Override
+    public VertexProperty createVertexProperty(String key, Object value) {
         ElementHelper.validateProperty(key, value);
 
         return new MastikVertexProperty<>(key, value);
@@ -1,7 +1,5 @@
 package org.mastik.structure;
 
-import org.apache.tinkerpop.gremlin.process.traversal.P;
-import org.apache.tinkerpop.gremlin.process.traversal.step.util.HasContainer;
 import org.apache.tinkerpop.gremlin.structure.*;
 import org.mastik.Backend;
 import org.mastik.ElementUtils;
@@ -30,14 +28,7 @@ public class MastikVertex extends BaseMastikVertex {
      */
     @Override
     public Stream<Edge> edgesStream(Direction direction, String... edgeLabels) {
-        PredicatesTree predicatesContainer;
-
-        if (edgeLabels.length > 0) {
-            HasContainer labelsPredicate = new HasContainer(T.label.getAccessor(), P.within(edgeLabels));
-            predicatesContainer = PredicatesTree.createFromPredicates(labelsPredicate);
-        } else {
-            predicatesContainer = PredicatesTree.emptyTree();
-        }
+        PredicatesTree predicatesContainer = ElementUtils.createEdgeLabelsPredicate(edgeLabels);
 
         VertexQuery searchVertexQuery = new VertexQuery(Collections.singleton(id()), direction, predicatesContainer, -1, null, null);
         return backend().queryVertex(searchVertexQuery);
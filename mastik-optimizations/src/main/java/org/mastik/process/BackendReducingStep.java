@@ -0,0 +1,53 @@
+package org.mastik.process;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Step;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.Traverser;
+import org.apache.tinkerpop.gremlin.process.traversal.step.util.AbstractStep;
+import org.apache.tinkerpop.gremlin.process.traversal.util.FastNoSuchElementException;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A start step which replaces a step that fetches elements and the step that reduces them,
+ * by a single value that is computed by the backend
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/11/17
+ */
+@SuppressWarnings("serial")
+public abstract class BackendReducingStep<S, E> extends AbstractStep<S, E> {
+    /**
+     * Whether the reduced value was already returned
+     */
+    private boolean done = false;
+
+    public BackendReducingStep(Traversal.Admin<?, ?> traversal) {
+        super(traversal);
+    }
+
+    @Override
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    protected Traverser.Admin<E> processNextStart() throws NoSuchElementException {
+        if (this.done) {
+            throw FastNoSuchElementException.instance();
+        }
+
+        this.done = true;
+
+        return this.getTraversal().getTraverserGenerator().generate(reduce(), (Step) this, 1L);
+    }
+
+    /**
+     * Computes the reduced value using the backend
+     * @return The single value returned by this step
+     */
+    protected abstract E reduce();
+
+    @Override
+    public void reset() {
+        super.reset();
+
+        this.done = false;
+    }
+}
@@ -6,8 +6,9 @@ import org.apache.tinkerpop.gremlin.process.traversal.Traverser;
 import org.apache.tinkerpop.gremlin.process.traversal.step.util.AbstractStep;
 import org.apache.tinkerpop.gremlin.process.traversal.util.FastNoSuchElementException;
 import org.apache.tinkerpop.gremlin.util.iterator.EmptyIterator;
-import org.mastik.StreamUtils;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -20,6 +21,21 @@ public abstract class BulkStep<S, E> extends AbstractStep<S, E> {
      */
     protected final int bulkSize = 1000;
 
+    /**
+     * Bulks of 'starts' which were not passed to 'process' yet
+     */
+    private Iterator<List<Traverser.Admin<S>>> bulks = EmptyIterator.instance();
+
+    /**
+     * Processed bulks which are not consumed yet, up to 'bulksInFlight'
+     */
+    private Deque<Stream<Traverser.Admin<E>>> processedBulks = new ArrayDeque<>();
+
+    /**
+     * Processed bulk currently consumed, closed once it is exhausted or the step is reset
+     */
+    private Stream<Traverser.Admin<E>> currentBulk;
+
     /**
      * Results to be returned each time 'processNextStart' is invoked
      */
@@ -29,27 +45,41 @@ public abstract class BulkStep<S, E> extends AbstractStep<S, E> {
         super(traversal);
     }
 
+    /**
+     * Partitions 'starts' to bulks in 'bulkSize', passing each to 'process',
+     * keeping up to 'bulksInFlight' processed bulks ahead of the consumed one
+     */
     @Override
     protected Traverser.Admin<E> processNextStart() throws NoSuchElementException {
-        if (!results.hasNext() && starts.hasNext()) {
-            results = process();
-        }
+        while (!this.results.hasNext()) {
+            closeCurrentBulk();
+
+            if (this.processedBulks.isEmpty() && !this.bulks.hasNext()) {
+                if (!this.starts.hasNext()) {
+                    throw FastNoSuchElementException.instance();
+                }
 
-        if (results.hasNext()) {
-            return results.next();
+                this.bulks = Iterators.partition(this.starts, this.bulkSize);
+            }
+
+            while (this.processedBulks.size() < bulksInFlight() && this.bulks.hasNext()) {
+                this.processedBulks.add(process(this.bulks.next()));
+            }
+
+            this.currentBulk = this.processedBulks.poll();
+            this.results = this.currentBulk.iterator();
         }
 
-        throw FastNoSuchElementException.instance();
+        return this.results.next();
     }
 
     /**
-     * Partitions 'starts' to bulks in 'bulkSize', passing each to 'process'
-     * @return
+     * Number of bulks which are passed to 'process' ahead of the bulk currently consumed.
+     * Steps which start their work asynchronously in 'process' may override this,
+     * so the work of several bulks overlaps
      */
-    private Iterator<Traverser.Admin<E>> process() {
-        return StreamUtils.toStream(Iterators.partition(this.starts, this.bulkSize))
-                .flatMap(this::process)
-                .iterator();
+    protected int bulksInFlight() {
+        return 1;
     }
 
     /**
@@ -63,6 +93,32 @@ public abstract class BulkStep<S, E> extends AbstractStep<S, E> {
     public void reset() {
         super.reset();
 
+        closeCurrentBulk();
+        this.processedBulks.forEach(Stream::close);
+        this.processedBulks.clear();
+        this.bulks = EmptyIterator.instance();
+    }
+
+    @Override
+    public BulkStep<S, E> clone() {
+        BulkStep<S, E> clone = (BulkStep<S, E>) super.clone();
+        clone.bulks = EmptyIterator.instance();
+        clone.processedBulks = new ArrayDeque<>();
+        clone.currentBulk = null;
+        clone.results = EmptyIterator.instance();
+
+        return clone;
+    }
+
+    /**
+     * Closes the consumed bulk, releasing the resources its results hold, such as open scrolls
+     */
+    private void closeCurrentBulk() {
+        if (this.currentBulk != null) {
+            this.currentBulk.close();
+            this.currentBulk = null;
+        }
+
         this.results = EmptyIterator.instance();
     }
 }
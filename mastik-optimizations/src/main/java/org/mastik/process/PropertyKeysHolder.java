@@ -0,0 +1,24 @@
+package org.mastik.process;
+
+import java.util.Set;
+
+/**
+ * A step which fetches elements from the backend,
+ * and can restrict the element properties it fetches
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/5/17
+ */
+public interface PropertyKeysHolder {
+    /**
+     * Returns the keys of the properties fetched for the step results,
+     * empty if all properties are fetched
+     */
+    Set<String> getPropertyKeys();
+
+    /**
+     * Restricts the properties fetched for the step results to the given keys
+     * @param propertyKeys Keys of the properties to fetch
+     */
+    void setPropertyKeys(Set<String> propertyKeys);
+}
@@ -1,11 +1,19 @@
 package org.mastik.process;
 
 import com.google.common.collect.Lists;
+import org.apache.tinkerpop.gremlin.process.traversal.Order;
 import org.apache.tinkerpop.gremlin.process.traversal.Step;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.lambda.ElementValueTraversal;
 import org.apache.tinkerpop.gremlin.process.traversal.step.HasContainerHolder;
 import org.apache.tinkerpop.gremlin.process.traversal.step.filter.RangeGlobalStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.OrderGlobalStep;
+import org.javatuples.Pair;
+import org.mastik.query.PredicatesOptimizer;
 import org.mastik.query.PredicatesTree;
+import org.mastik.query.Query;
 
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -16,22 +24,106 @@ import java.util.stream.Collectors;
  * @since 1/6/17
  */
 public class TraversalCollector {
+    /**
+     * Collects the predicates of the 'has' steps directly following the given step, and removes them.
+     * The collected predicates are optimized, and are {@link PredicatesTree#unsatisfiable()} if no element can pass them.
+     * Stops at any other step, as predicates following it (e.g. following a limit) can not be applied before it
+     */
     public static PredicatesTree collectPredicates(Step step) {
         List<PredicatesTree> predicates = Lists.newArrayList();
 
-        for (Step currentStep = step.getNextStep(); currentStep != null; currentStep = currentStep.getNextStep()) {
-            if (currentStep instanceof HasContainerHolder) {
+        for (Step currentStep = step.getNextStep(); currentStep instanceof HasContainerHolder; currentStep = currentStep.getNextStep()) {
+            predicates.addAll(((HasContainerHolder) currentStep).getHasContainers().stream()
+                    .map(PredicatesTree::createFromPredicates)
+                    .collect(Collectors.toList()));
 
-                predicates.addAll(((HasContainerHolder) currentStep).getHasContainers().stream()
-                        .map(PredicatesTree::createFromPredicates)
-                        .collect(Collectors.toList()));
+            currentStep.getTraversal().removeStep(currentStep);
+        }
+
+        return PredicatesOptimizer.optimize(PredicatesTree.and(predicates));
+    }
+
+    /**
+     * Collects the orders of an {@link OrderGlobalStep} directly following the given step,
+     * if it orders only by properties, in increasing or decreasing order
+     *
+     * @param step Step to collect the orders following it
+     * @param removeOrderStep Whether to remove the order step, when the collected orders fully replace it
+     * @return The collected orders, or {@link Query#noOrders()} if there are none
+     */
+    public static List<Pair<String, Order>> collectOrders(Step<?, ?> step, boolean removeOrderStep) {
+        Step<?, ?> nextStep = step.getNextStep();
+
+        if (!(nextStep instanceof OrderGlobalStep)) {
+            return Query.noOrders();
+        }
+
+        List<Pair<String, Order>> orders = getOrders((OrderGlobalStep<?, ?>) nextStep);
+
+        if (orders == null) {
+            return Query.noOrders();
+        }
+
+        if (removeOrderStep) {
+            nextStep.getTraversal().removeStep(nextStep);
+        }
+
+        return orders;
+    }
+
+    /**
+     * Collects the upper bound of a {@link RangeGlobalStep} directly following the given step,
+     * or following an {@link OrderGlobalStep} whose orders can be collected.
+     * The range step itself is kept, as it may also have a lower bound,
+     * and the limit may apply to each of the step bulks rather than to all of its results.
+     * The limit bounds the results of the query after all of its predicates are tested,
+     * so backends must not cut their results by it before testing them
+     *
+     * @param step Step to collect the limit following it
+     * @return The collected limit, or {@link Query#noLimit()} if there is none
+     */
+    public static int collectLimit(Step<?, ?> step) {
+        Step<?, ?> nextStep = step.getNextStep();
 
-                currentStep.getTraversal().removeStep(currentStep);
-            } else if (!(currentStep instanceof RangeGlobalStep)) {
-                break;
+        if (nextStep instanceof OrderGlobalStep) {
+            if (getOrders((OrderGlobalStep<?, ?>) nextStep) == null) {
+                return Query.noLimit();
             }
+
+            nextStep = nextStep.getNextStep();
+        }
+
+        if (!(nextStep instanceof RangeGlobalStep)) {
+            return Query.noLimit();
+        }
+
+        long highRange = ((RangeGlobalStep<?>) nextStep).getHighRange();
+
+        if (highRange < 0 || highRange > Integer.MAX_VALUE) {
+            return Query.noLimit();
+        }
+
+        return (int) highRange;
+    }
+
+    /**
+     * Given an order step, returns its orders,
+     * or null if it does not order only by properties, in increasing or decreasing order
+     */
+    private static List<Pair<String, Order>> getOrders(OrderGlobalStep<?, ?> orderStep) {
+        List<Pair<String, Order>> orders = Lists.newArrayList();
+
+        for (Pair<? extends Traversal.Admin<?, ?>, ? extends Comparator<?>> comparator : orderStep.getComparators()) {
+            Traversal.Admin<?, ?> byTraversal = comparator.getValue0();
+            Comparator<?> order = comparator.getValue1();
+
+            if (!(byTraversal instanceof ElementValueTraversal) || (order != Order.incr && order != Order.decr)) {
+                return null;
+            }
+
+            orders.add(new Pair<>(((ElementValueTraversal) byTraversal).getPropertyKey(), (Order) order));
         }
 
-        return PredicatesTree.and(predicates);
+        return orders.isEmpty() ? null : orders;
     }
 }
@@ -0,0 +1,47 @@
+package org.mastik.process.aggregation;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.GroupCountStep;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.mastik.Backend;
+import org.mastik.process.BackendReducingStep;
+import org.mastik.query.Query;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Replaces a {@link org.mastik.process.graph.MastikGraphStep} followed by a {@link GroupCountStep},
+ * by grouping and counting the query results in the backend
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/13/17
+ */
+@SuppressWarnings("serial")
+public class MastikGroupCountStep<S, E extends Element> extends BackendReducingStep<S, Map<Object, Long>> {
+    private final Query<E> query;
+    private final String key;
+    private final Backend backend;
+
+    public MastikGroupCountStep(Traversal.Admin<?, ?> traversal, Query<E> query, String key, Backend backend) {
+        super(traversal);
+
+        this.query = query;
+        this.key = key;
+        this.backend = backend;
+    }
+
+    @Override
+    protected Map<Object, Long> reduce() {
+        if (this.query.getPredicates().isUnsatisfiable()) {
+            return new HashMap<>();
+        }
+
+        return this.backend.groupCount(this.query, this.key);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MastikGroupCountStep{query=%s, key=%s}", this.query, this.key);
+    }
+}
@@ -0,0 +1,105 @@
+package org.mastik.process.aggregation;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Step;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.lambda.ElementValueTraversal;
+import org.apache.tinkerpop.gremlin.process.traversal.lambda.TokenTraversal;
+import org.apache.tinkerpop.gremlin.process.traversal.step.TraversalParent;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.CountGlobalStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.GroupCountStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.GroupStep;
+import org.apache.tinkerpop.gremlin.process.traversal.util.TraversalHelper;
+import org.apache.tinkerpop.gremlin.structure.T;
+import org.mastik.Backend;
+import org.mastik.Strategy;
+import org.mastik.process.graph.MastikGraphStep;
+import org.mastik.query.Query;
+
+import java.util.List;
+
+/**
+ * Finds start {@link MastikGraphStep}s which are directly followed by a {@link GroupCountStep} by a property or label,
+ * or by a {@link GroupStep} by a property or label whose values are counted,
+ * and replaces both with a {@link MastikGroupCountStep}, if the backend groups the results of the step by the key by itself.
+ * Should be applied after {@link org.mastik.process.graph.MastikGraphStepStrategy}
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/13/17
+ */
+public class MastikGroupCountStrategy implements Strategy {
+
+    @Override
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void apply(Traversal.Admin traversal, Backend backend) {
+        TraversalHelper.getStepsOfAssignableClassRecursively(MastikGraphStep.class, traversal)
+                .forEach(graphStep -> {
+                    Step nextStep = graphStep.getNextStep();
+                    String key = getGroupKey(nextStep);
+
+                    if (key == null || !graphStep.isStartStep() || !graphStep.getLabels().isEmpty()) {
+                        return;
+                    }
+
+                    Query query = graphStep.createQuery();
+
+                    // aggregations are computed over all matching documents
+                    if (query.getLimit() != Query.noLimit() || !backend.canGroupCount(query, key)) {
+                        return;
+                    }
+
+                    Traversal.Admin stepTraversal = graphStep.getTraversal();
+                    MastikGroupCountStep groupCountStep = new MastikGroupCountStep<>(stepTraversal, query, key, backend);
+                    nextStep.getLabels().forEach(label -> groupCountStep.addLabel((String) label));
+
+                    TraversalHelper.replaceStep(graphStep, groupCountStep, stepTraversal);
+                    stepTraversal.removeStep(nextStep);
+                });
+    }
+
+    /**
+     * Given a step, returns the property key (or label accessor) it groups and counts by,
+     * or null if it is not a group-count which can be computed by the backend
+     */
+    private String getGroupKey(Step<?, ?> step) {
+        if (step instanceof GroupCountStep) {
+            List<? extends Traversal.Admin<?, ?>> children = ((TraversalParent) step).getLocalChildren();
+
+            return children.size() == 1 ? getKey(children.get(0)) : null;
+        }
+
+        if (step instanceof GroupStep) {
+            List<? extends Traversal.Admin<?, ?>> children = ((TraversalParent) step).getLocalChildren();
+
+            if (children.size() != 2 || !isCount(children.get(1))) {
+                return null;
+            }
+
+            return getKey(children.get(0));
+        }
+
+        return null;
+    }
+
+    /**
+     * Given a 'by' traversal, returns the property key (or label accessor) it maps to,
+     * or null if it maps to anything else
+     */
+    private String getKey(Traversal.Admin<?, ?> byTraversal) {
+        if (byTraversal instanceof ElementValueTraversal) {
+            return ((ElementValueTraversal) byTraversal).getPropertyKey();
+        }
+
+        if (byTraversal instanceof TokenTraversal && ((TokenTraversal) byTraversal).getToken() == T.label) {
+            return T.label.getAccessor();
+        }
+
+        return null;
+    }
+
+    /**
+     * Whether the given group values traversal is a count
+     */
+    private boolean isCount(Traversal.Admin<?, ?> valueTraversal) {
+        return valueTraversal.getSteps().size() == 1 && valueTraversal.getSteps().get(0) instanceof CountGlobalStep;
+    }
+}
@@ -0,0 +1,42 @@
+package org.mastik.process.count;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.CountGlobalStep;
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.mastik.Backend;
+import org.mastik.process.BackendReducingStep;
+import org.mastik.query.Query;
+
+/**
+ * Replaces a {@link org.mastik.process.graph.MastikGraphStep} followed by a {@link CountGlobalStep},
+ * by counting the query results in the backend
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/11/17
+ */
+@SuppressWarnings("serial")
+public class MastikCountStep<S, E extends Element> extends BackendReducingStep<S, Long> {
+    private final Query<E> query;
+    private final Backend backend;
+
+    public MastikCountStep(Traversal.Admin<?, ?> traversal, Query<E> query, Backend backend) {
+        super(traversal);
+
+        this.query = query;
+        this.backend = backend;
+    }
+
+    @Override
+    protected Long reduce() {
+        if (this.query.getPredicates().isUnsatisfiable()) {
+            return 0L;
+        }
+
+        return this.backend.count(this.query);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MastikCountStep{query=%s}", this.query);
+    }
+}
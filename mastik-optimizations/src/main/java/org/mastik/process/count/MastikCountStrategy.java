@@ -0,0 +1,47 @@
+package org.mastik.process.count;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Step;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.CountGlobalStep;
+import org.apache.tinkerpop.gremlin.process.traversal.util.TraversalHelper;
+import org.mastik.Backend;
+import org.mastik.Strategy;
+import org.mastik.process.graph.MastikGraphStep;
+import org.mastik.query.Query;
+
+/**
+ * Finds start {@link MastikGraphStep}s which are directly followed by a {@link CountGlobalStep},
+ * and replaces both with a {@link MastikCountStep}, if the backend counts the results of the step by itself.
+ * Should be applied after {@link org.mastik.process.graph.MastikGraphStepStrategy}
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/11/17
+ */
+public class MastikCountStrategy implements Strategy {
+
+    @Override
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void apply(Traversal.Admin traversal, Backend backend) {
+        TraversalHelper.getStepsOfAssignableClassRecursively(MastikGraphStep.class, traversal)
+                .forEach(graphStep -> {
+                    Step nextStep = graphStep.getNextStep();
+
+                    if (!graphStep.isStartStep() || !graphStep.getLabels().isEmpty() || !(nextStep instanceof CountGlobalStep)) {
+                        return;
+                    }
+
+                    Query query = graphStep.createQuery();
+
+                    if (!backend.canCount(query)) {
+                        return;
+                    }
+
+                    Traversal.Admin stepTraversal = graphStep.getTraversal();
+                    MastikCountStep countStep = new MastikCountStep<>(stepTraversal, query, backend);
+                    nextStep.getLabels().forEach(label -> countStep.addLabel((String) label));
+
+                    TraversalHelper.replaceStep(graphStep, countStep, stepTraversal);
+                    stepTraversal.removeStep(nextStep);
+                });
+    }
+}
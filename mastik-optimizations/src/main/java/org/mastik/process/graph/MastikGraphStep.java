@@ -9,13 +9,19 @@ import org.apache.tinkerpop.gremlin.structure.util.ElementHelper;
 import org.javatuples.Pair;
 import org.mastik.Backend;
 import org.mastik.ElementUtils;
+import org.mastik.StreamUtils;
+import org.mastik.cache.NegativeCache;
+import org.mastik.process.PropertyKeysHolder;
 import org.mastik.process.TraversalCollector;
+import org.mastik.query.PredicatesOptimizer;
 import org.mastik.query.PredicatesTree;
 import org.mastik.query.Query;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Mastik implementation of {@link GraphStep}
@@ -23,7 +29,7 @@ import java.util.*;
  * @author imriqwe (imriqwe@gmail.com)
  * @since 1/7/17
  */
-public class MastikGraphStep<S, E extends Element> extends GraphStep<S, E> {
+public class MastikGraphStep<S, E extends Element> extends GraphStep<S, E> implements PropertyKeysHolder {
     private static final Logger logger = LoggerFactory.getLogger(MastikGraphStep.class);
 
     private final Class<E> returnClass;
@@ -32,6 +38,17 @@ public class MastikGraphStep<S, E extends Element> extends GraphStep<S, E> {
     private List<Pair<String, Order>> orders;
     private Backend backend;
     private Set<Object> elementIds;
+    private Set<String> propertyKeys;
+
+    /**
+     * Results of the last query, closed once they are exhausted or the step is reset
+     */
+    private Stream<E> results;
+
+    /**
+     * Batch which queries the results of this step together with other steps, or null if the step queries them by itself
+     */
+    private QueryBatch batch;
 
     public MastikGraphStep(Traversal.Admin traversal, Class<E> returnClass, boolean isStartStep, Set<Object> elementIds,
                            int limit, PredicatesTree predicates, List<Pair<String, Order>> orders, Backend backend) {
@@ -45,6 +62,7 @@ public class MastikGraphStep<S, E extends Element> extends GraphStep<S, E> {
         this.predicates = predicates;
         this.orders = orders;
         this.backend = backend;
+        this.propertyKeys = Query.allLabels();
 
         this.setIteratorSupplier(this::process);
     }
@@ -58,10 +76,13 @@ public class MastikGraphStep<S, E extends Element> extends GraphStep<S, E> {
      */
     public static <S, E extends Element> MastikGraphStep<S, E> fromGraphStep(GraphStep<S, E> graphStep, Backend backend) {
         PredicatesTree predicates = TraversalCollector.collectPredicates(graphStep);
+        int limit = TraversalCollector.collectLimit(graphStep);
+
+        // A mid-traversal graph step is ordered per start, so the order step is kept to order all of its results
+        List<Pair<String, Order>> orders = TraversalCollector.collectOrders(graphStep, graphStep.isStartStep());
 
-        // @todo: collect order and limit
         return new MastikGraphStep<>(graphStep.getTraversal(), graphStep.getReturnClass(), graphStep.isStartStep(),
-                Sets.newHashSet(graphStep.getIds()), Query.noLimit(), predicates, Query.noOrders(), backend);
+                Sets.newHashSet(graphStep.getIds()), limit, predicates, orders, backend);
     }
 
     /**
@@ -70,22 +91,130 @@ public class MastikGraphStep<S, E extends Element> extends GraphStep<S, E> {
     protected Iterator<E> process() {
 
         if (this.returnsVertex() && this.canCreateDeferredVertices()) {
-            return (Iterator)this.backend.getVerticesDeferred(this.elementIds).iterator();
-        } else {
-            PredicatesTree idsPredicate = ElementUtils.createIdsPredicate(this.elementIds);
-            PredicatesTree mergedPredicates = PredicatesTree.and(idsPredicate, this.predicates);
+            return (Iterator)this.backend.getVerticesDeferred(this.elementIds, this.propertyKeys).iterator();
+        }
+
+        Query<E> query = createBackendQuery();
+
+        if (query == null) {
+            return Collections.emptyIterator();
+        }
+
+        closeResults();
+        this.results = this.batch != null ? this.batch.query(this, query) : this.backend.query(query);
+
+        return StreamUtils.toClosingIterator(this.results);
+    }
+
+    /**
+     * Creates the query this step sends to the backend, or returns null if it does not query the backend,
+     * as its vertices are deferred, or its results are known to be empty
+     */
+    Query<E> createBackendQuery() {
+        if (this.returnsVertex() && this.canCreateDeferredVertices()) {
+            return null;
+        }
+
+        Set<Object> elementIds = getElementIds();
+
+        if (elementIds.isEmpty() && !this.elementIds.isEmpty()) {
+            return null;
+        }
+
+        Query<E> query = createQuery(elementIds);
+
+        return query.getPredicates().isUnsatisfiable() ? null : query;
+    }
+
+    /**
+     * Sets the batch which queries the results of this step together with other steps
+     */
+    void setBatch(QueryBatch batch) {
+        this.batch = batch;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
 
-            Query<E> query = new Query<>(this.returnClass, mergedPredicates, this.limit, Query.allLabels(), this.orders);
+        closeResults();
 
-            return this.backend.query(query).iterator();
+        if (this.batch != null) {
+            this.batch.reset();
         }
     }
 
+    @Override
+    public MastikGraphStep<S, E> clone() {
+        MastikGraphStep<S, E> clone = (MastikGraphStep<S, E>) super.clone();
+        clone.results = null;
+        // the batch holds the steps of the original traversal
+        clone.batch = null;
+
+        return clone;
+    }
+
+    /**
+     * Closes the results of the last query, releasing the resources they hold, such as open scrolls
+     */
+    private void closeResults() {
+        if (this.results != null) {
+            this.results.close();
+            this.results = null;
+        }
+    }
+
+    /**
+     * Creates the query of this step's results
+     */
+    public Query<E> createQuery() {
+        return createQuery(this.elementIds);
+    }
+
+    private Query<E> createQuery(Set<Object> elementIds) {
+        PredicatesTree idsPredicate = ElementUtils.createIdsPredicate(elementIds);
+        PredicatesTree mergedPredicates = PredicatesOptimizer.optimize(PredicatesTree.and(idsPredicate, this.predicates));
+
+        return new Query<>(this.returnClass, mergedPredicates, this.limit, this.propertyKeys, this.orders);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getPropertyKeys() {
+        return this.propertyKeys;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setPropertyKeys(Set<String> propertyKeys) {
+        this.propertyKeys = propertyKeys;
+    }
+
+    /**
+     * Returns the ids of the queried elements, without the vertices which are known to be missing.
+     * Deferred vertices are not dropped, as they are created without querying their ids either way
+     */
+    private Set<Object> getElementIds() {
+        NegativeCache negativeCache = this.backend.getNegativeCache();
+
+        if (negativeCache == null || !this.returnsVertex()) {
+            return this.elementIds;
+        }
+
+        return this.elementIds.stream()
+                .filter(elementId -> !negativeCache.isMissing(elementId))
+                .collect(Collectors.toSet());
+    }
+
     /**
      * If no predicates, limit and orders were set,
      * this will return true. Otherwise, it'll return false.
      */
     private boolean canCreateDeferredVertices() {
-        return !this.elementIds.isEmpty() && this.predicates.isEmpty() && this.limit == Query.noLimit() && this.orders == Query.noOrders();
+        return !this.elementIds.isEmpty() && this.predicates.isEmpty() && this.limit == Query.noLimit() && this.orders.isEmpty();
     }
 }
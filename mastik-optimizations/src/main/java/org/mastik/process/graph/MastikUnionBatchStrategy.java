@@ -0,0 +1,42 @@
+package org.mastik.process.graph;
+
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.step.branch.UnionStep;
+import org.apache.tinkerpop.gremlin.process.traversal.util.TraversalHelper;
+import org.mastik.Backend;
+import org.mastik.Strategy;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Finds {@link UnionStep}s with branches which start with a mid-traversal {@link MastikGraphStep},
+ * whose queries do not depend on the traversers of the union, and queries all of them in a single batch.
+ * Should be applied after {@link MastikGraphStepStrategy}
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 3/1/17
+ */
+public class MastikUnionBatchStrategy implements Strategy {
+
+    @Override
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public void apply(Traversal.Admin traversal, Backend backend) {
+        TraversalHelper.getStepsOfAssignableClassRecursively(UnionStep.class, traversal)
+                .forEach(unionStep -> {
+                    List<? extends Traversal.Admin<?, ?>> branches = ((UnionStep<?, ?>) unionStep).getGlobalChildren();
+                    List<MastikGraphStep<?, ?>> graphSteps = branches.stream()
+                            .map(Traversal.Admin::getStartStep)
+                            .filter(step -> step instanceof MastikGraphStep && !((MastikGraphStep<?, ?>) step).isStartStep())
+                            .map(step -> (MastikGraphStep<?, ?>) step)
+                            .collect(Collectors.toList());
+
+                    if (graphSteps.size() < 2) {
+                        return;
+                    }
+
+                    QueryBatch batch = new QueryBatch(backend);
+                    graphSteps.forEach(batch::add);
+                });
+    }
+}
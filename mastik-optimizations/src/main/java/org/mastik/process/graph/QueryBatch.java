@@ -0,0 +1,84 @@
+package org.mastik.process.graph;
+
+import org.apache.tinkerpop.gremlin.structure.Element;
+import org.mastik.Backend;
+import org.mastik.StreamUtils;
+import org.mastik.query.Query;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+/**
+ * Queries the results of several independent {@link MastikGraphStep}s together, by a single {@link Backend#queryBatch(List)}.
+ * When a step of the batch has no pending results, the queries of all of the steps without pending results are sent,
+ * and the results of the other steps are kept pending until they query them
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 3/1/17
+ */
+class QueryBatch {
+    private final Backend backend;
+    private final List<MastikGraphStep<?, ?>> steps = new ArrayList<>();
+    private final Map<MastikGraphStep<?, ?>, CompletableFuture<Stream<? extends Element>>> pending = new IdentityHashMap<>();
+
+    QueryBatch(Backend backend) {
+        this.backend = backend;
+    }
+
+    /**
+     * Adds a step to the batch
+     */
+    void add(MastikGraphStep<?, ?> step) {
+        this.steps.add(step);
+        step.setBatch(this);
+    }
+
+    /**
+     * Returns the results of the given query of the given step, which were either already queried with another step
+     * or are queried now, together with the queries of the other steps without pending results.
+     * If the query of the step failed, the stream fails once it is consumed
+     */
+    <E extends Element> Stream<E> query(MastikGraphStep<?, E> step, Query<E> query) {
+        CompletableFuture<Stream<? extends Element>> results = this.pending.remove(step);
+
+        if (results == null) {
+            List<MastikGraphStep<?, ?>> batchedSteps = new ArrayList<>();
+            List<Query<?>> queries = new ArrayList<>();
+
+            batchedSteps.add(step);
+            queries.add(query);
+
+            this.steps.stream()
+                    .filter(other -> other != step && !this.pending.containsKey(other))
+                    .forEach(other -> {
+                        Query<?> otherQuery = other.createBackendQuery();
+
+                        if (otherQuery != null) {
+                            batchedSteps.add(other);
+                            queries.add(otherQuery);
+                        }
+                    });
+
+            List<CompletableFuture<Stream<? extends Element>>> batchResults = this.backend.queryBatch(queries);
+            results = batchResults.get(0);
+
+            for (int i = 1; i < batchedSteps.size(); i++) {
+                this.pending.put(batchedSteps.get(i), batchResults.get(i));
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        CompletableFuture<Stream<E>> typedResults = (CompletableFuture<Stream<E>>) (CompletableFuture<?>) results;
+
+        return StreamUtils.fromFuture(typedResults);
+    }
+
+    /**
+     * Discards the pending results, closing them once they arrive
+     */
+    void reset() {
+        this.pending.values().forEach(results -> results.thenAccept(Stream::close));
+        this.pending.clear();
+    }
+}
@@ -0,0 +1,63 @@
+package org.mastik.process.projection;
+
+import com.google.common.collect.Sets;
+import org.apache.tinkerpop.gremlin.process.traversal.Step;
+import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.PropertiesStep;
+import org.apache.tinkerpop.gremlin.process.traversal.step.map.PropertyMapStep;
+import org.apache.tinkerpop.gremlin.process.traversal.util.TraversalHelper;
+import org.mastik.Backend;
+import org.mastik.Strategy;
+import org.mastik.process.PropertyKeysHolder;
+import org.mastik.process.graph.MastikGraphStep;
+import org.mastik.process.vertex.MastikVertexStep;
+
+import java.util.Set;
+
+/**
+ * Finds {@link MastikGraphStep}s and {@link MastikVertexStep}s whose results are only used for
+ * specific properties (i.e. followed by {@link PropertiesStep} or {@link PropertyMapStep} with keys),
+ * and restricts them to fetch only those properties.
+ * Should be applied after the strategies which create the Mastik steps
+ *
+ * @author imriqwe (imriqwe@gmail.com)
+ * @since 2/5/17
+ */
+public class MastikProjectionStrategy implements Strategy {
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void apply(Traversal.Admin traversal, Backend backend) {
+        TraversalHelper.getStepsOfAssignableClassRecursively(PropertyKeysHolder.class, traversal)
+                .forEach(holder -> {
+                    Set<String> propertyKeys = getProjectedKeys((Step) holder);
+
+                    if (!propertyKeys.isEmpty()) {
+                        holder.setPropertyKeys(propertyKeys);
+                    }
+                });
+    }
+
+    /**
+     * Given a step, returns the property keys its results are projected to,
+     * or an empty set if the results may be used in any other way
+     */
+    private Set<String> getProjectedKeys(Step<?, ?> step) {
+        Step<?, ?> nextStep = step.getNextStep();
+
+        // labeled results may be selected later on, with all of their properties
+        if (!step.getLabels().isEmpty()) {
+            return Sets.newHashSet();
+        }
+
+        if (nextStep instanceof PropertiesStep) {
+            return Sets.newHashSet(((PropertiesStep) nextStep).getPropertyKeys());
+        }
+
+        if (nextStep instanceof PropertyMapStep) {
+            return Sets.newHashSet(((PropertyMapStep) nextStep).getPropertyKeys());
+        }
+
+        return Sets.newHashSet();
+    }
+}
@@ -1,8 +1,10 @@
 package org.mastik.process.vertex;
 
+import com.google.common.collect.Sets;
 import org.apache.tinkerpop.gremlin.process.traversal.Order;
 import org.apache.tinkerpop.gremlin.process.traversal.Traversal;
 import org.apache.tinkerpop.gremlin.process.traversal.Traverser;
+import org.apache.tinkerpop.gremlin.process.traversal.step.filter.RangeGlobalStep;
 import org.apache.tinkerpop.gremlin.process.traversal.step.map.VertexStep;
 import org.apache.tinkerpop.gremlin.structure.Direction;
 import org.apache.tinkerpop.gremlin.structure.Edge;
@@ -12,17 +14,24 @@ import org.javatuples.Pair;
 import org.mastik.Backend;
 import org.mastik.ElementUtils;
 import org.mastik.StreamUtils;
+import org.mastik.cache.NegativeCache;
 import org.mastik.process.BulkStep;
+import org.mastik.process.PropertyKeysHolder;
 import org.mastik.process.TraversalCollector;
+import org.mastik.query.PredicatesOptimizer;
 import org.mastik.query.PredicatesTree;
 import org.mastik.query.VertexQuery;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -35,9 +44,14 @@ import java.util.stream.Stream;
  * @author imriqwe (imriqwe@gmail.com)
  * @since 1/6/17
  */
-public class MastikVertexStep<E extends Element> extends BulkStep<Vertex, E> {
+public class MastikVertexStep<E extends Element> extends BulkStep<Vertex, E> implements PropertyKeysHolder {
     private static final Logger logger = LoggerFactory.getLogger(MastikVertexStep.class);
 
+    /**
+     * Default number of bulks which are queried concurrently
+     */
+    public static final int DEFAULT_BULKS_IN_FLIGHT = 4;
+
     private final Class<E> returnClass;
     private final Direction direction;
     private final Set<String> edgeLabels;
@@ -45,18 +59,36 @@ public class MastikVertexStep<E extends Element> extends BulkStep<Vertex, E> {
     private PredicatesTree predicates;
     private List<Pair<String, Order>> orders;
     private Backend backend;
+    private Set<String> propertyKeys;
+    private int bulksInFlight;
+
+    /**
+     * Whether a vertex without results has no edges of the labels of this step at all,
+     * which is when the edges are neither filtered by other predicates nor limited
+     */
+    private final boolean resultsAllEdges;
 
-    public MastikVertexStep(Traversal.Admin traversal, Class<E> returnClass, Direction direction, Set<String> edgeLabels,
+    public MastikVertexStep(Traversal.Admin<?, ?> traversal, Class<E> returnClass, Direction direction, Set<String> edgeLabels,
                             int limit, PredicatesTree predicates, List<Pair<String, Order>> orders, Backend backend) {
+        this(traversal, returnClass, direction, edgeLabels, limit, predicates, orders, backend, DEFAULT_BULKS_IN_FLIGHT);
+    }
+
+    public MastikVertexStep(Traversal.Admin<?, ?> traversal, Class<E> returnClass, Direction direction, Set<String> edgeLabels,
+                            int limit, PredicatesTree predicates, List<Pair<String, Order>> orders, Backend backend,
+                            int bulksInFlight) {
         super(traversal);
 
         this.returnClass = returnClass;
         this.direction = direction;
         this.edgeLabels = edgeLabels;
         this.limit = limit;
-        this.predicates = predicates;
+        this.predicates = PredicatesOptimizer.optimize(PredicatesTree.and(
+                ElementUtils.createEdgeLabelsPredicate(edgeLabels.toArray(new String[edgeLabels.size()])), predicates));
         this.orders = orders;
         this.backend = backend;
+        this.propertyKeys = VertexQuery.allLabels();
+        this.bulksInFlight = bulksInFlight;
+        this.resultsAllEdges = predicates.isEmpty() && limit < 0;
     }
 
     /**
@@ -67,74 +99,186 @@ public class MastikVertexStep<E extends Element> extends BulkStep<Vertex, E> {
      * @return New instance of VertexStep
      */
     public static <E extends Element> MastikVertexStep<E> fromVertexStep(VertexStep<E> vertexStep, Backend backend) {
+        return fromVertexStep(vertexStep, backend, DEFAULT_BULKS_IN_FLIGHT);
+    }
+
+    /**
+     * Same as {@link #fromVertexStep(VertexStep, Backend)}, querying up to the given number of bulks concurrently
+     */
+    public static <E extends Element> MastikVertexStep<E> fromVertexStep(VertexStep<E> vertexStep, Backend backend, int bulksInFlight) {
+        // The queried elements are edges, so predicates and orders of returned vertices can not be applied to them.
+        // A limit still applies, as each queried edge returns at least one vertex
+        if (ElementUtils.isVertex(vertexStep.getReturnClass())) {
+            int limit = vertexStep.getNextStep() instanceof RangeGlobalStep ?
+                    TraversalCollector.collectLimit(vertexStep) : VertexQuery.noLimit();
+
+            return new MastikVertexStep<>(vertexStep.getTraversal(), vertexStep.getReturnClass(), vertexStep.getDirection(),
+                    Sets.newHashSet(vertexStep.getEdgeLabels()), limit, PredicatesTree.emptyTree(), VertexQuery.noOrders(), backend,
+                    bulksInFlight);
+        }
+
         PredicatesTree predicates = TraversalCollector.collectPredicates(vertexStep);
 
-        // @todo: collect order and limit
+        // Orders and limits apply to each bulk of vertices, so the order and range steps are kept to apply them to all results
+        int limit = TraversalCollector.collectLimit(vertexStep);
+        List<Pair<String, Order>> orders = TraversalCollector.collectOrders(vertexStep, false);
+
         return new MastikVertexStep<>(vertexStep.getTraversal(), vertexStep.getReturnClass(), vertexStep.getDirection(),
-                vertexStep.getLabels(), VertexQuery.noLimit(), predicates, VertexQuery.noOrders(), backend);
+                Sets.newHashSet(vertexStep.getEdgeLabels()), limit, predicates, orders, backend, bulksInFlight);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<String> getPropertyKeys() {
+        return this.propertyKeys;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setPropertyKeys(Set<String> propertyKeys) {
+        this.propertyKeys = propertyKeys;
+    }
+
+    @Override
+    protected int bulksInFlight() {
+        return this.bulksInFlight;
+    }
+
+    /**
+     * Sends the edges query of the given bulk without waiting for it,
+     * and returns a stream which waits for the query only once it is consumed,
+     * and which closes the query results when it is closed.
+     * When this step returns vertices, only the vertex ids of the edges are queried, and no edge is created.
+     * Vertices which are known to be missing or to have no edges are dropped before querying,
+     * and the vertices found to have no edges are recorded by the negative cache of the backend
+     */
     @Override
     protected Stream<Traverser.Admin<E>> process(List<Traverser.Admin<Vertex>> traversers) {
+        if (this.predicates.isUnsatisfiable()) {
+            return Stream.empty();
+        }
+
+        NegativeCache negativeCache = this.backend.getNegativeCache();
+
         Map<Object, List<Traverser.Admin<Vertex>>> verticesToTraversers = traversers.stream()
+                .filter(traverser -> negativeCache == null || !isNegative(negativeCache, traverser.get().id()))
                 .collect(Collectors.groupingBy(traverser -> traverser.get().id()));
 
-        Stream<Traverser.Admin<E>> traversersToReturn = queryVerticesEdges(verticesToTraversers.keySet())
-                .flatMap(edge -> getEdgeTraversers(edge, verticesToTraversers));
+        if (verticesToTraversers.isEmpty()) {
+            return Stream.empty();
+        }
+
+        VertexQuery query = createQuery(verticesToTraversers.keySet());
 
         if (this.returnsVertex()) {
-            return createDeferredVerticesTraversers((List)traversersToReturn.collect(Collectors.toList()));
+            CompletableFuture<Stream<Pair<String, String>>> neighbors = this.backend.queryVertexNeighborsAsync(query);
+
+            if (negativeCache != null && this.resultsAllEdges) {
+                neighbors = recordNoEdges(negativeCache, neighbors, query.getVertexIds(), Pair::getValue0, Pair::getValue1);
+            }
+
+            Stream<Pair<String, String>> neighborsStream = StreamUtils.fromFuture(neighbors);
+
+            return Stream.of(neighborsStream)
+                    .flatMap(stream -> createNeighborsTraversers(stream, verticesToTraversers))
+                    .onClose(neighborsStream::close);
+        }
+
+        CompletableFuture<Stream<Edge>> edges = this.backend.queryVertexAsync(query);
+
+        if (negativeCache != null && this.resultsAllEdges) {
+            edges = recordNoEdges(negativeCache, edges, query.getVertexIds(),
+                    edge -> edge.outVertex().id().toString(), edge -> edge.inVertex().id().toString());
         }
 
-        return traversersToReturn;
+        return StreamUtils.fromFuture(edges)
+                .flatMap(edge -> getEdgeTraversers(edge, verticesToTraversers));
     }
 
     /**
-     * Given a list of Vertex traversers, creates deferred vertices from it,
-     * and returns a stream of traversers containing the deferred vertices
-     * @param traversers List of vertices traversers
-     * @return Stream of deferred vertices traversers
+     * Given the (out-vertex id, in-vertex id) of the queried edges of a bulk,
+     * maps them back to the bulk's traversers, each split to a deferred vertex of the other side of the edge
      */
-    private Stream<Traverser.Admin<Vertex>> createDeferredVerticesTraversers(List<Traverser.Admin<Vertex>> traversers) {
-        Set<Object> vertexIds = traversers.stream()
-                .map(Traverser::get)
-                .map(Element::id)
+    private Stream<Traverser.Admin<E>> createNeighborsTraversers(Stream<Pair<String, String>> neighbors,
+                                                                 Map<Object, List<Traverser.Admin<Vertex>>> traversersByVertexId) {
+        List<Pair<Traverser.Admin<Vertex>, String>> splits = new ArrayList<>();
+
+        neighbors.forEach(neighbor -> {
+            if (this.direction != Direction.IN) {
+                addSplits(splits, traversersByVertexId.get(neighbor.getValue0()), neighbor.getValue1());
+            }
+
+            if (this.direction != Direction.OUT) {
+                addSplits(splits, traversersByVertexId.get(neighbor.getValue1()), neighbor.getValue0());
+            }
+        });
+
+        Set<Object> vertexIds = splits.stream()
+                .map(Pair::getValue1)
                 .collect(Collectors.toSet());
 
-        Map<Object, Vertex> verticesById = this.backend.getVerticesDeferred(vertexIds)
+        Map<Object, Vertex> verticesById = this.backend.getVerticesDeferred(vertexIds, this.propertyKeys)
                 .collect(Collectors.toMap(Vertex::id, vertex -> vertex));
 
-        return traversers.stream()
-                .map(traverser -> {
-                    if (verticesById.containsKey(traverser.get().id()))
-                        traverser.set(verticesById.get(traverser.get().id()));
+        return splits.stream()
+                .map(split -> split.getValue0().split((E) verticesById.get(split.getValue1()), this));
+    }
+
+    private static void addSplits(List<Pair<Traverser.Admin<Vertex>, String>> splits, List<Traverser.Admin<Vertex>> traversers, String vertexId) {
+        if (traversers != null) {
+            traversers.forEach(traverser -> splits.add(Pair.with(traverser, vertexId)));
+        }
+    }
 
-                    return traverser;
-                });
+    private boolean isNegative(NegativeCache negativeCache, Object vertexId) {
+        return negativeCache.isMissing(vertexId) || negativeCache.hasNoEdges(vertexId, this.direction, this.edgeLabels);
     }
 
-    private Stream<Edge> queryVerticesEdges(Set<Object> vertexIds) {
-        VertexQuery query = new VertexQuery(vertexIds, this.direction, this.predicates, this.limit, this.edgeLabels, this.orders);
+    /**
+     * Records the vertices which are not the queried side of any of the results of the given vertices as having no edges,
+     * once the results were consumed to their end. The results are streamed on as they are,
+     * and are not recorded at all if their stream is closed before it is exhausted
+     */
+    private <T> CompletableFuture<Stream<T>> recordNoEdges(NegativeCache negativeCache, CompletableFuture<Stream<T>> results,
+                                                          Set<Object> vertexIds, Function<T, String> outVertexId,
+                                                          Function<T, String> inVertexId) {
+        return results.thenApply(stream -> {
+            Set<String> connectedIds = new HashSet<>();
+
+            Stream<T> connected = stream.peek(result -> {
+                if (this.direction != Direction.IN) {
+                    connectedIds.add(outVertexId.apply(result));
+                }
+
+                if (this.direction != Direction.OUT) {
+                    connectedIds.add(inVertexId.apply(result));
+                }
+            });
 
-        return this.backend.queryVertex(query);
+            return StreamUtils.onExhausted(connected, () -> vertexIds.stream()
+                    .filter(vertexId -> !connectedIds.contains(vertexId.toString()))
+                    .forEach(vertexId -> negativeCache.markNoEdges(vertexId, this.direction, this.edgeLabels)));
+        });
+    }
+
+    private VertexQuery createQuery(Set<Object> vertexIds) {
+        Set<String> edgePropertyKeys = this.returnsVertex() ? VertexQuery.allLabels() : this.propertyKeys;
+
+        return new VertexQuery(vertexIds, this.direction, this.predicates, this.limit, edgePropertyKeys, this.orders);
     }
 
     private Stream<Traverser.Admin<E>> getEdgeTraversers(Edge edge, Map<Object, List<Traverser.Admin<Vertex>>> traversersByVertexId) {
         return StreamUtils.toStream(edge.vertices(this.direction))
                 .filter(vertex -> traversersByVertexId.containsKey(vertex.id()))
                 .flatMap(vertex -> traversersByVertexId.get(vertex.id()).stream()
-                        .map(traverser -> traverser.split(getReturnElement(edge, vertex), this)))
+                        .map(traverser -> traverser.split((E) edge, this)))
                 .filter(Objects::nonNull);
     }
 
-    private E getReturnElement(Edge edge, Vertex vertex) {
-        if (!this.returnsVertex()) {
-            return (E) edge;
-        }
-
-        return (E) ElementUtils.extractVertexFromEdge(edge, vertex, this.direction);
-    }
-
     /**
      * Whether this step returns vertices
      *
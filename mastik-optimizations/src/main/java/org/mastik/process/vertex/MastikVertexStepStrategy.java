@@ -14,6 +14,22 @@ import org.mastik.Strategy;
  * @since 1/6/17
  */
 public class MastikVertexStepStrategy implements Strategy {
+    private final int bulksInFlight;
+
+    public MastikVertexStepStrategy() {
+        this(MastikVertexStep.DEFAULT_BULKS_IN_FLIGHT);
+    }
+
+    /**
+     * @param bulksInFlight Number of bulks each replacing step queries concurrently
+     */
+    public MastikVertexStepStrategy(int bulksInFlight) {
+        if (bulksInFlight < 1) {
+            throw new IllegalArgumentException("Bulks in flight must be positive, got " + bulksInFlight);
+        }
+
+        this.bulksInFlight = bulksInFlight;
+    }
 
     @Override
     public void apply(Traversal.Admin traversal, Backend backend) {
@@ -41,7 +57,7 @@ public class MastikVertexStepStrategy implements Strategy {
     }
 
     private void replaceVertexStep(Traversal.Admin traversal, VertexStep vertexStep, Backend backend) {
-        MastikVertexStep mastikVertexStep = MastikVertexStep.fromVertexStep(vertexStep, backend);
+        MastikVertexStep mastikVertexStep = MastikVertexStep.fromVertexStep(vertexStep, backend, this.bulksInFlight);
         TraversalHelper.replaceStep(vertexStep, mastikVertexStep, traversal);
     }
 }